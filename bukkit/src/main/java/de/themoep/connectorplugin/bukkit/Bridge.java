@@ -22,7 +22,6 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.connectorplugin.BridgeCommon;
 import de.themoep.connectorplugin.LocationInfo;
 import de.themoep.connectorplugin.ResponseHandler;
@@ -87,9 +86,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
 
         registerMessageHandler(Action.TELEPORT, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             LocationInfo location = LocationInfo.read(in);
             if (!location.getServer().equals(plugin.getServerName())) {
@@ -126,9 +125,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         });
 
         registerMessageHandler(Action.TELEPORT_TO_WORLD, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             String serverName = in.readUTF();
             if (!serverName.equals(plugin.getServerName())) {
@@ -168,9 +167,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         });
 
         registerMessageHandler(Action.TELEPORT_TO_PLAYER, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             String targetName = in.readUTF();
 
@@ -201,9 +200,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         });
 
         registerMessageHandler(Action.GET_LOCATION, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
 
             Player player = plugin.getServer().getPlayerExact(playerName);
@@ -215,9 +214,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         });
 
         registerMessageHandler(Action.PLAYER_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             UUID playerId = new UUID(in.readLong(), in.readLong());
             String command = in.readUTF();
@@ -248,7 +247,7 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         });
 
         registerMessageHandler(Action.CONSOLE_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
             String targetServer = in.readUTF();
             if (targetServer.startsWith("p:")) {
@@ -259,7 +258,7 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
             } else if (!targetServer.equals(plugin.getServerName())) {
                 return;
             }
-            long id = in.readLong();
+            long id = readId(in);
             String command = in.readUTF();
 
             plugin.logDebug("Console command '" + command + "' triggered from " + senderServer);
@@ -269,7 +268,7 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
         });
 
         registerMessageHandler(Action.REGISTER_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
             String pluginName = in.readUTF();
             String name = in.readUTF();
@@ -291,26 +290,27 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
             }
         });
 
-        registerHandler(Action.RESPONSE, (receiver, data) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(data);
-            long id = in.readLong();
+        registerMessageHandler(Action.RESPONSE, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
+            long id = readId(in);
             boolean isCompletion = in.readBoolean();
             if (isCompletion) {
                 handleResponse(id, in);
             } else {
-                String message = in.readUTF();
+                String responseMessage = in.readUTF();
                 Consumer<String>[] consumer = consumers.getIfPresent(id);
                 if (consumer != null) {
                     for (Consumer<String> stringConsumer : consumer) {
-                        stringConsumer.accept(message);
+                        stringConsumer.accept(responseMessage);
                     }
                 }
             }
         });
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         out.writeUTF(plugin.getServerName());
         sendData(Action.STARTED, MessageTarget.ALL_PROXIES, out.toByteArray());
+        plugin.getConnector().announceDictionary();
     }
 
     @EventHandler
@@ -387,7 +387,7 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
     }
 
     private void sendCommandExecution(CommandSender sender, BridgedCommandExecutor executor, String label, String[] args) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         out.writeUTF(executor.getServer());
         out.writeUTF(sender instanceof Player ? sender.getName() : "");
         out.writeUTF(executor.getPluginName());
@@ -425,9 +425,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
                 }
                 return;
             }
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(playerName);
             out.writeUTF(serverName);
             responses.put(id, new ResponseHandler.Boolean(future));
@@ -469,9 +469,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
                 }
                 return;
             }
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(playerName);
             location.write(out);
             responses.put(id, new ResponseHandler.Boolean(future));
@@ -524,9 +524,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
                 }
                 return;
             }
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(playerName);
             out.writeUTF(serverName);
             out.writeUTF(worldName);
@@ -555,9 +555,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
                 return;
             }
             markTeleporting(playerName);
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(playerName);
             out.writeUTF(targetName);
             responses.put(id, new ResponseHandler.Boolean(future));
@@ -601,9 +601,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
                 future.complete(false);
                 return;
             }
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(player.getName());
             out.writeLong(player.getUniqueId().getMostSignificantBits());
             out.writeLong(player.getUniqueId().getLeastSignificantBits());
@@ -622,9 +622,9 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
      */
     public CompletableFuture<Boolean> runProxyConsoleCommand(String command, Consumer<String>... consumer) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(command);
         responses.put(id, new ResponseHandler.Boolean(future));
         if (consumer != null && consumer.length > 0) {
@@ -678,8 +678,8 @@ public class Bridge extends BridgeCommon<BukkitConnectorPlugin, Player> implemen
 
         @Override
         public void sendMessage(String[] messages) {
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            writeId(out, id);
             out.writeBoolean(false);
             out.writeUTF(String.join("\n", messages));
             sendResponseData(serverName, out.toByteArray());
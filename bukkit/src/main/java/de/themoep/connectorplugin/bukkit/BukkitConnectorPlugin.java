@@ -21,9 +21,13 @@ package de.themoep.connectorplugin.bukkit;
 import de.themoep.connectorplugin.ConnectorPlugin;
 import de.themoep.connectorplugin.bukkit.commands.ConnectorCommand;
 import de.themoep.connectorplugin.bukkit.connector.BukkitConnector;
+import de.themoep.connectorplugin.bukkit.connector.FailoverConnector;
+import de.themoep.connectorplugin.bukkit.connector.HybridConnector;
 import de.themoep.connectorplugin.bukkit.connector.MqttConnector;
+import de.themoep.connectorplugin.bukkit.connector.PeerConnector;
 import de.themoep.connectorplugin.bukkit.connector.PluginMessageConnector;
 import de.themoep.connectorplugin.bukkit.connector.RedisConnector;
+import de.themoep.connectorplugin.bukkit.connector.RedisStreamsConnector;
 import de.themoep.connectorplugin.connector.ConnectingPlugin;
 import de.themoep.connectorplugin.connector.MessageTarget;
 import org.bukkit.configuration.ConfigurationSection;
@@ -82,9 +86,21 @@ public final class BukkitConnectorPlugin extends JavaPlugin implements Connector
             case "redis":
                 connector = new RedisConnector(this);
                 break;
+            case "redis_streams":
+                connector = new RedisStreamsConnector(this);
+                break;
             case "mqtt":
                 connector = new MqttConnector(this);
                 break;
+            case "p2p":
+                connector = new PeerConnector(this);
+                break;
+            case "hybrid":
+                connector = new HybridConnector(this);
+                break;
+            case "failover":
+                connector = new FailoverConnector(this);
+                break;
         }
 
         getCommand("connectorplugin").setExecutor(new ConnectorCommand(this));
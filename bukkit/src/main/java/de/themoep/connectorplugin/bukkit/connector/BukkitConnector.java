@@ -20,13 +20,156 @@ package de.themoep.connectorplugin.bukkit.connector;
 
 import de.themoep.connectorplugin.bukkit.BukkitConnectorPlugin;
 import de.themoep.connectorplugin.connector.Connector;
+import de.themoep.connectorplugin.connector.DispatchPolicy;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessageDispatcher;
+import de.themoep.connectorplugin.connector.MessageFragmenter;
+import de.themoep.connectorplugin.connector.MessagePriority;
+import de.themoep.connectorplugin.connector.MessageTransport;
+import de.themoep.connectorplugin.connector.Outbox;
+import de.themoep.connectorplugin.connector.PayloadCompression;
+import de.themoep.connectorplugin.connector.PriorityLanes;
+import de.themoep.connectorplugin.connector.ReliableDelivery;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 public abstract class BukkitConnector extends Connector<BukkitConnectorPlugin, Player> {
 
+    private final BukkitTask dispatchTask;
+
     public BukkitConnector(BukkitConnectorPlugin plugin, boolean requiresPlayer) {
-        super(plugin, requiresPlayer);
+        super(plugin, requiresPlayer, createCodec(plugin), createFragmenter(plugin), createReliableDelivery(plugin), createPriorityLanes(plugin), createDispatcher(plugin));
+        // Handlers with the main thread policy are run in batches every tick
+        dispatchTask = plugin.getServer().getScheduler().runTaskTimer(plugin, dispatcher::runMainThreadBatch, 1, 1);
+    }
+
+    private static FrameCodec createCodec(BukkitConnectorPlugin plugin) {
+        PayloadCompression.Codec codec;
+        String codecName = plugin.getConfig().getString("frames.compression.codec", "deflate");
+        try {
+            codec = PayloadCompression.Codec.valueOf(codecName.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            plugin.logWarning("Unknown compression codec " + codecName + ", using deflate");
+            codec = PayloadCompression.Codec.DEFLATE;
+        }
+        return new FrameCodec(
+                plugin.getConfig().getBoolean("frames.compact", false),
+                plugin.getConfig().getInt("frames.dictionary-size", 256),
+                new PayloadCompression(
+                        plugin.getConfig().getBoolean("frames.compression.enabled", false),
+                        codec,
+                        plugin.getConfig().getInt("frames.compression.min-size", 1024),
+                        plugin.getConfig().getStringList("frames.compression.excluded"),
+                        // Decompressed data can't be bigger than what the fragmenter would reassemble
+                        (int) Math.min(plugin.getConfig().getLong("frames.fragments.max-memory", 16 * 1024 * 1024), Integer.MAX_VALUE)
+                ),
+                plugin.getConfig().getBoolean("frames.quantize-locations", false)
+        );
+    }
+
+    /**
+     * Read the limits of an outbox from the config
+     * @param plugin    The plugin
+     * @param path      The path of the outbox's config section
+     * @return The limits per priority
+     */
+    protected static Map<MessagePriority, Outbox.Limit> getOutboxLimits(BukkitConnectorPlugin plugin, String path) {
+        Map<MessagePriority, Outbox.Limit> limits = new EnumMap<>(MessagePriority.class);
+        for (MessagePriority priority : MessagePriority.values()) {
+            String priorityPath = path + "." + priority.name().toLowerCase(Locale.ROOT);
+            Outbox.Limit def = priority == MessagePriority.BULK ? new Outbox.Limit(1024, Outbox.OverflowPolicy.REJECT) : Outbox.Limit.DEFAULT;
+            Outbox.OverflowPolicy policy;
+            String policyName = plugin.getConfig().getString(priorityPath + ".policy", def.getPolicy().name());
+            try {
+                policy = Outbox.OverflowPolicy.fromConfig(policyName);
+            } catch (IllegalArgumentException e) {
+                plugin.logWarning("Unknown outbox policy " + policyName + " for " + priorityPath + ", using " + def.getPolicy());
+                policy = def.getPolicy();
+            }
+            limits.put(priority, new Outbox.Limit(plugin.getConfig().getInt(priorityPath + ".max-size", def.getMaxSize()), policy));
+        }
+        return limits;
+    }
+
+    /**
+     * Create the transport of a broker messenger type with the settings from the config
+     * @param plugin    The plugin
+     * @param type      The messenger type of the broker, either redis, redis_streams, mqtt or p2p
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The transport
+     * @throws IllegalArgumentException if the type isn't a broker messenger type
+     */
+    protected static MessageTransport createTransport(BukkitConnectorPlugin plugin, String type, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "redis":
+                return RedisConnector.createConnection(plugin, codec, onMessage);
+            case "redis_streams":
+                return RedisStreamsConnector.createConnection(plugin, codec, onMessage);
+            case "mqtt":
+                return MqttConnector.createConnection(plugin, codec, onMessage);
+            case "p2p":
+                return PeerConnector.createConnection(plugin, codec, onMessage);
+        }
+        throw new IllegalArgumentException("Messenger type '" + type + "' can't be used as a broker!");
+    }
+
+    private static MessageFragmenter createFragmenter(BukkitConnectorPlugin plugin) {
+        return new MessageFragmenter(
+                plugin.getConfig().getInt("frames.fragments.max-size", 0),
+                plugin.getConfig().getInt("frames.fragments.timeout", 30),
+                plugin.getConfig().getInt("frames.fragments.max-reassemblies", 64),
+                plugin.getConfig().getLong("frames.fragments.max-memory", 16 * 1024 * 1024)
+        );
+    }
+
+    private static ReliableDelivery createReliableDelivery(BukkitConnectorPlugin plugin) {
+        if (!plugin.getConfig().getBoolean("reliable-delivery.enabled", false)) {
+            return new ReliableDelivery();
+        }
+        return new ReliableDelivery(
+                plugin.getName() + " reliable delivery",
+                plugin.getConfig().getLong("reliable-delivery.retry-delay", 500),
+                plugin.getConfig().getLong("reliable-delivery.max-retry-delay", 5000),
+                plugin.getConfig().getInt("reliable-delivery.max-retries", 5),
+                plugin.getConfig().getInt("reliable-delivery.dedupe-window", 60),
+                plugin.getConfig().getInt("reliable-delivery.dedupe-size", 4096)
+        );
+    }
+
+    private static PriorityLanes createPriorityLanes(BukkitConnectorPlugin plugin) {
+        if (!plugin.getConfig().getBoolean("priority-lanes.enabled", false)) {
+            return null;
+        }
+        Map<MessagePriority, Integer> weights = PriorityLanes.defaultWeights();
+        for (MessagePriority priority : MessagePriority.values()) {
+            String path = "priority-lanes.weights." + priority.name().toLowerCase(Locale.ROOT);
+            weights.put(priority, plugin.getConfig().getInt(path, weights.get(priority)));
+        }
+        return new PriorityLanes(plugin, weights, getOutboxLimits(plugin, "priority-lanes.queues"));
+    }
+
+    private static MessageDispatcher createDispatcher(BukkitConnectorPlugin plugin) {
+        DispatchPolicy policy;
+        String policyName = plugin.getConfig().getString("dispatch.default-policy", "inline");
+        try {
+            policy = DispatchPolicy.fromConfig(policyName);
+        } catch (IllegalArgumentException e) {
+            plugin.logWarning("Unknown dispatch policy " + policyName + ", using inline");
+            policy = DispatchPolicy.INLINE;
+        }
+        return new MessageDispatcher(
+                plugin,
+                policy,
+                plugin.getConfig().getInt("dispatch.ordered-threads", 4),
+                plugin.getConfig().getLong("dispatch.main-thread-budget", 5) * 1000
+        );
     }
 
     protected Player getReceiverImplementation(String name) {
@@ -62,4 +205,9 @@ public abstract class BukkitConnector extends Connector<BukkitConnectorPlugin, P
 
     protected abstract void sendDataImplementation(String targetData, Message message);
 
+    @Override
+    public void close() {
+        super.close();
+        dispatchTask.cancel();
+    }
 }
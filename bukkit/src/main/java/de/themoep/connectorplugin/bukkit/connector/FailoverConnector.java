@@ -0,0 +1,72 @@
+package de.themoep.connectorplugin.bukkit.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.bukkit.BukkitConnectorPlugin;
+import de.themoep.connectorplugin.connector.FailoverTransport;
+import de.themoep.connectorplugin.connector.Message;
+
+public class FailoverConnector extends BukkitConnector {
+    private final FailoverTransport transport;
+
+    public FailoverConnector(BukkitConnectorPlugin plugin) {
+        super(plugin, false);
+        String primary = plugin.getConfig().getString("failover.primary", "redis");
+        String secondary = plugin.getConfig().getString("failover.secondary", "mqtt");
+        transport = new FailoverTransport(
+                plugin,
+                codec,
+                primary,
+                (envelopeCodec, onMessage) -> createTransport(plugin, primary, envelopeCodec, onMessage),
+                secondary,
+                (envelopeCodec, onMessage) -> createTransport(plugin, secondary, envelopeCodec, onMessage),
+                plugin.getConfig().getLong("failover.probes.interval", 1000),
+                plugin.getConfig().getInt("failover.probes.window", 30),
+                plugin.getConfig().getLong("failover.max-p99-latency", 250),
+                plugin.getConfig().getDouble("failover.max-error-rate", 0.2),
+                plugin.getConfig().getInt("failover.recovery-probes", 10),
+                plugin.getConfig().getLong("failover.overlap", 5000),
+                plugin.getConfig().getInt("failover.dedupe-window", 65536),
+                (receiver, message) -> {
+                    if (isRelevant(receiver, message)) {
+                        plugin.runSync(() -> handle(receiver, message));
+                    }
+                }
+        );
+    }
+
+    @Override
+    protected void sendDataImplementation(String targetData, Message message) {
+        transport.sendMessage(targetData, message, getDestination(targetData, message));
+    }
+
+    /**
+     * Get the transport which switches between the primary and secondary one, e.g. to check their health
+     * @return The failover transport
+     */
+    public FailoverTransport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        transport.close();
+    }
+}
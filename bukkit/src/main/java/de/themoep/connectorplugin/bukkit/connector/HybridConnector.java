@@ -0,0 +1,138 @@
+package de.themoep.connectorplugin.bukkit.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.bukkit.BukkitConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.HybridRoutes;
+import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessageTarget;
+import de.themoep.connectorplugin.connector.MessageTransport;
+import de.themoep.connectorplugin.connector.PeerConnection;
+import de.themoep.connectorplugin.connector.VersionMismatchException;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.messaging.PluginMessageListener;
+
+/**
+ * Messenger which sends messages for the proxy of a player as plugin messages through the player's connection
+ * and everything else through a broker.
+ */
+public class HybridConnector extends BukkitConnector implements PluginMessageListener {
+
+    private final HybridRoutes routes;
+    private final MessageTransport broker;
+
+    public HybridConnector(BukkitConnectorPlugin plugin) {
+        super(plugin, false);
+        routes = new HybridRoutes(plugin, plugin.getConfig().getStringList("hybrid.plugin-message-targets"));
+        broker = createTransport(plugin, plugin.getConfig().getString("hybrid.broker", "redis"), codec, (receiver, message) -> {
+            if (isRelevant(receiver, message)) {
+                plugin.runSync(() -> handle(receiver, message));
+            }
+        });
+        plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, plugin.getMessageChannel());
+        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, plugin.getMessageChannel(), this);
+    }
+
+    @Override
+    public void onPluginMessageReceived(String channel, Player player, byte[] data) {
+        if (!channel.equals(plugin.getMessageChannel())) {
+            return;
+        }
+
+        try {
+            FrameCodec.Frame frame = codec.decode(data);
+            String target = frame.getTarget();
+            if (!isRelevant(target, frame.getMessage()) || !isThis(target)) {
+                return;
+            }
+
+            if (target.startsWith(PLAYER_PREFIX)) {
+                String playerName = target.substring(PLAYER_PREFIX.length());
+                player = getReceiver(playerName);
+                if (player == null) {
+                    plugin.logError("Player " + playerName + " wasn't found online?");
+                    return;
+                }
+            }
+
+            handle(player, frame.getMessage());
+        } catch (IllegalArgumentException e) {
+            plugin.logError("Invalid message target! " + e.getMessage());
+        } catch (VersionMismatchException e) {
+            plugin.logWarning(e.getMessage() + ". Ignoring message!");
+        }
+    }
+
+    @Override
+    protected int getDefaultMaxFrameSize() {
+        return broker instanceof PeerConnection ? ((PeerConnection) broker).getMaxFrameSize() : 0;
+    }
+
+    @Override
+    protected void sendDataImplementation(String targetData, Message message) {
+        String destination = getDestination(targetData, message);
+        if (routes.prefersPluginMessage(message)) {
+            long start = System.nanoTime();
+            if (plugin.getServerName().equals(destination)) {
+                plugin.runSync(() -> handle(targetData, message));
+                routes.record(HybridRoutes.Route.LOCAL, start);
+                return;
+            }
+            // The proxy of a player on this server can be reached through the player's connection
+            Player player = message.getTarget() == MessageTarget.PROXY && targetData.startsWith(PLAYER_PREFIX)
+                    ? getReceiver(targetData)
+                    : null;
+            if (player != null) {
+                byte[] data = codec.encode(targetData, message);
+                if (routes.fitsPluginMessage(data)) {
+                    player.sendPluginMessage(plugin, plugin.getMessageChannel(), data);
+                    routes.record(HybridRoutes.Route.PLUGIN_MESSAGE, start);
+                    return;
+                }
+            }
+            routes.recordFallback();
+        }
+        long start = System.nanoTime();
+        broker.sendMessage(targetData, message, destination);
+        routes.record(HybridRoutes.Route.BROKER, start);
+    }
+
+    /**
+     * Get the routes which keep the statistics of the plugin messages and the broker
+     * @return The routes
+     */
+    public HybridRoutes getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Get the broker through which everything that can't be sent as a plugin message is sent
+     * @return The broker's transport
+     */
+    public MessageTransport getBroker() {
+        return broker;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        broker.close();
+    }
+}
@@ -18,11 +18,8 @@ package de.themoep.connectorplugin.bukkit.connector;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
-import de.themoep.connectorplugin.connector.MessageTarget;
 import de.themoep.connectorplugin.bukkit.BukkitConnectorPlugin;
 import de.themoep.connectorplugin.connector.VersionMismatchException;
 import org.bukkit.entity.Player;
@@ -31,17 +28,51 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.plugin.messaging.PluginMessageListener;
+import org.bukkit.scheduler.BukkitTask;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 public class PluginMessageConnector extends BukkitConnector implements PluginMessageListener, Listener {
 
-    private final Deque<byte[]> queue = new ArrayDeque<>();
+    /**
+     * Servers only accept plugin messages of up to 32767 bytes from the proxy, leave some room for the packet itself
+     */
+    private static final int MAX_FRAME_SIZE = 32000;
+
+    /**
+     * Messages which wait for a player to join, keyed by their coalescing key or by themselves if they have none.
+     * Coalesced messages move to the end when they get replaced.
+     */
+    private final Map<Object, QueuedMessage> queue = new LinkedHashMap<>();
+    private final int maxQueuedMessages;
+    private final long maxQueuedBytes;
+    private final long queueTtl;
+    private final int drainPerTick;
+    private final Set<String> coalescedActions = new HashSet<>();
+    private long queuedBytes = 0;
+    private BukkitTask drainTask = null;
+
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong expiredMessages = new AtomicLong();
+    private final AtomicLong coalescedMessages = new AtomicLong();
 
     public PluginMessageConnector(BukkitConnectorPlugin plugin) {
         super(plugin, true);
+        maxQueuedMessages = plugin.getConfig().getInt("plugin-messages.queue.max-messages", 1000);
+        maxQueuedBytes = plugin.getConfig().getLong("plugin-messages.queue.max-bytes", 1024 * 1024);
+        queueTtl = TimeUnit.SECONDS.toNanos(plugin.getConfig().getLong("plugin-messages.queue.ttl", 300));
+        drainPerTick = Math.max(plugin.getConfig().getInt("plugin-messages.queue.drain-per-tick", 20), 1);
+        for (String action : plugin.getConfig().getStringList("plugin-messages.queue.coalesced-actions")) {
+            coalescedActions.add(action.toLowerCase(Locale.ROOT));
+        }
         plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, plugin.getMessageChannel());
         plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, plugin.getMessageChannel(), this);
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
@@ -53,29 +84,23 @@ public class PluginMessageConnector extends BukkitConnector implements PluginMes
             return;
         }
 
-        ByteArrayDataInput in = ByteStreams.newDataInput(data);
-        String group = in.readUTF();
-
-        String target = in.readUTF();
-        if (!isThis(target)) {
-            return;
-        }
-
-        if (target.startsWith(PLAYER_PREFIX)) {
-            String playerName = target.substring(PLAYER_PREFIX.length());
-            player = getReceiver(playerName);
-            if (player == null) {
-                plugin.logError("Player " + playerName + " wasn't found online?");
+        try {
+            FrameCodec.Frame frame = codec.decode(data);
+            String target = frame.getTarget();
+            if (!isRelevant(target, frame.getMessage()) || !isThis(target)) {
                 return;
             }
-        }
 
-        int messageLength = in.readInt();
-        byte[] messageData = new byte[messageLength];
-        in.readFully(messageData);
+            if (target.startsWith(PLAYER_PREFIX)) {
+                String playerName = target.substring(PLAYER_PREFIX.length());
+                player = getReceiver(playerName);
+                if (player == null) {
+                    plugin.logError("Player " + playerName + " wasn't found online?");
+                    return;
+                }
+            }
 
-        try {
-            handle( player, Message.fromByteArray(group, messageData));
+            handle(player, frame.getMessage());
         } catch (IllegalArgumentException e) {
             plugin.logError("Invalid message target! " + e.getMessage());
         } catch (VersionMismatchException e) {
@@ -84,35 +109,164 @@ public class PluginMessageConnector extends BukkitConnector implements PluginMes
     }
 
     @Override
-    public void sendDataImplementation(String targetData, Message message) {
-        byte[] messageData = message.writeToByteArray();
+    protected int getDefaultMaxFrameSize() {
+        return MAX_FRAME_SIZE;
+    }
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message.getGroup());
-        out.writeUTF(targetData);
-        out.writeInt(messageData.length);
-        out.write(messageData);
-        byte[] dataToSend = out.toByteArray();
+    @Override
+    public void sendDataImplementation(String targetData, Message message) {
+        byte[] dataToSend = codec.encode(targetData, message);
 
         Player player = null;
-        if (!targetData.startsWith("server:")) {
-            player = plugin.getServer().getPlayerExact(targetData);
+        if (targetData.startsWith(PLAYER_PREFIX)) {
+            player = getReceiver(targetData);
         }
         if (player != null) {
             player.sendPluginMessage(plugin, plugin.getMessageChannel(), dataToSend);
-        } else {
-            if (plugin.getServer().getOnlinePlayers().isEmpty()) {
-                queue.add(dataToSend);
-            } else {
+            return;
+        }
+        synchronized (queue) {
+            // Keep the order of messages which are sent while the queue is still being drained
+            if (queue.isEmpty() && !plugin.getServer().getOnlinePlayers().isEmpty()) {
                 plugin.getServer().getOnlinePlayers().iterator().next().sendPluginMessage(plugin, plugin.getMessageChannel(), dataToSend);
+            } else {
+                enqueue(targetData, message, dataToSend);
+            }
+        }
+    }
+
+    private void enqueue(String targetData, Message message, byte[] data) {
+        if (data.length > maxQueuedBytes) {
+            droppedMessages.incrementAndGet();
+            plugin.logDebug("Dropping " + data.length + " bytes of " + message.getSendingPlugin() + ":" + message.getAction() + " as it is bigger than the whole queue");
+            return;
+        }
+        long now = System.nanoTime();
+        removeExpired(now);
+
+        QueuedMessage queued = new QueuedMessage(data, now + queueTtl);
+        Object key = queued;
+        String action = message.getSendingPlugin().toLowerCase(Locale.ROOT) + ":" + message.getAction().toLowerCase(Locale.ROOT);
+        if (coalescedActions.contains(action)) {
+            key = action + "/" + targetData;
+            QueuedMessage superseded = queue.remove(key);
+            if (superseded != null) {
+                queuedBytes -= superseded.data.length;
+                coalescedMessages.incrementAndGet();
+            }
+        }
+
+        while (!queue.isEmpty() && (queue.size() >= maxQueuedMessages || queuedBytes + data.length > maxQueuedBytes)) {
+            Iterator<QueuedMessage> it = queue.values().iterator();
+            queuedBytes -= it.next().data.length;
+            it.remove();
+            droppedMessages.incrementAndGet();
+        }
+        if (queue.size() < maxQueuedMessages) {
+            queue.put(key, queued);
+            queuedBytes += data.length;
+        } else {
+            droppedMessages.incrementAndGet();
+        }
+    }
+
+    private void removeExpired(long now) {
+        if (queueTtl <= 0) {
+            return;
+        }
+        for (Iterator<QueuedMessage> it = queue.values().iterator(); it.hasNext();) {
+            QueuedMessage queued = it.next();
+            if (now - queued.expires < 0) {
+                // Replaced messages move to the end, so the queue stays ordered by expiry
+                break;
             }
+            queuedBytes -= queued.data.length;
+            it.remove();
+            expiredMessages.incrementAndGet();
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerJoin(PlayerJoinEvent event) {
-        while (!queue.isEmpty()) {
-            event.getPlayer().sendPluginMessage(plugin, plugin.getMessageChannel(), queue.remove());
+        synchronized (queue) {
+            if (!queue.isEmpty() && drainTask == null) {
+                // Spread the queue over several ticks instead of sending everything at once on join
+                drainTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::drain, 1, 1);
+            }
+        }
+    }
+
+    private void drain() {
+        synchronized (queue) {
+            removeExpired(System.nanoTime());
+            Iterator<? extends Player> players = plugin.getServer().getOnlinePlayers().iterator();
+            if (queue.isEmpty() || !players.hasNext()) {
+                drainTask.cancel();
+                drainTask = null;
+                return;
+            }
+            Player player = players.next();
+            Iterator<QueuedMessage> it = queue.values().iterator();
+            for (int i = 0; i < drainPerTick && it.hasNext(); i++) {
+                QueuedMessage queued = it.next();
+                it.remove();
+                queuedBytes -= queued.data.length;
+                player.sendPluginMessage(plugin, plugin.getMessageChannel(), queued.data);
+            }
+        }
+    }
+
+    /**
+     * Get the amount of messages which are waiting for a player to join
+     * @return The amount of queued messages
+     */
+    public int getQueuedMessages() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Get the amount of bytes which are waiting for a player to join
+     * @return The size of the queued messages in bytes
+     */
+    public long getQueuedBytes() {
+        synchronized (queue) {
+            return queuedBytes;
+        }
+    }
+
+    /**
+     * Get the amount of messages which were dropped because the queue was full
+     * @return The amount of dropped messages
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Get the amount of queued messages which were discarded because no player joined in time
+     * @return The amount of expired messages
+     */
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+
+    /**
+     * Get the amount of queued messages which were replaced by a newer message of the same action and target
+     * @return The amount of coalesced messages
+     */
+    public long getCoalescedMessages() {
+        return coalescedMessages.get();
+    }
+
+    private static class QueuedMessage {
+        private final byte[] data;
+        private final long expires;
+
+        private QueuedMessage(byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
         }
     }
 }
@@ -22,7 +22,6 @@ import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.connectorplugin.BridgedCommand;
 import de.themoep.connectorplugin.BridgedSuggestions;
 import de.themoep.connectorplugin.LocationInfo;
@@ -62,9 +61,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
         plugin.getProxy().getPluginManager().registerListener(plugin, this);
 
         registerMessageHandler(Action.SEND_TO_SERVER, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             String targetServer = in.readUTF();
 
@@ -98,9 +97,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
         });
 
         registerMessageHandler(Action.GET_LOCATION, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
 
             ProxiedPlayer player = plugin.getProxy().getPlayer(playerName);
@@ -112,9 +111,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
         });
 
         registerMessageHandler(Action.PLAYER_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             UUID playerId = new UUID(in.readLong(), in.readLong());
             String command = in.readUTF();
@@ -136,9 +135,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
         });
 
         registerMessageHandler(Action.CONSOLE_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String command = in.readUTF();
 
             plugin.logDebug("Console command '" + command + "' triggered from " + senderServer);
@@ -147,8 +146,8 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
             sendResponse(senderServer, id, success);
         });
 
-        registerHandler(Action.EXECUTE_COMMAND, (receiver, data) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(data);
+        registerMessageHandler(Action.EXECUTE_COMMAND, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
             String serverName = in.readUTF();
             if (!serverName.equals(plugin.getServerName())) {
                 return;
@@ -236,9 +235,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
         markTeleporting(playerName);
         future.thenAccept(success -> unmarkTeleporting(playerName));
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player.getName());
         location.write(out);
         responses.put(id, new ResponseHandler.Boolean(future));
@@ -282,9 +281,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
         markTeleporting(playerName);
         future.thenAccept(success -> unmarkTeleporting(playerName));
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player.getName());
         out.writeUTF(serverName);
         out.writeUTF(worldName);
@@ -341,9 +340,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
             markTeleporting(playerName);
             future.thenAccept(success -> unmarkTeleporting(playerName));
 
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(player.getName());
             out.writeUTF(targetName);
             responses.put(id, new ResponseHandler.Boolean(future));
@@ -400,9 +399,9 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
      */
     public CompletableFuture<Boolean> runServerPlayerCommand(ProxiedPlayer player, String command) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player.getName());
         out.writeLong(player.getUniqueId().getMostSignificantBits());
         out.writeLong(player.getUniqueId().getLeastSignificantBits());
@@ -418,7 +417,7 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
      * @param command   The command to register
      */
     public void registerServerCommand(String server, BridgedCommand<?, CommandSender> command) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         write(out, command);
         sendData(Action.REGISTER_COMMAND, MessageTarget.SERVER, server, out.toByteArray());
     }
@@ -447,7 +446,7 @@ public class Bridge extends ProxyBridgeCommon<BungeeConnectorPlugin, ProxiedPlay
     public void registerServerCommand(BridgedCommand<? extends Plugin, CommandSender> command) {
         commands.put(command.getPlugin().getName().toLowerCase(Locale.ROOT), command.getName().toLowerCase(Locale.ROOT), command);
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         write(out, command);
         sendData(Action.REGISTER_COMMAND, MessageTarget.ALL_QUEUE, out.toByteArray());
 
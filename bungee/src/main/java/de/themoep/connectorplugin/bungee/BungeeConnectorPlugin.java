@@ -22,9 +22,13 @@ import de.themoep.bungeeplugin.BungeePlugin;
 import de.themoep.connectorplugin.ConnectorPlugin;
 import de.themoep.connectorplugin.bungee.commands.ConnectorCommand;
 import de.themoep.connectorplugin.bungee.connector.BungeeConnector;
+import de.themoep.connectorplugin.bungee.connector.FailoverConnector;
+import de.themoep.connectorplugin.bungee.connector.HybridConnector;
 import de.themoep.connectorplugin.bungee.connector.MqttConnector;
+import de.themoep.connectorplugin.bungee.connector.PeerConnector;
 import de.themoep.connectorplugin.bungee.connector.PluginMessageConnector;
 import de.themoep.connectorplugin.bungee.connector.RedisConnector;
+import de.themoep.connectorplugin.bungee.connector.RedisStreamsConnector;
 import de.themoep.connectorplugin.connector.MessageTarget;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 
@@ -59,9 +63,21 @@ public final class BungeeConnectorPlugin extends BungeePlugin implements Connect
             case "redis":
                 connector = new RedisConnector(this);
                 break;
+            case "redis_streams":
+                connector = new RedisStreamsConnector(this);
+                break;
             case "mqtt":
                 connector = new MqttConnector(this);
                 break;
+            case "p2p":
+                connector = new PeerConnector(this);
+                break;
+            case "hybrid":
+                connector = new HybridConnector(this);
+                break;
+            case "failover":
+                connector = new FailoverConnector(this);
+                break;
         }
 
         getProxy().getPluginManager().registerCommand(this, new ConnectorCommand(this));
@@ -0,0 +1,132 @@
+package de.themoep.connectorplugin.bungee.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.bungee.BungeeConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.HybridRoutes;
+import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessageTarget;
+import de.themoep.connectorplugin.connector.MessageTransport;
+import de.themoep.connectorplugin.connector.PeerConnection;
+import de.themoep.connectorplugin.connector.VersionMismatchException;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.event.PluginMessageEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+
+/**
+ * Messenger which handles messages for players on this proxy directly, sends messages for servers which have
+ * players connected through this proxy as plugin messages and everything else through a broker.
+ */
+public class HybridConnector extends BungeeConnector implements Listener {
+
+    private final HybridRoutes routes;
+    private final MessageTransport broker;
+
+    public HybridConnector(BungeeConnectorPlugin plugin) {
+        super(plugin, false);
+        routes = new HybridRoutes(plugin, plugin.getConfig().getStringList("hybrid.plugin-message-targets"));
+        broker = createTransport(plugin, plugin.getConfig().getString("hybrid.broker", "redis"), codec, this::handle);
+        plugin.getProxy().registerChannel(plugin.getMessageChannel());
+        plugin.getProxy().getPluginManager().registerListener(plugin, this);
+    }
+
+    @EventHandler
+    public void onPluginMessage(PluginMessageEvent event) {
+        if (event.isCancelled() || !event.getTag().equals(plugin.getMessageChannel())) {
+            return;
+        }
+
+        event.setCancelled(true);
+        if (event.getSender() instanceof ProxiedPlayer) {
+            return;
+        }
+
+        try {
+            FrameCodec.Frame frame = codec.decode(event.getData());
+            String target = frame.getTarget();
+            Message message = frame.getMessage();
+            if (message.getTarget() == MessageTarget.PROXY && plugin.getServerName().equals(getDestination(target, message))) {
+                handle(target, message);
+            } else {
+                // Servers only send messages for this proxy that way, anything else gets relayed through the broker
+                broker.sendMessage(target, message, getDestination(target, message));
+            }
+        } catch (IllegalArgumentException e) {
+            plugin.logError("Invalid message target! " + e.getMessage());
+        } catch (VersionMismatchException e) {
+            plugin.logWarning(e.getMessage() + ". Ignoring message!");
+        }
+    }
+
+    @Override
+    protected int getDefaultMaxFrameSize() {
+        return broker instanceof PeerConnection ? ((PeerConnection) broker).getMaxFrameSize() : 0;
+    }
+
+    @Override
+    protected void sendDataImplementation(String targetData, Message message) {
+        String destination = getDestination(targetData, message);
+        if (routes.prefersPluginMessage(message)) {
+            long start = System.nanoTime();
+            if (plugin.getServerName().equals(destination)) {
+                handle(targetData, message);
+                routes.record(HybridRoutes.Route.LOCAL, start);
+                return;
+            }
+            ServerInfo server = message.getTarget() == MessageTarget.SERVER ? getTargetServer(targetData) : null;
+            if (server != null) {
+                byte[] data = codec.encode(targetData, message);
+                // Without queueing this only succeeds if a player is connected to the server through this proxy
+                if (routes.fitsPluginMessage(data) && server.sendData(plugin.getMessageChannel(), data, false)) {
+                    routes.record(HybridRoutes.Route.PLUGIN_MESSAGE, start);
+                    return;
+                }
+            }
+            routes.recordFallback();
+        }
+        long start = System.nanoTime();
+        broker.sendMessage(targetData, message, destination);
+        routes.record(HybridRoutes.Route.BROKER, start);
+    }
+
+    /**
+     * Get the routes which keep the statistics of the plugin messages and the broker
+     * @return The routes
+     */
+    public HybridRoutes getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Get the broker through which everything that can't be sent as a plugin message is sent
+     * @return The broker's transport
+     */
+    public MessageTransport getBroker() {
+        return broker;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        broker.close();
+    }
+}
@@ -18,25 +18,57 @@ package de.themoep.connectorplugin.bungee.connector;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
 import de.themoep.connectorplugin.bungee.BungeeConnectorPlugin;
 import de.themoep.connectorplugin.connector.VersionMismatchException;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.PluginMessageEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 public class PluginMessageConnector extends BungeeConnector implements Listener {
 
+    /**
+     * Servers only accept plugin messages of up to 32767 bytes from the proxy, leave some room for the packet itself
+     */
+    private static final int MAX_FRAME_SIZE = 32000;
+
+    /**
+     * Single threaded executors which send all messages to the servers. Each server is always handled
+     * by the same one so that the messages to it stay in order.
+     */
+    private final ExecutorService[] fanOutLanes;
+
+    private final LongAdder fanOuts = new LongAdder();
+    private final LongAdder fanOutNanos = new LongAdder();
+    private final AtomicLong maxFanOutNanos = new AtomicLong();
+
     public PluginMessageConnector(BungeeConnectorPlugin plugin) {
         super(plugin, true);
+        fanOutLanes = new ExecutorService[Math.max(plugin.getConfig().getInt("plugin-messages.fan-out-threads", 4), 1)];
+        for (int i = 0; i < fanOutLanes.length; i++) {
+            String name = plugin.getName() + " fan-out #" + i;
+            fanOutLanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
         plugin.getProxy().registerChannel(plugin.getMessageChannel());
+        plugin.getProxy().getPluginManager().registerListener(plugin, this);
     }
 
     @EventHandler
@@ -50,15 +82,12 @@ public class PluginMessageConnector extends BungeeConnector implements Listener
             return;
         }
 
-        ByteArrayDataInput in = ByteStreams.newDataInput(event.getData());
-        String group = in.readUTF();
-        String target = in.readUTF();
-
-        int messageLength = in.readInt();
-        byte[] messageData = new byte[messageLength];
-        in.readFully(messageData);
         try {
-            Message message = Message.fromByteArray(group, messageData);
+            // Only the envelope, target and sender get decoded here, the rest only if we handle the message ourselves
+            FrameCodec.Frame frame = codec.decode(event.getData());
+            String target = frame.getTarget();
+            Message message = frame.getMessage();
+            ServerInfo senderServer = event.getSender() instanceof Server ? ((Server) event.getSender()).getInfo() : null;
             switch (message.getTarget()) {
                 case ALL_WITH_PLAYERS:
                     sendToAllWithPlayers(event.getData(), null);
@@ -67,10 +96,10 @@ public class PluginMessageConnector extends BungeeConnector implements Listener
                     sendToAllAndQueue(event.getData(), null);
                     break;
                 case OTHERS_WITH_PLAYERS:
-                    sendToAllWithPlayers(event.getData(), ((ProxiedPlayer) event.getSender()).getServer().getInfo());
+                    sendToAllWithPlayers(event.getData(), senderServer);
                     break;
                 case OTHERS_QUEUE:
-                    sendToAllAndQueue(event.getData(), ((ProxiedPlayer) event.getSender()).getServer().getInfo());
+                    sendToAllAndQueue(event.getData(), senderServer);
                     break;
                 case PROXY:
                 case ALL_PROXIES:
@@ -80,7 +109,7 @@ public class PluginMessageConnector extends BungeeConnector implements Listener
                     if (!target.isEmpty()) {
                         ServerInfo server = getTargetServer(target);
                         if (server != null) {
-                            server.sendData(plugin.getMessageChannel(), event.getData(), true);
+                            sendToServer(server, event.getData(), true);
                         } else {
                             plugin.logDebug(target + " doesn't exist?");
                         }
@@ -106,24 +135,130 @@ public class PluginMessageConnector extends BungeeConnector implements Listener
         sendToAll(data, true, excludedServer);
     }
 
+    /**
+     * Send data to all servers. The sending is done by the fan-out lanes in parallel so that the calling thread,
+     * which often is a netty thread, doesn't have to wait for it.
+     * @param data              The data
+     * @param queue             Whether to queue it for servers without players, otherwise these are skipped
+     * @param excludedServer    The server to not send to
+     */
     private void sendToAll(byte[] data, boolean queue, ServerInfo excludedServer) {
+        long start = System.nanoTime();
+        List<List<ServerInfo>> laneServers = new ArrayList<>(fanOutLanes.length);
+        for (int i = 0; i < fanOutLanes.length; i++) {
+            laneServers.add(new ArrayList<>());
+        }
         for (ServerInfo server : plugin.getProxy().getServers().values()) {
-            if (excludedServer == null || excludedServer != server) {
-                server.sendData(plugin.getMessageChannel(), data, queue);
+            if ((excludedServer == null || excludedServer != server) && (queue || !server.getPlayers().isEmpty())) {
+                laneServers.get(getLane(server)).add(server);
+            }
+        }
+
+        AtomicInteger remaining = new AtomicInteger();
+        for (List<ServerInfo> servers : laneServers) {
+            if (!servers.isEmpty()) {
+                remaining.incrementAndGet();
             }
         }
+        if (remaining.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < fanOutLanes.length; i++) {
+            List<ServerInfo> servers = laneServers.get(i);
+            if (servers.isEmpty()) {
+                continue;
+            }
+            try {
+                fanOutLanes[i].execute(() -> {
+                    try {
+                        for (ServerInfo server : servers) {
+                            server.sendData(plugin.getMessageChannel(), data, queue);
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            long nanos = System.nanoTime() - start;
+                            fanOuts.increment();
+                            fanOutNanos.add(nanos);
+                            maxFanOutNanos.accumulateAndGet(nanos, Math::max);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                plugin.logDebug("Unable to send message to " + servers.size() + " servers as the connector was closed");
+            }
+        }
+    }
+
+    /**
+     * Send data to a single server. This is done by the server's fan-out lane too so that it can't overtake
+     * messages which were sent to all servers before.
+     * @param server    The server
+     * @param data      The data
+     * @param queue     Whether to queue it if the server has no players
+     */
+    private void sendToServer(ServerInfo server, byte[] data, boolean queue) {
+        try {
+            fanOutLanes[getLane(server)].execute(() -> server.sendData(plugin.getMessageChannel(), data, queue));
+        } catch (RejectedExecutionException e) {
+            plugin.logDebug("Unable to send message to " + server.getName() + " as the connector was closed");
+        }
+    }
+
+    private int getLane(ServerInfo server) {
+        return Math.floorMod(server.getName().hashCode(), fanOutLanes.length);
+    }
+
+    /**
+     * Get the amount of messages which were sent to all servers
+     * @return The amount of fan-outs
+     */
+    public long getFanOuts() {
+        return fanOuts.sum();
+    }
+
+    /**
+     * Get the average time from receiving a message for all servers until it was sent to the last of them
+     * @return The average fan-out latency in microseconds
+     */
+    public long getAverageFanOutLatency() {
+        long count = fanOuts.sum();
+        return count > 0 ? fanOutNanos.sum() / count / 1000 : 0;
+    }
+
+    /**
+     * Get the longest time from receiving a message for all servers until it was sent to the last of them
+     * @return The maximum fan-out latency in microseconds
+     */
+    public long getMaxFanOutLatency() {
+        return maxFanOutNanos.get() / 1000;
     }
 
     @Override
-    public void sendDataImplementation(String targetData, Message message) {
-        byte[] messageData = message.writeToByteArray();
+    protected int getDefaultMaxFrameSize() {
+        return MAX_FRAME_SIZE;
+    }
+
+    @Override
+    protected void checkSupported(String targetData, Message message) {
+        switch (message.getTarget()) {
+            case ALL_WITH_PLAYERS:
+            case ALL_QUEUE:
+            case OTHERS_WITH_PLAYERS:
+            case OTHERS_QUEUE:
+                break;
+            case SERVER:
+                if (getTargetServer(targetData) == null) {
+                    throw new UnsupportedOperationException("Could not send data to " + message.getTarget() + " as target server wasn't found from " + targetData + "!");
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Sending to " + message.getTarget() + " is not supported!");
+        }
+    }
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message.getGroup());
-        out.writeUTF(targetData);
-        out.writeInt(messageData.length);
-        out.write(messageData);
-        byte[] dataToSend = out.toByteArray();
+    @Override
+    public void sendDataImplementation(String targetData, Message message) {
+        byte[] dataToSend = codec.encode(targetData, message);
 
         ServerInfo server = getTargetServer(targetData);
 
@@ -142,7 +277,7 @@ public class PluginMessageConnector extends BungeeConnector implements Listener
                 break;
             case SERVER:
                 if (server != null) {
-                    server.sendData(plugin.getMessageChannel(), dataToSend);
+                    sendToServer(server, dataToSend, true);
                 } else {
                     throw new UnsupportedOperationException("Could not send data to " + message.getTarget() + " as target server wasn't found from " + targetData + "!");
                 }
@@ -151,4 +286,12 @@ public class PluginMessageConnector extends BungeeConnector implements Listener
                 throw new UnsupportedOperationException("Sending to " + message.getTarget() + " is not supported!");
         }
     }
+
+    @Override
+    public void close() {
+        super.close();
+        for (ExecutorService lane : fanOutLanes) {
+            lane.shutdown();
+        }
+    }
 }
@@ -19,33 +19,63 @@ package de.themoep.connectorplugin.bungee.connector;
  */
 
 import de.themoep.connectorplugin.bungee.BungeeConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
 import de.themoep.connectorplugin.connector.RedisConnection;
 
+import java.util.function.BiConsumer;
+
 public class RedisConnector extends BungeeConnector {
     private final RedisConnection connection;
 
     public RedisConnector(BungeeConnectorPlugin plugin) {
         super(plugin, false);
-        connection = new RedisConnection(
+        connection = createConnection(plugin, codec, this::handle);
+    }
+
+    /**
+     * Create a connection to Redis with the settings from the config
+     * @param plugin    The plugin
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The connection
+     */
+    static RedisConnection createConnection(BungeeConnectorPlugin plugin, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        return new RedisConnection(
                 plugin,
+                codec,
                 plugin.getConfig().getString("redis.uri"),
                 plugin.getConfig().getString("redis.host"),
                 plugin.getConfig().getInt("redis.port"),
                 plugin.getConfig().getInt("redis.db"),
                 plugin.getConfig().getString("redis.password"),
                 plugin.getConfig().getLong("redis.timeout"),
-                this::handle
+                plugin.getConfig().getBoolean("redis.direct-channels", false),
+                plugin.getConfig().getInt("redis.batching.max-commands", 32),
+                plugin.getConfig().getLong("redis.batching.max-delay", 200),
+                getOutboxLimits(plugin, "redis.outbox"),
+                plugin.getConfig().getLong("redis.health-check-interval", 10),
+                plugin.getConfig().getBoolean("redis.interactive-connection", false),
+                onMessage
         );
     }
 
     @Override
     protected void sendDataImplementation(String targetData, Message message) {
-        connection.sendMessage(targetData, message);
+        connection.sendMessage(targetData, message, getDestination(targetData, message));
+    }
+
+    /**
+     * Get the connection to Redis, e.g. to check its batching metrics
+     * @return The connection
+     */
+    public RedisConnection getConnection() {
+        return connection;
     }
 
     @Override
     public void close() {
+        super.close();
         connection.close();
     }
 }
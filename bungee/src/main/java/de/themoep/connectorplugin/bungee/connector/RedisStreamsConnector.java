@@ -0,0 +1,83 @@
+package de.themoep.connectorplugin.bungee.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.bungee.BungeeConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.RedisStreamConnection;
+
+import java.util.function.BiConsumer;
+
+public class RedisStreamsConnector extends BungeeConnector {
+    private final RedisStreamConnection connection;
+
+    public RedisStreamsConnector(BungeeConnectorPlugin plugin) {
+        super(plugin, false);
+        connection = createConnection(plugin, codec, this::handle);
+    }
+
+    /**
+     * Create a connection to the Redis stream with the settings from the config
+     * @param plugin    The plugin
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The connection
+     */
+    static RedisStreamConnection createConnection(BungeeConnectorPlugin plugin, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        return new RedisStreamConnection(
+                plugin,
+                codec,
+                plugin.getConfig().getString("redis.uri"),
+                plugin.getConfig().getString("redis.host"),
+                plugin.getConfig().getInt("redis.port"),
+                plugin.getConfig().getInt("redis.db"),
+                plugin.getConfig().getString("redis.password"),
+                plugin.getConfig().getLong("redis.timeout"),
+                plugin.getConfig().getLong("redis.streams.max-length", 10000),
+                plugin.getConfig().getInt("redis.streams.batch-size", 64),
+                plugin.getConfig().getLong("redis.streams.block-time", 1000),
+                plugin.getConfig().getInt("redis.batching.max-commands", 32),
+                plugin.getConfig().getLong("redis.batching.max-delay", 200),
+                getOutboxLimits(plugin, "redis.outbox"),
+                plugin.getConfig().getLong("redis.health-check-interval", 10),
+                plugin.getConfig().getBoolean("redis.interactive-connection", false),
+                onMessage
+        );
+    }
+
+    @Override
+    protected void sendDataImplementation(String targetData, Message message) {
+        connection.sendMessage(targetData, message);
+    }
+
+    /**
+     * Get the connection to Redis, e.g. to check its batching metrics
+     * @return The connection
+     */
+    public RedisStreamConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        connection.close();
+    }
+}
@@ -23,11 +23,21 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import com.google.common.collect.ImmutableSet;
+import de.themoep.connectorplugin.connector.CompactDataInput;
+import de.themoep.connectorplugin.connector.DeliveryMode;
+import de.themoep.connectorplugin.connector.DispatchPolicy;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessagePriority;
 import de.themoep.connectorplugin.connector.MessageTarget;
+import de.themoep.connectorplugin.connector.PooledDataOutput;
+import de.themoep.connectorplugin.connector.StringDictionary;
 import de.themoep.connectorplugin.connector.VersionMismatchException;
 
-import java.util.HashMap;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
@@ -35,7 +45,9 @@ import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -43,31 +55,76 @@ import static de.themoep.connectorplugin.connector.Connector.PLAYER_PREFIX;
 
 public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
     private static final int VERSION = 2;
+    /**
+     * Compact bridge messages start with this byte, legacy ones with the high byte of the version int
+     */
+    private static final byte COMPACT_MAGIC = (byte) 0xC3;
+    private static final int COMPACT_VERSION = 3;
     protected final P plugin;
 
-    protected final Map<String, PlayerInfo> playerInfoMap = new HashMap<>();
+    protected final Map<String, PlayerInfo> playerInfoMap = new ConcurrentHashMap<>();
     protected final Cache<Long, ResponseHandler<?>> responses = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build();
     protected final Cache<Long, Consumer<String>[]> consumers = CacheBuilder.newBuilder().expireAfterWrite(30, TimeUnit.MINUTES).build();
     private final Set<String> isTeleporting = new HashSet<>();
 
     protected static final Random RANDOM = new Random();
 
+    /**
+     * Actions that players or commands wait for, these are sent reliably if it is enabled in the connector
+     */
+    private static final Set<String> RELIABLE_ACTIONS = ImmutableSet.of(
+            Action.SEND_TO_SERVER,
+            Action.TELEPORT,
+            Action.TELEPORT_TO_WORLD,
+            Action.TELEPORT_TO_PLAYER,
+            Action.PLAYER_COMMAND,
+            Action.CONSOLE_COMMAND,
+            Action.EXECUTE_COMMAND
+    );
+
+    /**
+     * Notifications which nobody waits for, all other actions are sent with {@link MessagePriority#INTERACTIVE}
+     */
+    private static final Set<String> NORMAL_PRIORITY_ACTIONS = ImmutableSet.of(
+            Action.STARTED,
+            Action.PLAYER_JOIN,
+            Action.PLAYER_LEAVE,
+            Action.REGISTER_COMMAND
+    );
+
+    /**
+     * IDs only need to be unique for the responses of this server, so a counter with a random
+     * start is enough and keeps them small when they are written as varints
+     */
+    private final AtomicLong nextId = new AtomicLong(RANDOM.nextInt(1 << 20));
+
     public BridgeCommon(P plugin) {
         this.plugin = plugin;
 
-        registerHandler(Action.PLAYER_JOIN, (r, data) -> {
-            PlayerInfo playerInfo = PlayerInfo.read(ByteStreams.newDataInput(data));
+        // Add all bridge actions to the dictionary so that they are sent compactly right after the first announcement
+        StringDictionary dictionary = plugin.getConnector().getCodec().getDictionary();
+        dictionary.add(plugin.getName());
+        for (Field field : Action.class.getFields()) {
+            try {
+                dictionary.add((String) field.get(null));
+            } catch (IllegalAccessException ignored) {}
+        }
+
+        registerMessageHandler(Action.PLAYER_JOIN, (r, message) -> {
+            PlayerInfo playerInfo = PlayerInfo.read(message.getDataInput());
             addPlayerInfo(playerInfo);
         });
 
-        registerHandler(Action.PLAYER_LEAVE, (r, data) -> {
-            String playerName = ByteStreams.newDataInput(data).readUTF();
+        registerMessageHandler(Action.PLAYER_LEAVE, (r, message) -> {
+            String playerName = message.getDataInput().readUTF();
             removePlayerInfo(playerName);
         });
     }
 
     /**
-     * Register a bridge data handler for a certain action
+     * Register a bridge data handler for a certain action. The data is passed as is, handlers of data which
+     * contains IDs or locations have to use {@link #registerMessageHandler(String, BiConsumer)} and read it
+     * through {@link BridgeMessage#getDataInput()} to support compact messages.
      * @param action    The action to register (case sensitive)
      * @param handler   A BiConsumer which takes the receiving player and the data
      * @return The previously registered handler if there was one
@@ -77,7 +134,8 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
     }
 
     /**
-     * Register a bridge message handler for a certain action
+     * Register a bridge message handler for a certain action. Bridge handlers always run on the receiving thread
+     * which already is the main thread on Bukkit.
      * @param action    The action to register (case sensitive)
      * @param handler   A BiConsumer which takes the receiving player and the message
      * @return The previously registered handler if there was one
@@ -90,7 +148,49 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
             } catch (VersionMismatchException e) {
                 plugin.logError(e.getMessage() + " Ignoring message!");
             }
-        });
+        }, DispatchPolicy.INLINE);
+    }
+
+    /**
+     * Create a new output for the data of a bridge message. It's compact if the connector writes compact frames.
+     * @return The output
+     */
+    protected ByteArrayDataOutput newOutput() {
+        FrameCodec codec = plugin.getConnector().getCodec();
+        return PooledDataOutput.acquire(codec.isCompact(), codec.isQuantizingLocations());
+    }
+
+    /**
+     * Get a new ID for a request
+     * @return The ID
+     */
+    protected long nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Write the ID of a request
+     * @param out   The output to write to
+     * @param id    The ID
+     */
+    protected static void writeId(ByteArrayDataOutput out, long id) {
+        if (out instanceof PooledDataOutput && ((PooledDataOutput) out).isCompact()) {
+            ((PooledDataOutput) out).writeVarLong(id);
+        } else {
+            out.writeLong(id);
+        }
+    }
+
+    /**
+     * Read the ID of a request
+     * @param in    The input to read from
+     * @return The ID
+     */
+    protected static long readId(ByteArrayDataInput in) {
+        if (in instanceof CompactDataInput) {
+            return ((CompactDataInput) in).readVarLong();
+        }
+        return in.readLong();
     }
 
     /**
@@ -160,10 +260,10 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
      */
     public CompletableFuture<Boolean> runServerConsoleCommand(String server, String command, Consumer<String>... consumer) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
         out.writeUTF(server);
-        out.writeLong(id);
+        writeId(out, id);
         out.writeUTF(command);
         responses.put(id, new ResponseHandler.Boolean(future));
         if (consumer != null && consumer.length > 0) {
@@ -182,10 +282,10 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
      */
     public CompletableFuture<Boolean> runProxyConsoleCommand(String proxy, String command, Consumer<String>... consumer) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
         out.writeUTF(proxy);
-        out.writeLong(id);
+        writeId(out, id);
         out.writeUTF(command);
         responses.put(id, new ResponseHandler.Boolean(future));
         if (consumer != null && consumer.length > 0) {
@@ -209,9 +309,9 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
      */
     public CompletableFuture<LocationInfo> getLocation(String player) {
         CompletableFuture<LocationInfo> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player);
         responses.put(id, new ResponseHandler.Location(future));
         sendData(Action.GET_LOCATION, MessageTarget.SERVER, PLAYER_PREFIX + player, out.toByteArray());
@@ -243,7 +343,7 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
      * @param data      The data
      */
     public void sendData(String action, MessageTarget target, byte[] data) {
-        plugin.getConnector().sendData(plugin, action, target, new BridgeMessage(data).writeToByteArray());
+        plugin.getConnector().sendData(plugin, action, target, new BridgeMessage(data, isCompact()).writeToByteArray(), getPriority(action));
     }
 
     /**
@@ -254,7 +354,7 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
      * @param data      The data
      */
     protected void sendData(String action, MessageTarget target, R player, byte[] data) {
-        plugin.getConnector().sendData(plugin, action, target, player, new BridgeMessage(data).writeToByteArray());
+        plugin.getConnector().sendData(plugin, action, target, player, new BridgeMessage(data, isCompact()).writeToByteArray(), getPriority(action), getDeliveryMode(action));
     }
 
     /**
@@ -265,12 +365,24 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
      * @param data          The data
      */
     protected void sendData(String action, MessageTarget target, String targetData, byte[] data) {
-        plugin.getConnector().sendData(plugin, action, target, targetData, new BridgeMessage(data).writeToByteArray());
+        plugin.getConnector().sendData(plugin, action, target, targetData, new BridgeMessage(data, isCompact()).writeToByteArray(), getPriority(action), getDeliveryMode(action));
+    }
+
+    private static MessagePriority getPriority(String action) {
+        return NORMAL_PRIORITY_ACTIONS.contains(action) ? MessagePriority.NORMAL : MessagePriority.INTERACTIVE;
+    }
+
+    private static DeliveryMode getDeliveryMode(String action) {
+        return RELIABLE_ACTIONS.contains(action) ? DeliveryMode.RELIABLE : DeliveryMode.FIRE_AND_FORGET;
+    }
+
+    private boolean isCompact() {
+        return plugin.getConnector().getCodec().isCompact();
     }
 
     protected void sendResponse(String target, long id, Object response, String... messages) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        writeId(out, id);
         out.writeBoolean(true);
         if (response instanceof Boolean) {
             out.writeBoolean((Boolean) response);
@@ -291,8 +403,8 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
     }
 
     protected void sendResponseMessage(String target, long id, String... messages) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        writeId(out, id);
         out.writeBoolean(false);
         out.writeUTF(String.join("\n", messages));
         sendResponseData(target, out.toByteArray());
@@ -322,30 +434,55 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
 
     protected static class BridgeMessage {
         private final Message receivedMessage;
-        private final byte[] data;
+        private final ByteBuffer data;
+        private final boolean compact;
+        private byte[] dataArray;
 
         public BridgeMessage(byte[] data) {
             this(null, data);
         }
 
+        /**
+         * Create a message to send
+         * @param data      The data
+         * @param compact   Whether to write the message in the compact format
+         */
+        public BridgeMessage(byte[] data, boolean compact) {
+            this(null, data != null ? ByteBuffer.wrap(data) : null, compact);
+            this.dataArray = data;
+        }
+
         /**
          * @since 1.5
          */
         protected BridgeMessage(Message receivedMessage, byte[] data) {
+            this(receivedMessage, data != null ? ByteBuffer.wrap(data) : null, false);
+            this.dataArray = data;
+        }
+
+        private BridgeMessage(Message receivedMessage, ByteBuffer data, boolean compact) {
             this.receivedMessage = receivedMessage;
             this.data = data;
+            this.compact = compact;
         }
 
         public byte[] writeToByteArray() {
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            out.writeInt(VERSION);
-            if (data != null) {
-                out.writeInt(data.length);
-                out.write(data);
+            int length = data != null ? data.remaining() : 0;
+            ByteBuffer out;
+            if (compact) {
+                out = ByteBuffer.allocate(2 + FrameCodec.varIntLength(length) + length);
+                out.put(COMPACT_MAGIC);
+                out.put((byte) COMPACT_VERSION);
+                FrameCodec.writeVarInt(out, length);
             } else {
-                out.writeInt(0);
+                out = ByteBuffer.allocate(8 + length);
+                out.putInt(VERSION);
+                out.putInt(length);
+            }
+            if (data != null) {
+                out.put(data.duplicate());
             }
-            return out.toByteArray();
+            return out.array();
         }
 
         /**
@@ -353,34 +490,54 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
          */
         @Deprecated
         public static BridgeMessage fromByteArray(byte[] messageData) throws VersionMismatchException {
-            ByteArrayDataInput in = ByteStreams.newDataInput(messageData);
-            int version = in.readInt();
-            if (version < VERSION) {
-                throw new VersionMismatchException(version, VERSION, "Received bridge message from an outdated version! Please update the sending plugin!");
-            } else if (version > VERSION) {
-                throw new VersionMismatchException(version, VERSION, "Received bridge message with a newer version! Please update this plugin!");
-            }
-            int length = in.readInt();
-            byte[] data = new byte[length];
-            in.readFully(data);
-            return new BridgeMessage(null, data);
+            ByteBuffer in = ByteBuffer.wrap(messageData);
+            boolean compact = isCompact(in);
+            return new BridgeMessage(null, readData(in), compact);
         }
 
         /**
          * @since 1.5
          */
         public static BridgeMessage fromMessage(Message message) throws VersionMismatchException {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
-            int version = in.readInt();
-            if (version < VERSION) {
-                throw new VersionMismatchException(version, VERSION, "Received bridge message from an outdated version! Please update the sending plugin!");
-            } else if (version > VERSION) {
-                throw new VersionMismatchException(version, VERSION, "Received bridge message with a newer version! Please update this plugin!");
+            ByteBuffer in = message.getDataBuffer();
+            boolean compact = isCompact(in);
+            return new BridgeMessage(message, readData(in), compact);
+        }
+
+        private static boolean isCompact(ByteBuffer in) {
+            return in.hasRemaining() && in.get(in.position()) == COMPACT_MAGIC;
+        }
+
+        private static ByteBuffer readData(ByteBuffer in) throws VersionMismatchException {
+            try {
+                if (isCompact(in)) {
+                    in.get();
+                    int version = in.get() & 0xFF;
+                    if (version != COMPACT_VERSION) {
+                        throw new VersionMismatchException(version, COMPACT_VERSION, "Received bridge message with a newer version! Please update this plugin!");
+                    }
+                    int length = FrameCodec.readVarInt(in);
+                    if (length < 0 || length > in.remaining()) {
+                        throw new IllegalArgumentException("Invalid bridge message length " + length + " with " + in.remaining() + " bytes remaining");
+                    }
+                    in.limit(in.position() + length);
+                    return in.slice();
+                }
+                int version = in.getInt();
+                if (version < VERSION) {
+                    throw new VersionMismatchException(version, VERSION, "Received bridge message from an outdated version! Please update the sending plugin!");
+                } else if (version > VERSION) {
+                    throw new VersionMismatchException(version, VERSION, "Received bridge message with a newer version! Please update this plugin!");
+                }
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IllegalArgumentException("Invalid bridge message length " + length + " with " + in.remaining() + " bytes remaining");
+                }
+                in.limit(in.position() + length);
+                return in.slice();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Bridge message ended unexpectedly", e);
             }
-            int length = in.readInt();
-            byte[] data = new byte[length];
-            in.readFully(data);
-            return new BridgeMessage(message, data);
         }
 
         public Message getReceivedMessage() {
@@ -388,7 +545,35 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
         }
 
         public byte[] getData() {
-            return data;
+            if (dataArray == null && data != null) {
+                byte[] array = new byte[data.remaining()];
+                data.duplicate().get(array);
+                dataArray = array;
+            }
+            return dataArray;
+        }
+
+        /**
+         * Whether this message uses the compact format
+         * @return Whether the message is compact
+         */
+        public boolean isCompact() {
+            return compact;
+        }
+
+        /**
+         * Get an input to read the data of this message without copying it first.
+         * For compact messages this will be a {@link CompactDataInput}.
+         * @return The input positioned at the start of the data
+         */
+        public ByteArrayDataInput getDataInput() {
+            ByteArrayDataInput in;
+            if (dataArray == null && data != null && data.hasArray()) {
+                in = ByteStreams.newDataInput(data.array(), data.arrayOffset() + data.position());
+            } else {
+                in = ByteStreams.newDataInput(getData());
+            }
+            return compact ? new CompactDataInput(in) : in;
         }
     }
 
@@ -448,6 +633,27 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
         }
     }
 
+    /**
+     * Get the player whose presence a message updates, e.g. to only keep the latest one per player in a queue
+     * @param message   The message
+     * @return The lower case name of the player if the message is a player join or leave of the bridge, null otherwise
+     */
+    public String getPresencePlayer(Message message) {
+        try {
+            if (!plugin.getName().equalsIgnoreCase(message.getSendingPlugin())
+                    || (!Action.PLAYER_JOIN.equals(message.getAction()) && !Action.PLAYER_LEAVE.equals(message.getAction()))) {
+                return null;
+            }
+            ByteArrayDataInput in = BridgeMessage.fromMessage(message).getDataInput();
+            if (Action.PLAYER_JOIN.equals(message.getAction())) {
+                return PlayerInfo.read(in).getName().toLowerCase(Locale.ROOT);
+            }
+            return in.readUTF().toLowerCase(Locale.ROOT);
+        } catch (VersionMismatchException | IllegalArgumentException | IllegalStateException e) {
+            return null;
+        }
+    }
+
     protected void addPlayerInfo(PlayerInfo playerInfo) {
         playerInfoMap.put(playerInfo.getName().toLowerCase(Locale.ROOT), playerInfo);
     }
@@ -457,14 +663,15 @@ public abstract class BridgeCommon<P extends ConnectorPlugin<R>, R> {
     }
 
     private CompletableFuture<PlayerInfo> getPlayerInfo(String playerName) {
-        if (playerInfoMap.containsKey(playerName.toLowerCase(Locale.ROOT))) {
-            return CompletableFuture.completedFuture(playerInfoMap.get(playerName.toLowerCase(Locale.ROOT)));
+        PlayerInfo playerInfo = playerInfoMap.get(playerName.toLowerCase(Locale.ROOT));
+        if (playerInfo != null) {
+            return CompletableFuture.completedFuture(playerInfo);
         }
         CompletableFuture<PlayerInfo> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
         out.writeUTF(plugin.getServerName());
-        out.writeLong(id);
+        writeId(out, id);
         out.writeUTF(playerName);
         responses.put(id, new ResponseHandler.PlayerInfo(future));
         sendData(Action.GET_PLAYER_INFO, MessageTarget.ALL_PROXIES, PLAYER_PREFIX + playerName, out.toByteArray());
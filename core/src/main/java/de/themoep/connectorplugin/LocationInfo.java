@@ -20,8 +20,19 @@ package de.themoep.connectorplugin;
 
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
+import de.themoep.connectorplugin.connector.CompactDataInput;
+import de.themoep.connectorplugin.connector.PooledDataOutput;
 
 public class LocationInfo {
+    /**
+     * Coordinates of quantized locations are sent with a precision of 1/256 of a block
+     */
+    private static final double COORDINATE_SCALE = 256;
+    /**
+     * Rotations of quantized locations are sent as 16 bit fractions of a full turn
+     */
+    private static final float ROTATION_SCALE = 65536 / 360f;
+
     private final String server;
     private final String world;
     private final double x;
@@ -86,6 +97,20 @@ public class LocationInfo {
 
     public void write(ByteArrayDataOutput out) {
         out.writeUTF(getServer());
+        if (out instanceof PooledDataOutput && ((PooledDataOutput) out).isCompact()) {
+            PooledDataOutput compactOut = (PooledDataOutput) out;
+            out.writeBoolean(compactOut.isQuantizingLocations());
+            if (compactOut.isQuantizingLocations()) {
+                out.writeUTF(getWorld());
+                compactOut.writeSignedVarLong(Math.round(getX() * COORDINATE_SCALE));
+                compactOut.writeSignedVarLong(Math.round(getY() * COORDINATE_SCALE));
+                compactOut.writeSignedVarLong(Math.round(getZ() * COORDINATE_SCALE));
+                // Rotations simply overflow as they are a fraction of a full turn anyway
+                out.writeShort(Math.round(getPitch() * ROTATION_SCALE));
+                out.writeShort(Math.round(getYaw() * ROTATION_SCALE));
+                return;
+            }
+        }
         out.writeUTF(getWorld());
         out.writeDouble(getX());
         out.writeDouble(getY());
@@ -99,15 +124,24 @@ public class LocationInfo {
         if (serverName.isEmpty()) {
             return null;
         }
-        return new LocationInfo(
-                serverName,
-                in.readUTF(),
-                in.readDouble(),
-                in.readDouble(),
-                in.readDouble(),
-                in.readFloat(),
-                in.readFloat()
-        );
+        if (in instanceof CompactDataInput && in.readBoolean()) {
+            CompactDataInput compactIn = (CompactDataInput) in;
+            String worldName = in.readUTF();
+            double x = compactIn.readSignedVarLong() / COORDINATE_SCALE;
+            double y = compactIn.readSignedVarLong() / COORDINATE_SCALE;
+            double z = compactIn.readSignedVarLong() / COORDINATE_SCALE;
+            float pitch = in.readShort() / ROTATION_SCALE;
+            float yaw = in.readShort() / ROTATION_SCALE;
+            return new LocationInfo(serverName, worldName, x, y, z, yaw, pitch);
+        }
+        String worldName = in.readUTF();
+        double x = in.readDouble();
+        double y = in.readDouble();
+        double z = in.readDouble();
+        // Pitch is written before the yaw
+        float pitch = in.readFloat();
+        float yaw = in.readFloat();
+        return new LocationInfo(serverName, worldName, x, y, z, yaw, pitch);
     }
 
     @Override
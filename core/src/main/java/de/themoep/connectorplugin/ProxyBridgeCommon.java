@@ -20,7 +20,6 @@ package de.themoep.connectorplugin;
 
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.connectorplugin.connector.MessageTarget;
 
 import java.util.concurrent.CompletableFuture;
@@ -37,9 +36,9 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
                 -> registerServerCommands(message.getReceivedMessage().getSendingServer()));
 
         registerMessageHandler(Action.TELEPORT, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             LocationInfo targetLocation = LocationInfo.read(in);
 
@@ -48,9 +47,9 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
         });
 
         registerMessageHandler(Action.TELEPORT_TO_WORLD, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             String targetServer = in.readUTF();
             String targetWorld = in.readUTF();
@@ -60,9 +59,9 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
         });
 
         registerMessageHandler(Action.TELEPORT_TO_PLAYER, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             String targetName = in.readUTF();
 
@@ -70,10 +69,10 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
                     .thenAccept(success -> sendResponse(senderServer, id, success));
         });
 
-        registerHandler(Action.GET_PLAYER_INFO, (receiver, data) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(data);
+        registerMessageHandler(Action.GET_PLAYER_INFO, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = in.readUTF();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
 
             R player = getPlayer(playerName);
@@ -84,22 +83,24 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
             }
         });
 
-        registerHandler(Action.RESPONSE, (receiver, data) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(data);
-            long id = in.readLong();
+        registerMessageHandler(Action.RESPONSE, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
+            long id = readId(in);
             boolean isCompletion = in.readBoolean();
             if (isCompletion) {
                 handleResponse(id, in);
             } else {
-                String message = in.readUTF();
+                String responseMessage = in.readUTF();
                 Consumer<String>[] consumer = consumers.getIfPresent(id);
                 if (consumer != null) {
                     for (Consumer<String> stringConsumer : consumer) {
-                        stringConsumer.accept(message);
+                        stringConsumer.accept(responseMessage);
                     }
                 }
             }
         });
+
+        plugin.getConnector().announceDictionary();
     }
 
     @Override
@@ -119,9 +120,9 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
      */
     public CompletableFuture<Boolean> runProxyConsoleCommand(String command, Consumer<String>... consumer) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(command);
         responses.put(id, new ResponseHandler.Boolean(future));
         if (consumer != null && consumer.length > 0) {
@@ -133,7 +134,7 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
 
     protected void onPlayerJoin(PlayerInfo playerInfo) {
         addPlayerInfo(playerInfo);
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         playerInfo.write(out);
         byte[] data = out.toByteArray();
         try {
@@ -148,7 +149,7 @@ public abstract class ProxyBridgeCommon<P extends ConnectorPlugin<R>, R> extends
         unmarkTeleporting(player);
 
         removePlayerInfo(player);
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         out.writeUTF(player);
         byte[] data = out.toByteArray();
         try {
@@ -0,0 +1,135 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.io.ByteArrayDataInput;
+
+/**
+ * Input for data which was written by a compact {@link PooledDataOutput}.
+ * Readers can check for this type to know whether compact encodings were used.
+ */
+public class CompactDataInput implements ByteArrayDataInput {
+
+    private final ByteArrayDataInput in;
+
+    public CompactDataInput(ByteArrayDataInput in) {
+        this.in = in;
+    }
+
+    /**
+     * Read a number written by {@link PooledDataOutput#writeVarLong(long)}
+     * @return The read number
+     * @throws IllegalStateException if the number is longer than 10 bytes
+     */
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Variable length number is too long");
+    }
+
+    /**
+     * Read a signed number written by {@link PooledDataOutput#writeSignedVarLong(long)}
+     * @return The read number
+     */
+    public long readSignedVarLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void readFully(byte[] b) {
+        in.readFully(b);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) {
+        in.readFully(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        return in.skipBytes(n);
+    }
+
+    @Override
+    public boolean readBoolean() {
+        return in.readBoolean();
+    }
+
+    @Override
+    public byte readByte() {
+        return in.readByte();
+    }
+
+    @Override
+    public int readUnsignedByte() {
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public short readShort() {
+        return in.readShort();
+    }
+
+    @Override
+    public int readUnsignedShort() {
+        return in.readUnsignedShort();
+    }
+
+    @Override
+    public char readChar() {
+        return in.readChar();
+    }
+
+    @Override
+    public int readInt() {
+        return in.readInt();
+    }
+
+    @Override
+    public long readLong() {
+        return in.readLong();
+    }
+
+    @Override
+    public float readFloat() {
+        return in.readFloat();
+    }
+
+    @Override
+    public double readDouble() {
+        return in.readDouble();
+    }
+
+    @Override
+    public String readLine() {
+        return in.readLine();
+    }
+
+    @Override
+    public String readUTF() {
+        return in.readUTF();
+    }
+}
@@ -18,12 +18,17 @@ package de.themoep.connectorplugin.connector;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import de.themoep.connectorplugin.ConnectorPlugin;
 
-import java.util.Locale;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
@@ -41,27 +46,219 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
     public static final String SERVER_PREFIX = "server:";
     public static final String PLAYER_PREFIX = "player:";
 
+    /**
+     * How many messages with unknown dictionary IDs to keep per sender until its dictionary arrives
+     */
+    private static final int MAX_PARKED_MESSAGES = 128;
+
     private final boolean requiresPlayer;
 
-    private final Table<String, String, BiConsumer<R, Message>> handlers = HashBasedTable.create();
+    protected final FrameCodec codec;
+
+    protected final MessageFragmenter fragmenter;
+
+    protected final ReliableDelivery reliableDelivery;
+
+    protected final PriorityLanes lanes;
+
+    protected final MessageDispatcher dispatcher;
+
+    private final HandlerRegistry<R> handlers = new HandlerRegistry<>();
+
+    private final Cache<String, Deque<ParkedMessage>> parkedMessages = CacheBuilder.newBuilder().expireAfterWrite(30, TimeUnit.SECONDS).build();
+    private volatile long lastAnnouncement = 0;
 
     public Connector(P plugin, boolean requiresPlayer) {
+        this(plugin, requiresPlayer, new FrameCodec());
+    }
+
+    /**
+     * Create a connector
+     * @param plugin            The plugin
+     * @param requiresPlayer    Whether this connector requires a player on the target server
+     * @param codec             The codec to use for the frames sent by this connector
+     */
+    public Connector(P plugin, boolean requiresPlayer, FrameCodec codec) {
+        this(plugin, requiresPlayer, codec, new MessageFragmenter());
+    }
+
+    /**
+     * Create a connector
+     * @param plugin            The plugin
+     * @param requiresPlayer    Whether this connector requires a player on the target server
+     * @param codec             The codec to use for the frames sent by this connector
+     * @param fragmenter        The fragmenter which splits messages that are too big for this connector's frames
+     */
+    public Connector(P plugin, boolean requiresPlayer, FrameCodec codec, MessageFragmenter fragmenter) {
+        this(plugin, requiresPlayer, codec, fragmenter, new ReliableDelivery());
+    }
+
+    /**
+     * Create a connector
+     * @param plugin            The plugin
+     * @param requiresPlayer    Whether this connector requires a player on the target server
+     * @param codec             The codec to use for the frames sent by this connector
+     * @param fragmenter        The fragmenter which splits messages that are too big for this connector's frames
+     * @param reliableDelivery  The delivery which sends messages with {@link DeliveryMode#RELIABLE} until they are acknowledged
+     */
+    public Connector(P plugin, boolean requiresPlayer, FrameCodec codec, MessageFragmenter fragmenter, ReliableDelivery reliableDelivery) {
+        this(plugin, requiresPlayer, codec, fragmenter, reliableDelivery, null);
+    }
+
+    /**
+     * Create a connector
+     * @param plugin            The plugin
+     * @param requiresPlayer    Whether this connector requires a player on the target server
+     * @param codec             The codec to use for the frames sent by this connector
+     * @param fragmenter        The fragmenter which splits messages that are too big for this connector's frames
+     * @param reliableDelivery  The delivery which sends messages with {@link DeliveryMode#RELIABLE} until they are acknowledged
+     * @param lanes             The lanes which send messages by their priority, null to send them on the calling thread
+     */
+    public Connector(P plugin, boolean requiresPlayer, FrameCodec codec, MessageFragmenter fragmenter, ReliableDelivery reliableDelivery, PriorityLanes lanes) {
+        this(plugin, requiresPlayer, codec, fragmenter, reliableDelivery, lanes, new MessageDispatcher(plugin));
+    }
+
+    /**
+     * Create a connector
+     * @param plugin            The plugin
+     * @param requiresPlayer    Whether this connector requires a player on the target server
+     * @param codec             The codec to use for the frames sent by this connector
+     * @param fragmenter        The fragmenter which splits messages that are too big for this connector's frames
+     * @param reliableDelivery  The delivery which sends messages with {@link DeliveryMode#RELIABLE} until they are acknowledged
+     * @param lanes             The lanes which send messages by their priority, null to send them on the calling thread
+     * @param dispatcher        The dispatcher which runs the handlers of received messages
+     */
+    public Connector(P plugin, boolean requiresPlayer, FrameCodec codec, MessageFragmenter fragmenter, ReliableDelivery reliableDelivery, PriorityLanes lanes, MessageDispatcher dispatcher) {
         this.plugin = plugin;
         this.requiresPlayer = requiresPlayer;
+        this.codec = codec;
+        this.fragmenter = fragmenter;
+        this.reliableDelivery = reliableDelivery;
+        this.lanes = lanes;
+        this.dispatcher = dispatcher;
         plugin.logInfo("Using " + getClass().getSimpleName().replace("Connector", "") + " messenger");
         if (requiresPlayer) {
             plugin.logWarning("This messenger type requires at least one player connected to the sending and receiving server,"
                     + " some functionality might not work the best!"
                     + " Please consider using a different messenger type.");
         }
+        if (codec.isCompact()) {
+            plugin.logInfo("Using compact frames with a dictionary of up to " + codec.getDictionary().getMaxSize() + " strings");
+        }
+
+        registerControlHandler(FrameCodec.DICTIONARY_ACTION, (r, message) -> {
+            String sender = message.getSendingServer();
+            if (sender.equals(plugin.getServerName())) {
+                return;
+            }
+            try {
+                codec.getDictionary().readAnnouncement(sender, message.getDataBuffer());
+            } catch (IllegalArgumentException e) {
+                plugin.logError("Error while reading dictionary of " + sender + "!", e);
+                return;
+            }
+            Deque<ParkedMessage> parked = parkedMessages.asMap().remove(sender);
+            if (parked != null) {
+                synchronized (parked) {
+                    for (ParkedMessage parkedMessage : parked) {
+                        if (codec.isResolvable(parkedMessage.message)) {
+                            handle(parkedMessage.receiver, parkedMessage.message);
+                        } else {
+                            plugin.logDebug("Dropping message from " + sender + " as it uses an unknown dictionary session");
+                        }
+                    }
+                }
+            }
+        });
+
+        registerControlHandler(FrameCodec.DICTIONARY_REQUEST_ACTION, (r, message) -> {
+            String sender = message.getSendingServer();
+            if (!sender.equals(plugin.getServerName())) {
+                sendControlMessage(
+                        sender.startsWith(PROXY_ID_PREFIX) ? MessageTarget.PROXY : MessageTarget.SERVER,
+                        sender,
+                        FrameCodec.DICTIONARY_ACTION,
+                        codec.getDictionary().createAnnouncement()
+                );
+            }
+        });
+
+        registerControlHandler(MessageFragmenter.FRAGMENT_ACTION, (r, message) -> {
+            Message reassembled;
+            try {
+                reassembled = fragmenter.add(message);
+            } catch (IllegalArgumentException e) {
+                plugin.logWarning("Unable to reassemble message from " + message.getSendingServer() + ": " + e.getMessage());
+                return;
+            }
+            if (reassembled != null) {
+                handle(r, reassembled);
+            }
+        });
+
+        registerControlHandler(ReliableDelivery.MESSAGE_ACTION, (r, envelope) -> {
+            String sender = envelope.getSendingServer();
+            Message message;
+            try {
+                message = reliableDelivery.receive(envelope, ack -> sendControlMessage(
+                        sender.startsWith(PROXY_ID_PREFIX) ? MessageTarget.PROXY : MessageTarget.SERVER,
+                        sender,
+                        ReliableDelivery.ACK_ACTION,
+                        ack
+                ));
+            } catch (IllegalArgumentException e) {
+                plugin.logWarning("Unable to read reliable message from " + sender + ": " + e.getMessage());
+                return;
+            }
+            if (message != null) {
+                handle(r, message);
+            } else {
+                plugin.logDebug("Dropping duplicate reliable message from " + sender);
+            }
+        });
+
+        registerControlHandler(ReliableDelivery.ACK_ACTION, (r, message) -> {
+            try {
+                reliableDelivery.acknowledge(message);
+            } catch (IllegalArgumentException e) {
+                plugin.logWarning("Unable to read acknowledgement from " + message.getSendingServer() + ": " + e.getMessage());
+            }
+        });
     }
 
     protected void handle(String receiver, Message message) {
-        if (isThis(receiver)) {
+        if (isRelevant(receiver, message) && isThis(receiver)) {
             handle(getReceiver(receiver), message);
         }
     }
 
+    /**
+     * Check whether a received message might be relevant for us by only looking at its envelope and sender.
+     * This doesn't access any player or server state and is therefore safe to call from the connection's thread
+     * to drop foreign messages before their content is decoded or they are passed to another thread.
+     * @param receiver  The receiver data of the message's envelope
+     * @param message   The message
+     * @return Whether the message could be meant for us, false if it definitely isn't
+     */
+    protected boolean isRelevant(String receiver, Message message) {
+        if (receiver != null && receiver.startsWith(SERVER_PREFIX)
+                && !plugin.getServerName().equals(receiver.substring(SERVER_PREFIX.length()))) {
+            return false;
+        }
+
+        if (message.getTarget().getType() != plugin.getSourceType()) {
+            return false;
+        }
+
+        switch (message.getTarget()) {
+            case OTHERS_WITH_PLAYERS:
+            case OTHERS_QUEUE:
+            case OTHER_PROXIES:
+                return !message.getSendingServer().equals(plugin.getServerName());
+        }
+        return true;
+    }
+
     protected void handle(R receiver, Message message) {
         if (message.getTarget().getType() != plugin.getSourceType()) {
             return;
@@ -77,6 +274,11 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
                 break;
         }
 
+        if (!codec.isResolvable(message)) {
+            park(receiver, message);
+            return;
+        }
+
         // If message group is empty then this should reach all, also targeting specific servers/proxies is always allowed
         if (!message.getGroup().isEmpty() && message.getTarget() != MessageTarget.SERVER && message.getTarget() != MessageTarget.PROXY) {
             // Check group
@@ -87,14 +289,120 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
             }
         }
 
-        BiConsumer<R, Message> handler = handlers.get(message.getSendingPlugin().toLowerCase(Locale.ROOT), message.getAction());
-        if (handler != null) {
-            handler.accept(receiver, message);
+        HandlerRegistry.Registration<R> registration = handlers.get(message.getSendingPlugin(), message.getAction());
+        if (registration != null) {
+            dispatcher.dispatch(registration.getPolicy(), registration.getKey(), registration.getHandler(), receiver, message);
         } else {
             plugin.logDebug("Plugin '" + message.getSendingPlugin() + " did not register an action '" + message.getAction() + "' but we received data with target '" + message.getTarget() + "' by " + receiver);
         }
     }
 
+    /**
+     * Keep a message which uses dictionary IDs that we don't know yet until the sender's dictionary arrives
+     * @param receiver  The receiver of the message
+     * @param message   The message
+     */
+    private void park(R receiver, Message message) {
+        String sender = message.getSendingServer();
+        Deque<ParkedMessage> parked;
+        try {
+            parked = parkedMessages.get(sender, () -> {
+                plugin.logDebug("Received message from " + sender + " with unknown dictionary IDs, requesting dictionary");
+                sendControlMessage(
+                        sender.startsWith(PROXY_ID_PREFIX) ? MessageTarget.PROXY : MessageTarget.SERVER,
+                        sender,
+                        FrameCodec.DICTIONARY_REQUEST_ACTION,
+                        new byte[0]
+                );
+                return new ArrayDeque<>();
+            });
+        } catch (ExecutionException e) {
+            plugin.logError("Error while parking message from " + sender, e);
+            return;
+        }
+        synchronized (parked) {
+            if (parked.size() >= MAX_PARKED_MESSAGES) {
+                parked.removeFirst();
+                plugin.logDebug("Too many messages with unknown dictionary IDs from " + sender + ", dropping the oldest one");
+            }
+            parked.add(new ParkedMessage(receiver, message));
+        }
+    }
+
+    /**
+     * Announce the dictionary of this connector's codec to all servers and proxies.
+     * This is done automatically when new strings got added to it but calling it on startup
+     * allows others to resolve our messages right away.
+     */
+    public void announceDictionary() {
+        if (!codec.isCompact()) {
+            return;
+        }
+        lastAnnouncement = System.currentTimeMillis();
+        byte[] announcement = codec.getDictionary().createAnnouncement();
+        for (MessageTarget target : new MessageTarget[]{MessageTarget.ALL_QUEUE, MessageTarget.ALL_PROXIES}) {
+            try {
+                sendControlMessage(target, null, FrameCodec.DICTIONARY_ACTION, announcement);
+            } catch (UnsupportedOperationException e) {
+                plugin.logDebug("Unable to announce dictionary to " + target + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Send a message of the connector itself. These are never restricted to a group.
+     */
+    private void sendControlMessage(MessageTarget target, String targetData, String action, byte[] data) {
+        sendMessage(targetData, new Message("", target, plugin.getServerName(), plugin.getName(), action, data));
+    }
+
+    /**
+     * Send a message and split it into fragments first if it is too big for a single frame of this connector
+     * @param targetData    Additional data to use for sending
+     * @param message       The message to send
+     */
+    private void sendMessage(Object targetData, Message message) {
+        if (lanes != null) {
+            // The lanes send on their own thread, unsupported targets have to be rejected before for the caller to notice
+            checkSupported(targetData, message);
+        }
+        int maxFrameSize = fragmenter.getMaxFrameSize() > 0 ? fragmenter.getMaxFrameSize() : getDefaultMaxFrameSize();
+        List<Message> fragments = maxFrameSize > 0 ? fragmenter.split(message, plugin.getName(), maxFrameSize) : null;
+        if (fragments == null) {
+            dispatch(targetData, message);
+            return;
+        }
+        plugin.logDebug("Splitting " + message.getDataLength() + " bytes of " + message.getSendingPlugin() + ":" + message.getAction() + " into " + fragments.size() + " fragments");
+        for (Message fragment : fragments) {
+            dispatch(targetData, fragment);
+        }
+    }
+
+    /**
+     * Send a single frame right away or queue it in the lane of its priority
+     * @param targetData    Additional data to use for sending
+     * @param message       The message to send
+     */
+    private void dispatch(Object targetData, Message message) {
+        if (lanes == null) {
+            sendDataImplementation(targetData, message);
+            return;
+        }
+        MessagePriority priority = MessagePriority.of(plugin.getName(), message);
+        if (!lanes.send(priority, () -> sendDataImplementation(targetData, message))) {
+            plugin.logDebug("Lane for " + priority + " messages is full, dropping " + message.getSendingPlugin() + ":" + message.getAction());
+        }
+    }
+
+    /**
+     * The maximum size of a frame which this connector can send when none was configured.
+     * Messages with more data get split into several fragments.
+     * @return The maximum size in bytes or 0 if frames of any size can be sent
+     */
+    protected int getDefaultMaxFrameSize() {
+        return 0;
+    }
+
     /**
      * Send data to a specific target
      * @param sender    The plugin which sends the data
@@ -106,6 +414,18 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
         sendData(sender, action, target, (String) null, data);
     }
 
+    /**
+     * Send data to a specific target
+     * @param sender    The plugin which sends the data
+     * @param action    The action for which data is sent
+     * @param target    Where to send data to
+     * @param data      The data
+     * @param priority  The priority with which to send the data, null to use the default of the sender
+     */
+    public void sendData(ConnectingPlugin sender, String action, MessageTarget target, byte[] data, MessagePriority priority) {
+        sendDataInternal(sender, action, target, null, data, priority, DeliveryMode.FIRE_AND_FORGET);
+    }
+
     /**
      * Send data to a specific target
      * @param sender    The plugin which sends the data
@@ -118,6 +438,33 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
         sendDataInternal(sender, action, target, player, data);
     }
 
+    /**
+     * Send data to a specific target
+     * @param sender    The plugin which sends the data
+     * @param action    The action for which data is sent
+     * @param target    Where to send data to
+     * @param player    Additional player data to use for sending (required in case the target is {@link MessageTarget#SERVER} or {@link MessageTarget#PROXY})
+     * @param data      The data
+     * @param delivery  How to deliver the data
+     */
+    public void sendData(ConnectingPlugin sender, String action, MessageTarget target, R player, byte[] data, DeliveryMode delivery) {
+        sendDataInternal(sender, action, target, player, data, delivery);
+    }
+
+    /**
+     * Send data to a specific target
+     * @param sender    The plugin which sends the data
+     * @param action    The action for which data is sent
+     * @param target    Where to send data to
+     * @param player    Additional player data to use for sending (required in case the target is {@link MessageTarget#SERVER} or {@link MessageTarget#PROXY})
+     * @param data      The data
+     * @param priority  The priority with which to send the data, null to use the default of the sender
+     * @param delivery  How to deliver the data
+     */
+    public void sendData(ConnectingPlugin sender, String action, MessageTarget target, R player, byte[] data, MessagePriority priority, DeliveryMode delivery) {
+        sendDataInternal(sender, action, target, player, data, priority, delivery);
+    }
+
     /**
      * Send data to a specific target
      * @param sender        The plugin which sends the data
@@ -130,17 +477,91 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
         sendDataInternal(sender, action, target, targetData, data);
     }
 
+    /**
+     * Send data to a specific target
+     * @param sender        The plugin which sends the data
+     * @param action        The action for which data is sent
+     * @param target        Where to send data to
+     * @param targetData    Additional data to use for sending (required in case the target is {@link MessageTarget#SERVER})
+     * @param data          The data
+     * @param delivery      How to deliver the data
+     */
+    public void sendData(ConnectingPlugin sender, String action, MessageTarget target, String targetData, byte[] data, DeliveryMode delivery) {
+        sendDataInternal(sender, action, target, targetData, data, delivery);
+    }
+
+    /**
+     * Send data to a specific target
+     * @param sender        The plugin which sends the data
+     * @param action        The action for which data is sent
+     * @param target        Where to send data to
+     * @param targetData    Additional data to use for sending (required in case the target is {@link MessageTarget#SERVER})
+     * @param data          The data
+     * @param priority      The priority with which to send the data, null to use the default of the sender
+     * @param delivery      How to deliver the data
+     */
+    public void sendData(ConnectingPlugin sender, String action, MessageTarget target, String targetData, byte[] data, MessagePriority priority, DeliveryMode delivery) {
+        sendDataInternal(sender, action, target, targetData, data, priority, delivery);
+    }
+
     public void sendDataInternal(ConnectingPlugin sender, String action, MessageTarget target, Object targetData, byte[] data) {
+        sendDataInternal(sender, action, target, targetData, data, DeliveryMode.FIRE_AND_FORGET);
+    }
+
+    public void sendDataInternal(ConnectingPlugin sender, String action, MessageTarget target, Object targetData, byte[] data, DeliveryMode delivery) {
+        sendDataInternal(sender, action, target, targetData, data, null, delivery);
+    }
+
+    public void sendDataInternal(ConnectingPlugin sender, String action, MessageTarget target, Object targetData, byte[] data, MessagePriority priority, DeliveryMode delivery) {
         if (target.getSource() != null && target.getSource() != plugin.getSourceType()) {
             throw new UnsupportedOperationException("Cannot send message with target " + target + " from " + plugin.getSourceType());
         }
 
+        if (codec.isCompact() && codec.getDictionary().hasPending() && System.currentTimeMillis() - lastAnnouncement > 1000) {
+            announceDictionary();
+        }
+
         String group = plugin.getGroup(sender.getName());
-        sendDataImplementation(targetData, new Message(group, target, plugin.getServerName(), sender.getName(), action, data));
+        // The message might only get written later so the sender must be able to reuse its array right away
+        byte[] dataCopy = data != null ? Arrays.copyOf(data, data.length) : null;
+        Message message = new Message(group, target, plugin.getServerName(), sender.getName(), action, dataCopy).setPriority(priority);
+        if (delivery == DeliveryMode.RELIABLE && reliableDelivery.isEnabled()
+                && (target == MessageTarget.SERVER || target == MessageTarget.PROXY)) {
+            reliableDelivery.send(message, plugin.getName(), envelope -> sendMessage(targetData, envelope), m -> plugin.logWarning(
+                    "Giving up on sending " + m.getSendingPlugin() + ":" + m.getAction() + " to " + targetData + " as it was never acknowledged"));
+        } else {
+            sendMessage(targetData, message);
+        }
     }
 
     protected abstract void sendDataImplementation(Object targetData, Message message);
 
+    /**
+     * Check whether a message can be sent to its target before it is queued in the {@link PriorityLanes}.
+     * Connectors which throw an {@link UnsupportedOperationException} in {@link #sendDataImplementation(Object, Message)}
+     * have to throw it here too as the lanes send messages on their own thread where the caller can't catch it.
+     * @param targetData    Additional data to use for sending
+     * @param message       The message to send
+     * @throws UnsupportedOperationException if this connector can't send the message to its target
+     */
+    protected void checkSupported(Object targetData, Message message) {
+        // All targets are supported by default
+    }
+
+    /**
+     * Get the single server or proxy which a message that is sent with the given target data will be handled by
+     * @param targetData    The prefixed target data of the message
+     * @param message       The message
+     * @return The name of the server or the ID of the proxy, null if it can't be determined or the message is meant for several
+     */
+    protected String getDestination(String targetData, Message message) {
+        if ((message.getTarget() == MessageTarget.SERVER || message.getTarget() == MessageTarget.PROXY)
+                && targetData != null && targetData.startsWith(SERVER_PREFIX)) {
+            return targetData.substring(SERVER_PREFIX.length());
+        }
+        return null;
+    }
+
     protected boolean hasPrefix(String target) {
         return target.startsWith(SERVER_PREFIX) || target.startsWith(PLAYER_PREFIX);
     }
@@ -225,7 +646,28 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
      * @since 1.5
      */
     public BiConsumer<R, Message> registerMessageHandler(ConnectingPlugin plugin, String action, BiConsumer<R, Message> handler) {
-        return handlers.put(plugin.getName().toLowerCase(Locale.ROOT), action, handler);
+        return registerMessageHandler(plugin, action, handler, null);
+    }
+
+    /**
+     * Register a handler for a certain message
+     * @param plugin    The plugin to register the handler for
+     * @param action    The action to register (case sensitive)
+     * @param handler   A BiConsumer which takes the receiving player and the Message
+     * @param policy    Where to run the handler, null to use the configured default
+     * @return The previously registered handler if there was one
+     */
+    public BiConsumer<R, Message> registerMessageHandler(ConnectingPlugin plugin, String action, BiConsumer<R, Message> handler, DispatchPolicy policy) {
+        codec.getDictionary().add(plugin.getName());
+        codec.getDictionary().add(action);
+        return getHandler(handlers.put(plugin.getName(), action, handler, policy != null ? dispatcher.resolve(policy) : null));
+    }
+
+    /**
+     * Register a handler for a message of the connector itself, these always run on the receiving thread
+     */
+    private void registerControlHandler(String action, BiConsumer<R, Message> handler) {
+        registerMessageHandler(plugin, action, handler, DispatchPolicy.INLINE);
     }
 
     /**
@@ -236,7 +678,7 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
      * @since 1.5
      */
     public BiConsumer<R, Message> unregisterMessageHandler(ConnectingPlugin plugin, String action) {
-        return handlers.remove(plugin.getName().toLowerCase(Locale.ROOT), action);
+        return getHandler(handlers.remove(plugin.getName(), action));
     }
 
     /**
@@ -246,7 +688,56 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
      * @since 1.5
      */
     public Map<String, BiConsumer<R, Message>> unregisterMessageHandlers(ConnectingPlugin plugin) {
-        return handlers.rowMap().remove(plugin.getName().toLowerCase(Locale.ROOT));
+        Map<String, HandlerRegistry.Registration<R>> registrations = handlers.removeAll(plugin.getName());
+        if (registrations == null) {
+            return null;
+        }
+        return registrations.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getHandler()));
+    }
+
+    private BiConsumer<R, Message> getHandler(HandlerRegistry.Registration<R> registration) {
+        return registration != null ? registration.getHandler() : null;
+    }
+
+    /**
+     * Get the codec which is used to encode and decode the frames sent by this connector
+     * @return The frame codec
+     */
+    public FrameCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get the fragmenter which splits and reassembles messages that are too big for a single frame
+     * @return The message fragmenter
+     */
+    public MessageFragmenter getFragmenter() {
+        return fragmenter;
+    }
+
+    /**
+     * Get the delivery which sends messages with {@link DeliveryMode#RELIABLE} until they are acknowledged
+     * @return The reliable delivery
+     */
+    public ReliableDelivery getReliableDelivery() {
+        return reliableDelivery;
+    }
+
+    /**
+     * Get the lanes which send messages by their priority
+     * @return The priority lanes or null if messages are sent on the calling thread
+     */
+    public PriorityLanes getPriorityLanes() {
+        return lanes;
+    }
+
+    /**
+     * Get the dispatcher which runs the handlers of received messages
+     * @return The message dispatcher
+     */
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     /**
@@ -257,5 +748,21 @@ public abstract class Connector<P extends ConnectorPlugin, R> {
         return requiresPlayer;
     }
 
-    public void close() {};
+    public void close() {
+        reliableDelivery.close();
+        if (lanes != null) {
+            lanes.close();
+        }
+        dispatcher.close();
+    }
+
+    private class ParkedMessage {
+        private final R receiver;
+        private final Message message;
+
+        private ParkedMessage(R receiver, Message message) {
+            this.receiver = receiver;
+            this.message = message;
+        }
+    }
 }
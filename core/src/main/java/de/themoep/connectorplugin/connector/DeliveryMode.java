@@ -0,0 +1,35 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How a message gets delivered to its target
+ */
+public enum DeliveryMode {
+    /**
+     * The message is sent once, if it gets lost on the way it is never received
+     */
+    FIRE_AND_FORGET,
+    /**
+     * The message gets an ID and is sent again until the receiver acknowledged it, receivers drop duplicates.
+     * Only messages which are handled by a single server or proxy ({@link MessageTarget#SERVER} and
+     * {@link MessageTarget#PROXY}) can be acknowledged, others are sent fire-and-forget.
+     */
+    RELIABLE
+}
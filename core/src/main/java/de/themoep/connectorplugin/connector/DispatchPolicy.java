@@ -0,0 +1,55 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Locale;
+
+/**
+ * Where the handler of a received message is run
+ */
+public enum DispatchPolicy {
+    /**
+     * Directly on the thread which received the message, e.g. the connection's thread or the server thread
+     */
+    INLINE,
+    /**
+     * On a queue of the handler's plugin which is run by a shared thread pool. Messages for the same plugin are
+     * handled one after another in the order they arrived, a slow plugin doesn't hold up the others.
+     */
+    ORDERED,
+    /**
+     * On a new virtual thread for every message. Requires Java 21 or newer, falls back to {@link #ORDERED} otherwise.
+     */
+    VIRTUAL_THREAD,
+    /**
+     * Batched on the main thread of the server with a time budget per tick. Only available on Bukkit,
+     * falls back to {@link #INLINE} on proxies.
+     */
+    MAIN_THREAD;
+
+    /**
+     * Get a policy by its name as used in configs, e.g. "virtual-thread"
+     * @param name  The name
+     * @return The policy
+     * @throws IllegalArgumentException if there is no policy with that name
+     */
+    public static DispatchPolicy fromConfig(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -0,0 +1,478 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Transport which sends messages through a primary transport and switches to a secondary one while the primary
+ * is unhealthy. The health of both is checked by sending probes to ourselves through them, a transport is
+ * unhealthy if the 99th percentile of the probes' round trip time or the rate of lost probes and failed sends
+ * is above the configured thresholds.
+ * <p>
+ * Messages are wrapped into an envelope with an ID so that receivers can drop the duplicates which occur
+ * when both transports are used at the same time after a switch or when a recovered transport delivers
+ * messages that it buffered while it was down.
+ */
+public class FailoverTransport implements MessageTransport {
+
+    /**
+     * The action of the envelope around messages
+     */
+    public static final String ENVELOPE_ACTION = "failover";
+
+    /**
+     * The action of the health probes
+     */
+    public static final String PROBE_ACTION = "failover_probe";
+
+    private final ConnectorPlugin plugin;
+    private final FrameCodec codec;
+    private final Member[] members;
+    private final long maxP99Latency;
+    private final double maxErrorRate;
+    private final int recoveryProbes;
+    private final long overlap;
+    private final int dedupeWindow;
+    private final BiConsumer<String, Message> onMessage;
+
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Cache<String, DedupeWindow> dedupeWindows = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
+    private final ScheduledExecutorService prober;
+
+    private final AtomicLong switches = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private volatile int active = 0;
+    private volatile long overlapEnd = System.nanoTime();
+
+    /**
+     * Create a failover transport
+     * @param plugin            The plugin
+     * @param codec             The codec of the frames inside the envelopes
+     * @param primaryName       The name of the primary transport
+     * @param primary           Creates the primary transport from the codec of the envelopes and the handler of received envelopes
+     * @param secondaryName     The name of the secondary transport
+     * @param secondary         Creates the secondary transport from the codec of the envelopes and the handler of received envelopes
+     * @param probeInterval     The interval in milliseconds in which probes are sent, a probe which didn't return before the next one is lost
+     * @param probeWindow       The amount of recent probes and failed sends from which the latency and error rate are calculated
+     * @param maxP99Latency     The maximum 99th percentile of the probes' round trip time in milliseconds of a healthy transport
+     * @param maxErrorRate      The maximum rate between 0 and 1 of lost probes and failed sends of a healthy transport
+     * @param recoveryProbes    The amount of probes which the primary transport has to return in a row to switch back to it
+     * @param overlap           The time in milliseconds after a switch in which messages are sent through both transports
+     * @param dedupeWindow      The amount of recent message IDs per sender which are remembered to drop duplicates
+     * @param onMessage         Handler for received messages which takes the receiver data and the message
+     * @throws IllegalArgumentException if neither transport could be created
+     */
+    public FailoverTransport(ConnectorPlugin plugin, FrameCodec codec,
+                             String primaryName, BiFunction<FrameCodec, BiConsumer<String, Message>, MessageTransport> primary,
+                             String secondaryName, BiFunction<FrameCodec, BiConsumer<String, Message>, MessageTransport> secondary,
+                             long probeInterval, int probeWindow, long maxP99Latency, double maxErrorRate, int recoveryProbes,
+                             long overlap, int dedupeWindow, BiConsumer<String, Message> onMessage) {
+        this.plugin = plugin;
+        this.codec = codec;
+        this.maxP99Latency = TimeUnit.MILLISECONDS.toNanos(maxP99Latency);
+        this.maxErrorRate = maxErrorRate;
+        this.recoveryProbes = recoveryProbes;
+        this.overlap = TimeUnit.MILLISECONDS.toNanos(overlap);
+        this.dedupeWindow = Math.max(dedupeWindow, 64);
+        this.onMessage = onMessage;
+
+        // The envelopes only need their routing information, the wrapped frame is already compact and compressed
+        FrameCodec envelopeCodec = new FrameCodec(true, 0);
+        members = new Member[]{
+                new Member(primaryName, Math.max(probeWindow, 1)),
+                new Member(secondaryName, Math.max(probeWindow, 1))
+        };
+        members[0].transport = create(members[0], primary, envelopeCodec);
+        members[1].transport = create(members[1], secondary, envelopeCodec);
+        if (members[0].transport == null && members[1].transport == null) {
+            throw new IllegalArgumentException("Unable to create " + primaryName + " or " + secondaryName + " transport!");
+        } else if (members[0].transport == null) {
+            active = 1;
+        }
+
+        prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, plugin.getName() + " failover prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleAtFixedRate(this::probe, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private MessageTransport create(Member member, BiFunction<FrameCodec, BiConsumer<String, Message>, MessageTransport> factory, FrameCodec envelopeCodec) {
+        try {
+            return factory.apply(envelopeCodec, (receiver, message) -> receive(member, receiver, message));
+        } catch (RuntimeException e) {
+            plugin.logError("Unable to create " + member.name + " transport, only using the other one!", e);
+            return null;
+        }
+    }
+
+    private void receive(Member member, String receiver, Message message) {
+        try {
+            if (!plugin.getName().equals(message.getSendingPlugin())) {
+                // Not sent through a failover transport, nothing to unwrap
+                onMessage.accept(receiver, message);
+                return;
+            }
+            if (PROBE_ACTION.equals(message.getAction())) {
+                if (plugin.getServerName().equals(message.getSendingServer())) {
+                    ByteBuffer in = message.getDataBuffer();
+                    member.probeReturned(in.getLong(), System.nanoTime() - in.getLong());
+                }
+                return;
+            }
+            if (!ENVELOPE_ACTION.equals(message.getAction())) {
+                onMessage.accept(receiver, message);
+                return;
+            }
+
+            ByteBuffer in = message.getDataBuffer();
+            long senderEpoch = in.getLong();
+            long id = in.getLong();
+            DedupeWindow window = dedupeWindows.asMap().computeIfAbsent(message.getSendingServer() + "/" + senderEpoch, k -> new DedupeWindow(dedupeWindow));
+            if (!window.accept(id)) {
+                duplicates.incrementAndGet();
+                return;
+            }
+            FrameCodec.Frame frame = codec.decode(in.slice());
+            onMessage.accept(frame.getTarget(), frame.getMessage());
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            plugin.logError("Error while unwrapping message received through " + member.name + "! ", e);
+        } catch (VersionMismatchException e) {
+            plugin.logWarning(e.getMessage() + ". Ignoring message!");
+        }
+    }
+
+    /**
+     * Send a message through the active transport, or both of them shortly after a switch
+     * @param targetData    The target data of the message
+     * @param message       The message
+     * @param destination   The only server or proxy which should handle the message or null if it should be broadcast
+     */
+    @Override
+    public void sendMessage(String targetData, Message message, String destination) {
+        FrameCodec.PreparedFrame frame = codec.prepare(targetData, message);
+        ByteBuffer data = ByteBuffer.allocate(16 + frame.getLength());
+        data.putLong(epoch);
+        data.putLong(sequence.incrementAndGet());
+        frame.writeTo(data);
+        Message envelope = new Message("", message.getTarget(), message.getSendingServer(), plugin.getName(), ENVELOPE_ACTION, data.array());
+
+        int first = active;
+        if (!send(members[first], targetData, envelope, destination) || System.nanoTime() - overlapEnd < 0) {
+            send(members[1 - first], targetData, envelope, destination);
+        }
+    }
+
+    private boolean send(Member member, String targetData, Message message, String destination) {
+        if (member.transport == null) {
+            return false;
+        }
+        try {
+            member.transport.sendMessage(targetData, message, destination);
+            return true;
+        } catch (RuntimeException e) {
+            member.failure();
+            plugin.logDebug("Unable to send message through " + member.name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void probe() {
+        try {
+            MessageTarget target = plugin.getSourceType() == MessageTarget.Type.PROXY ? MessageTarget.PROXY : MessageTarget.SERVER;
+            String targetData = Connector.SERVER_PREFIX + plugin.getServerName();
+            for (Member member : members) {
+                if (member.transport == null) {
+                    continue;
+                }
+                long id = member.nextProbe();
+                ByteBuffer data = ByteBuffer.allocate(16);
+                data.putLong(id);
+                data.putLong(System.nanoTime());
+                send(member, targetData, new Message("", target, plugin.getServerName(), plugin.getName(), PROBE_ACTION, data.array()), plugin.getServerName());
+            }
+            evaluate();
+        } catch (RuntimeException e) {
+            plugin.logError("Error while probing the failover transports!", e);
+        }
+    }
+
+    private void evaluate() {
+        Member primary = members[0];
+        Member secondary = members[1];
+        if (active == 0) {
+            if (!primary.isHealthy() && secondary.isHealthy()) {
+                switchTo(1, primary.name + " is unhealthy (" + primary + ")");
+            }
+        } else if (primary.isHealthy() && primary.getSuccessesInRow() >= recoveryProbes) {
+            switchTo(0, primary.name + " is healthy again (" + primary + ")");
+        }
+    }
+
+    private void switchTo(int index, String reason) {
+        overlapEnd = System.nanoTime() + overlap;
+        active = index;
+        switches.incrementAndGet();
+        plugin.logWarning("Switching to " + members[index].name + " transport as " + reason);
+    }
+
+    /**
+     * Get the transport which messages are currently sent through
+     * @return The active member
+     */
+    public Member getActive() {
+        return members[active];
+    }
+
+    /**
+     * Get the primary transport
+     * @return The primary member
+     */
+    public Member getPrimary() {
+        return members[0];
+    }
+
+    /**
+     * Get the secondary transport
+     * @return The secondary member
+     */
+    public Member getSecondary() {
+        return members[1];
+    }
+
+    /**
+     * Get how often the active transport was switched
+     * @return The amount of switches
+     */
+    public long getSwitches() {
+        return switches.get();
+    }
+
+    /**
+     * Get the amount of received messages which were dropped as they were already received before
+     * @return The amount of duplicates
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @Override
+    public void close() {
+        prober.shutdownNow();
+        for (Member member : members) {
+            if (member.transport != null) {
+                member.transport.close();
+            }
+        }
+    }
+
+    /**
+     * One of the transports and its health
+     */
+    public class Member {
+        private final String name;
+        private volatile MessageTransport transport;
+
+        private final long[] samples;
+        private int nextSample = 0;
+        private int sampleCount = 0;
+        private int successesInRow = 0;
+        private long pendingProbe = -1;
+        private long probes = 0;
+
+        private Member(String name, int window) {
+            this.name = name;
+            this.samples = new long[window];
+        }
+
+        private synchronized long nextProbe() {
+            if (pendingProbe > -1) {
+                // Didn't return in time
+                addSample(-1);
+            }
+            pendingProbe = ++probes;
+            return pendingProbe;
+        }
+
+        private synchronized void probeReturned(long id, long roundTrip) {
+            if (id == pendingProbe) {
+                pendingProbe = -1;
+                addSample(roundTrip);
+            }
+        }
+
+        private synchronized void failure() {
+            addSample(-1);
+        }
+
+        private void addSample(long sample) {
+            samples[nextSample] = sample;
+            nextSample = (nextSample + 1) % samples.length;
+            sampleCount = Math.min(sampleCount + 1, samples.length);
+            successesInRow = sample > -1 ? successesInRow + 1 : 0;
+        }
+
+        /**
+         * Get the name of this transport
+         * @return The name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the transport
+         * @return The transport or null if it couldn't be created
+         */
+        public MessageTransport getTransport() {
+            return transport;
+        }
+
+        /**
+         * Get the rate of lost probes and failed sends within the recent samples
+         * @return The error rate between 0 and 1
+         */
+        public synchronized double getErrorRate() {
+            if (sampleCount == 0) {
+                return 0;
+            }
+            int errors = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                if (samples[i] < 0) {
+                    errors++;
+                }
+            }
+            return (double) errors / sampleCount;
+        }
+
+        /**
+         * Get the 99th percentile of the round trip time of the recent probes which returned
+         * @return The latency in microseconds
+         */
+        public synchronized long getP99Latency() {
+            long[] roundTrips = new long[sampleCount];
+            int count = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                if (samples[i] > -1) {
+                    roundTrips[count++] = samples[i];
+                }
+            }
+            if (count == 0) {
+                return 0;
+            }
+            Arrays.sort(roundTrips, 0, count);
+            return roundTrips[Math.max((int) Math.ceil(count * 0.99) - 1, 0)] / 1000;
+        }
+
+        /**
+         * Get the amount of probes which returned in time in a row
+         * @return The amount of successful probes since the last error
+         */
+        public synchronized int getSuccessesInRow() {
+            return successesInRow;
+        }
+
+        /**
+         * Check whether this transport is healthy
+         * @return Whether it exists and its latency and error rate are below the thresholds
+         */
+        public boolean isHealthy() {
+            return transport != null && getErrorRate() <= maxErrorRate && getP99Latency() * 1000 <= maxP99Latency;
+        }
+
+        @Override
+        public String toString() {
+            return "p99=" + getP99Latency() + "us, errors=" + Math.round(getErrorRate() * 100) + "%";
+        }
+    }
+
+    /**
+     * Remembers the IDs of the recently received messages of one sender
+     */
+    private static class DedupeWindow {
+        private final long[] bits;
+        private final int size;
+        private long highest = 0;
+
+        private DedupeWindow(int size) {
+            this.size = (size + 63) / 64 * 64;
+            this.bits = new long[this.size / 64];
+        }
+
+        /**
+         * Check whether a message should be accepted and remember its ID
+         * @param id    The ID of the message
+         * @return Whether it wasn't received before, IDs which are too old to tell are always accepted
+         */
+        private synchronized boolean accept(long id) {
+            if (id > highest) {
+                if (id - highest >= size) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long i = highest + 1; i < id; i++) {
+                        clear(i);
+                    }
+                }
+                highest = id;
+                set(id);
+                return true;
+            }
+            if (highest - id >= size) {
+                return true;
+            }
+            if (isSet(id)) {
+                return false;
+            }
+            set(id);
+            return true;
+        }
+
+        private boolean isSet(long id) {
+            int index = (int) (id % size);
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        private void set(long id) {
+            int index = (int) (id % size);
+            bits[index >>> 6] |= 1L << index;
+        }
+
+        private void clear(long id) {
+            int index = (int) (id % size);
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Encodes and decodes the frames that get sent over the different connectors.
+ * A frame consists of the envelope (group and target data) and the actual {@link Message}.
+ * Encoding writes all of it in a single pass into one exactly sized array,
+ * decoding only creates views of the received data instead of copying it.
+ * <p>
+ * Two formats exist: the legacy one (message version 2) which writes every string and length in full
+ * and the compact one (version 3) which uses varints and the {@link StringDictionary} for repeated header strings.
+ * Both can always be read, which one gets written depends on the configuration.
+ * The data of compact frames can additionally be compressed by the {@link PayloadCompression}.
+ */
+public class FrameCodec {
+
+    /**
+     * The first byte of compact frames. Legacy frames start with the length of the group instead
+     * which would need to be longer than 49920 bytes to start with this byte.
+     */
+    private static final byte COMPACT_MAGIC = (byte) 0xC3;
+    public static final int COMPACT_VERSION = 3;
+
+    private static final int FLAG_DICTIONARY = 0x01;
+    private static final int FLAG_COMPRESSED = 0x02;
+
+    /**
+     * Actions which the connector uses to exchange dictionaries. These never get encoded with dictionary IDs.
+     */
+    public static final String DICTIONARY_ACTION = "dictionary";
+    public static final String DICTIONARY_REQUEST_ACTION = "dictionary_request";
+
+    private static final MessageTarget[] TARGETS = MessageTarget.values();
+
+    private final boolean compact;
+    private final StringDictionary dictionary;
+    private final PayloadCompression compression;
+    private final boolean quantizingLocations;
+
+    /**
+     * Create a codec which writes the legacy format
+     */
+    public FrameCodec() {
+        this(false, 256);
+    }
+
+    /**
+     * Create a codec which doesn't compress sent data
+     * @param compact           Whether to write the compact format
+     * @param dictionarySize    The maximum amount of strings in the dictionary of this server
+     */
+    public FrameCodec(boolean compact, int dictionarySize) {
+        this(compact, dictionarySize, new PayloadCompression());
+    }
+
+    /**
+     * Create a codec
+     * @param compact           Whether to write the compact format
+     * @param dictionarySize    The maximum amount of strings in the dictionary of this server
+     * @param compression       The compression to use for the data of compact frames
+     */
+    public FrameCodec(boolean compact, int dictionarySize, PayloadCompression compression) {
+        this(compact, dictionarySize, compression, false);
+    }
+
+    /**
+     * Create a codec
+     * @param compact               Whether to write the compact format
+     * @param dictionarySize        The maximum amount of strings in the dictionary of this server
+     * @param compression           The compression to use for the data of compact frames
+     * @param quantizingLocations   Whether locations in compact bridge messages should be sent with reduced precision
+     */
+    public FrameCodec(boolean compact, int dictionarySize, PayloadCompression compression, boolean quantizingLocations) {
+        this.compact = compact;
+        this.dictionary = new StringDictionary(dictionarySize);
+        this.compression = compression;
+        this.quantizingLocations = quantizingLocations;
+    }
+
+    /**
+     * Whether this codec writes the compact format
+     * @return Whether the compact format is written
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Get the dictionary with the strings of this server and the ones announced by others
+     * @return The dictionary
+     */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Whether locations in compact bridge messages are sent with reduced precision
+     * @return Whether locations are quantized
+     */
+    public boolean isQuantizingLocations() {
+        return compact && quantizingLocations;
+    }
+
+    /**
+     * Get the compression of the data in compact frames
+     * @return The compression
+     */
+    public PayloadCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Encode a message and its envelope into a frame
+     * @param targetData    The target data of the envelope
+     * @param message       The message to encode
+     * @return The encoded frame
+     */
+    public byte[] encode(String targetData, Message message) {
+        return prepare(targetData, message).toByteArray();
+    }
+
+    /**
+     * Prepare the encoding of a message and its envelope. This already calculates the exact size of the frame
+     * so that it can be written directly into a buffer provided by the connection without any intermediate array.
+     * @param targetData    The target data of the envelope
+     * @param message       The message to encode
+     * @return The prepared frame
+     */
+    public PreparedFrame prepare(String targetData, Message message) {
+        String group = message.getGroup() != null ? message.getGroup() : "";
+        String target = targetData != null ? targetData : "";
+        if (compact) {
+            return prepareCompact(group, target, message);
+        }
+        return prepareLegacy(group, target, message);
+    }
+
+    private PreparedFrame prepareLegacy(String group, String target, Message message) {
+        String targetName = message.getTarget().name();
+        int dataLength = message.getDataLength();
+
+        int messageLength = 4
+                + utfLength(targetName)
+                + utfLength(message.getSendingServer())
+                + utfLength(message.getSendingPlugin())
+                + utfLength(message.getAction())
+                + 4 + dataLength;
+
+        return new PreparedFrame(utfLength(group) + utfLength(target) + 4 + messageLength, out -> {
+            writeUTF(out, group);
+            writeUTF(out, target);
+            out.putInt(messageLength);
+            out.putInt(Message.VERSION);
+            writeUTF(out, targetName);
+            writeUTF(out, message.getSendingServer());
+            writeUTF(out, message.getSendingPlugin());
+            writeUTF(out, message.getAction());
+            out.putInt(dataLength);
+            out.put(message.getDataBuffer());
+        });
+    }
+
+    private PreparedFrame prepareCompact(String group, String target, Message message) {
+        boolean useDictionary = !DICTIONARY_ACTION.equals(message.getAction())
+                && !DICTIONARY_REQUEST_ACTION.equals(message.getAction());
+        int groupId = getId(group, useDictionary);
+        int pluginId = getId(message.getSendingPlugin(), useDictionary);
+        int actionId = getId(message.getAction(), useDictionary);
+        boolean hasIds = groupId > -1 || pluginId > -1 || actionId > -1;
+
+        ByteBuffer uncompressed = message.getDataBuffer();
+        ByteBuffer data = uncompressed;
+        int originalLength = -1;
+        if (compression.shouldCompress(message)) {
+            byte[] compressed = compression.compress(uncompressed);
+            if (compressed != null) {
+                originalLength = uncompressed.remaining();
+                data = ByteBuffer.wrap(compressed);
+            }
+        }
+        int dataLength = data.remaining();
+        int compressedFlag = originalLength > -1 ? FLAG_COMPRESSED : 0;
+        int finalOriginalLength = originalLength;
+        ByteBuffer finalData = data;
+
+        return new PreparedFrame(3
+                + (hasIds ? varIntLength(dictionary.getSession()) : 0)
+                + stringLength(target)
+                + 1
+                + stringLength(message.getSendingServer())
+                + dictionaryStringLength(group, groupId)
+                + dictionaryStringLength(message.getSendingPlugin(), pluginId)
+                + dictionaryStringLength(message.getAction(), actionId)
+                + varIntLength(dataLength)
+                + (originalLength > -1 ? varIntLength(originalLength) : 0)
+                + dataLength, out -> {
+            out.put(COMPACT_MAGIC);
+            out.put((byte) COMPACT_VERSION);
+            out.put((byte) ((hasIds ? FLAG_DICTIONARY : 0) | compressedFlag));
+            if (hasIds) {
+                writeVarInt(out, dictionary.getSession());
+            }
+            // Routing information is always written literally so that relays never need a dictionary
+            writeString(out, target);
+            out.put((byte) message.getTarget().ordinal());
+            writeString(out, message.getSendingServer());
+            writeDictionaryString(out, group, groupId);
+            writeDictionaryString(out, message.getSendingPlugin(), pluginId);
+            writeDictionaryString(out, message.getAction(), actionId);
+            writeVarInt(out, dataLength);
+            if (finalOriginalLength > -1) {
+                writeVarInt(out, finalOriginalLength);
+            }
+            out.put(finalData.duplicate());
+        });
+    }
+
+    private int getId(String string, boolean useDictionary) {
+        if (!useDictionary) {
+            return -1;
+        }
+        int id = dictionary.getId(string);
+        if (id < 0) {
+            // Not announced yet, send it literally for now and include it in the next announcement
+            dictionary.add(string);
+        }
+        return id;
+    }
+
+    /**
+     * Decode a frame. The returned message's data is a view of the provided array, so it must not be modified afterwards!
+     * @param frame The frame data
+     * @return The decoded frame
+     * @throws VersionMismatchException When the message was sent by an incompatible version
+     * @throws IllegalArgumentException When the frame is malformed
+     */
+    public Frame decode(byte[] frame) throws VersionMismatchException {
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Decode a frame. The returned message's data is a view of the provided buffer, so it must not be modified afterwards!
+     * Only the envelope, the message target and the sending server are decoded directly, everything else
+     * is only decoded when it is first accessed. This allows dropping messages that aren't meant for us cheaply.
+     * @param frame The frame data
+     * @return The decoded frame
+     * @throws VersionMismatchException When the message was sent by an incompatible version
+     * @throws IllegalArgumentException When the frame is malformed
+     */
+    public Frame decode(ByteBuffer frame) throws VersionMismatchException {
+        ByteBuffer in = frame.duplicate();
+        try {
+            if (in.hasRemaining() && in.get(in.position()) == COMPACT_MAGIC) {
+                return decodeCompact(in);
+            }
+            return decodeLegacy(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Frame ended unexpectedly", e);
+        }
+    }
+
+    private Frame decodeLegacy(ByteBuffer in) throws VersionMismatchException {
+        String group = readUTF(in);
+        String target = readUTF(in);
+        int messageLength = in.getInt();
+        if (messageLength < 0 || messageLength > in.remaining()) {
+            throw new IllegalArgumentException("Invalid message length " + messageLength + " with " + in.remaining() + " bytes remaining in frame");
+        }
+        in.limit(in.position() + messageLength);
+        int messageVersion = in.getInt();
+        if (messageVersion < Message.VERSION) {
+            throw new VersionMismatchException(messageVersion, Message.VERSION, "Received message from an outdated version (" + messageVersion + ", this only supports " + Message.VERSION + ")! Please update the sending plugin!");
+        } else if (messageVersion > Message.VERSION) {
+            throw new VersionMismatchException(messageVersion, Message.VERSION, "Received message with a newer version (" + messageVersion + ", this only supports " + Message.VERSION + ")! Please update this plugin!");
+        }
+        MessageTarget messageTarget = MessageTarget.valueOf(readUTF(in));
+        String sendingServer = readUTF(in);
+        return new Frame(target, new LazyMessage(group, messageTarget, sendingServer, false, false, -1, -1, in.slice()));
+    }
+
+    private Frame decodeCompact(ByteBuffer in) throws VersionMismatchException {
+        in.get();
+        int version = in.get() & 0xFF;
+        if (version != COMPACT_VERSION) {
+            throw new VersionMismatchException(version, COMPACT_VERSION, "Received message with a newer version (" + version + ", this only supports " + COMPACT_VERSION + ")! Please update this plugin!");
+        }
+        int flags = in.get() & 0xFF;
+        int session = (flags & FLAG_DICTIONARY) != 0 ? readVarInt(in) : -1;
+        String target = readString(in);
+        int ordinal = in.get() & 0xFF;
+        if (ordinal >= TARGETS.length) {
+            throw new IllegalArgumentException("Unknown message target " + ordinal);
+        }
+        String sendingServer = readString(in);
+
+        ByteBuffer body = in.slice();
+        // Find the highest used dictionary ID so that we can check whether it's resolvable without decoding anything
+        int maxId = -1;
+        for (int i = 0; i < 3; i++) {
+            int header = readVarInt(in);
+            if ((header & 1) == 1) {
+                maxId = Math.max(maxId, header >>> 1);
+            } else if (header >>> 1 > in.remaining()) {
+                throw new BufferUnderflowException();
+            } else {
+                in.position(in.position() + (header >>> 1));
+            }
+        }
+        return new Frame(target, new LazyMessage(null, TARGETS[ordinal], sendingServer, true, (flags & FLAG_COMPRESSED) != 0, session, maxId, body));
+    }
+
+    /**
+     * Decode the rest of a message that was peeked by {@link #decode(ByteBuffer)}
+     * @param message   The peeked message
+     * @param in        The buffer positioned after the sending server
+     * @return The fully decoded message
+     */
+    private Message decodeBody(LazyMessage message, ByteBuffer in) {
+        try {
+            String group;
+            String sendingPlugin;
+            String action;
+            int dataLength;
+            int originalLength = -1;
+            if (message.compact) {
+                group = readDictionaryString(in, message.getSendingServer(), message.session);
+                sendingPlugin = readDictionaryString(in, message.getSendingServer(), message.session);
+                action = readDictionaryString(in, message.getSendingServer(), message.session);
+                dataLength = readVarInt(in);
+                if (message.compressed) {
+                    originalLength = readVarInt(in);
+                    if (originalLength < 0) {
+                        throw new IllegalArgumentException("Invalid original data length " + originalLength);
+                    }
+                }
+            } else {
+                group = message.getGroup();
+                sendingPlugin = readUTF(in);
+                action = readUTF(in);
+                dataLength = in.getInt();
+            }
+            if (dataLength < 0 || dataLength > in.remaining()) {
+                throw new IllegalArgumentException("Invalid data length " + dataLength + " with " + in.remaining() + " bytes remaining in frame");
+            }
+            in.limit(in.position() + dataLength);
+            ByteBuffer data = originalLength > -1 ? compression.decompress(in, originalLength) : in;
+            return new Message(group, message.getTarget(), message.getSendingServer(), sendingPlugin, action, data);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Frame ended unexpectedly", e);
+        }
+    }
+
+    /**
+     * Check whether all dictionary IDs which a received message uses are known
+     * @param message   The message
+     * @return Whether the message can be fully decoded
+     */
+    public boolean isResolvable(Message message) {
+        if (message instanceof LazyMessage) {
+            LazyMessage lazyMessage = (LazyMessage) message;
+            return lazyMessage.session < 0 || dictionary.knows(lazyMessage.getSendingServer(), lazyMessage.session, lazyMessage.maxId);
+        }
+        return true;
+    }
+
+    private static int dictionaryStringLength(String string, int id) {
+        if (id > -1) {
+            return varIntLength(id << 1 | 1);
+        }
+        int length = modifiedUtfLength(string);
+        return varIntLength(length << 1) + length;
+    }
+
+    private static void writeDictionaryString(ByteBuffer out, String string, int id) {
+        if (id > -1) {
+            writeVarInt(out, id << 1 | 1);
+        } else {
+            writeVarInt(out, modifiedUtfLength(string) << 1);
+            writeUTFChars(out, string);
+        }
+    }
+
+    private String readDictionaryString(ByteBuffer in, String sendingServer, int session) {
+        int header = readVarInt(in);
+        if ((header & 1) == 1) {
+            return dictionary.resolve(sendingServer, session, header >>> 1);
+        }
+        return readUTFChars(in, header >>> 1);
+    }
+
+    /**
+     * Get the amount of bytes a number takes when written with {@link #writeVarInt(ByteBuffer, int)}
+     * @param value The number
+     * @return The amount of bytes, between 1 and 5
+     */
+    public static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Write a number with 7 bits per byte, the highest bit marks whether another byte follows.
+     * Negative numbers always take 5 bytes.
+     * @param out   The buffer to write to
+     * @param value The number to write
+     */
+    public static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Read a number written by {@link #writeVarInt(ByteBuffer, int)}
+     * @param in    The buffer to read from
+     * @return The read number
+     * @throws IllegalArgumentException if the number is longer than 5 bytes
+     */
+    public static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Variable length number is too long");
+    }
+
+    /**
+     * Get the length a string will have when written with {@link #writeString(ByteBuffer, String)}
+     * @param string    The string
+     * @return The amount of bytes including the length prefix
+     */
+    public static int stringLength(String string) {
+        int length = modifiedUtfLength(string);
+        return varIntLength(length) + length;
+    }
+
+    /**
+     * Write a string in modified UTF-8 prefixed with its length as a varint
+     * @param out       The buffer to write to
+     * @param string    The string to write
+     */
+    public static void writeString(ByteBuffer out, String string) {
+        writeVarInt(out, modifiedUtfLength(string));
+        writeUTFChars(out, string);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(ByteBuffer, String)}
+     * @param in    The buffer to read from
+     * @return The read string
+     * @throws IllegalArgumentException if the data isn't valid modified UTF-8
+     */
+    public static String readString(ByteBuffer in) {
+        return readUTFChars(in, readVarInt(in));
+    }
+
+    /**
+     * Get the length a string will have when written with {@link #writeUTF(ByteBuffer, String)}
+     * @param string    The string
+     * @return The amount of bytes including the two length bytes
+     * @throws IllegalArgumentException if the string is too long to be encoded
+     */
+    public static int utfLength(String string) {
+        int length = modifiedUtfLength(string);
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("Encoded string is too long: " + length + " bytes");
+        }
+        return length + 2;
+    }
+
+    /**
+     * Write a string in the same modified UTF-8 format as {@link java.io.DataOutput#writeUTF(String)}
+     * @param out       The buffer to write to
+     * @param string    The string to write
+     */
+    public static void writeUTF(ByteBuffer out, String string) {
+        out.putShort((short) (utfLength(string) - 2));
+        writeUTFChars(out, string);
+    }
+
+    /**
+     * Read a string in the same modified UTF-8 format as {@link java.io.DataInput#readUTF()}
+     * @param in    The buffer to read from
+     * @return The read string
+     * @throws IllegalArgumentException if the data isn't valid modified UTF-8
+     */
+    public static String readUTF(ByteBuffer in) {
+        return readUTFChars(in, in.getShort() & 0xFFFF);
+    }
+
+    private static int modifiedUtfLength(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private static void writeUTFChars(ByteBuffer out, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                out.put((byte) c);
+            } else if (c > 0x07FF) {
+                out.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String readUTFChars(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (in.position() >= end) {
+                    throw new IllegalArgumentException("Malformed string input: partial character at end");
+                }
+                chars[count++] = (char) (((b & 0x1F) << 6) | (in.get() & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                if (in.position() + 1 >= end) {
+                    throw new IllegalArgumentException("Malformed string input: partial character at end");
+                }
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+            } else {
+                throw new IllegalArgumentException("Malformed string input around byte " + in.position());
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * A message that only decodes its sending plugin, action and data once one of them gets accessed.
+     * In the compact format the group might be a dictionary ID so it's also only decoded then.
+     * Compressed data is only decompressed then too.
+     */
+    private class LazyMessage extends Message {
+        private final boolean compact;
+        private final boolean compressed;
+        private final int session;
+        private final int maxId;
+        private ByteBuffer body;
+        private volatile Message decoded = null;
+
+        private LazyMessage(String group, MessageTarget target, String sendingServer, boolean compact, boolean compressed, int session, int maxId, ByteBuffer body) {
+            super(group, target, sendingServer);
+            this.compact = compact;
+            this.compressed = compressed;
+            this.session = session;
+            this.maxId = maxId;
+            this.body = body;
+        }
+
+        private Message decoded() {
+            Message message = decoded;
+            if (message == null) {
+                synchronized (this) {
+                    message = decoded;
+                    if (message == null) {
+                        message = decodeBody(this, body);
+                        body = null;
+                        decoded = message;
+                    }
+                }
+            }
+            return message;
+        }
+
+        @Override
+        public String getGroup() {
+            return compact ? decoded().getGroup() : super.getGroup();
+        }
+
+        @Override
+        public String getSendingPlugin() {
+            return decoded().getSendingPlugin();
+        }
+
+        @Override
+        public String getAction() {
+            return decoded().getAction();
+        }
+
+        @Override
+        public byte[] getData() {
+            return decoded().getData();
+        }
+
+        @Override
+        public ByteBuffer getDataBuffer() {
+            return decoded().getDataBuffer();
+        }
+
+        @Override
+        public int getDataLength() {
+            return decoded().getDataLength();
+        }
+    }
+
+    /**
+     * A frame of which the exact size is already known but which wasn't written yet
+     */
+    public static class PreparedFrame {
+        private final int length;
+        private final Consumer<ByteBuffer> writer;
+
+        private PreparedFrame(int length, Consumer<ByteBuffer> writer) {
+            this.length = length;
+            this.writer = writer;
+        }
+
+        /**
+         * Get the exact amount of bytes this frame will take
+         * @return The length of the frame
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Write this frame into a buffer. Can be called multiple times.
+         * @param out   The buffer to write to, needs at least {@link #getLength()} bytes remaining
+         */
+        public void writeTo(ByteBuffer out) {
+            writer.accept(out);
+        }
+
+        /**
+         * Write this frame into a new array
+         * @return The array with the frame
+         */
+        public byte[] toByteArray() {
+            ByteBuffer out = ByteBuffer.allocate(length);
+            writeTo(out);
+            return out.array();
+        }
+    }
+
+    public static class Frame {
+        private final String target;
+        private final Message message;
+
+        public Frame(String target, Message message) {
+            this.target = target;
+            this.message = message;
+        }
+
+        /**
+         * Get the target data of the frame's envelope
+         * @return The target data, empty string if there was none
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+}
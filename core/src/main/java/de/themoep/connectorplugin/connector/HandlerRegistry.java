@@ -0,0 +1,172 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The message handlers of a connector and their {@link DispatchPolicy} by plugin and action. Lookups only read an immutable snapshot so they
+ * need no lock and don't allocate, changes are made under a lock and publish a new snapshot. This makes it
+ * safe to register handlers while messages are dispatched on the connection threads.
+ * Plugin names are case-insensitive. They are normalized once on registration and the snapshot also contains
+ * the registered spelling so that senders which use it (i.e. the same plugin on another server) are found directly.
+ * @param <R> The type of the receiver
+ */
+class HandlerRegistry<R> {
+
+    /**
+     * The rows by normalized plugin name, only accessed while holding the lock
+     */
+    private final Map<String, Row<R>> rows = new HashMap<>();
+
+    private volatile Map<String, Map<String, Registration<R>>> snapshot = ImmutableMap.of();
+
+    /**
+     * Get the registration of the handler of an action
+     * @param plugin    The name of the plugin which sent the message, in any case
+     * @param action    The action
+     * @return The registration or null if no handler is registered
+     */
+    Registration<R> get(String plugin, String action) {
+        Map<String, Map<String, Registration<R>>> snapshot = this.snapshot;
+        Map<String, Registration<R>> actions = snapshot.get(plugin);
+        if (actions == null) {
+            actions = snapshot.get(plugin.toLowerCase(Locale.ROOT));
+            if (actions == null) {
+                return null;
+            }
+        }
+        return actions.get(action);
+    }
+
+    /**
+     * Register a handler
+     * @param plugin    The name of the plugin
+     * @param action    The action
+     * @param handler   The handler
+     * @param policy    The resolved policy with which the handler is dispatched
+     * @return The previous registration or null if there was none
+     */
+    synchronized Registration<R> put(String plugin, String action, BiConsumer<R, Message> handler, DispatchPolicy policy) {
+        String key = plugin.toLowerCase(Locale.ROOT);
+        Row<R> row = rows.computeIfAbsent(key, k -> new Row<>());
+        row.names.add(plugin);
+        Registration<R> previous = row.actions.put(action, new Registration<>(key, handler, policy));
+        publish();
+        return previous;
+    }
+
+    /**
+     * Unregister the handler of an action
+     * @param plugin    The name of the plugin
+     * @param action    The action
+     * @return The previous registration or null if there was none
+     */
+    synchronized Registration<R> remove(String plugin, String action) {
+        String key = plugin.toLowerCase(Locale.ROOT);
+        Row<R> row = rows.get(key);
+        if (row == null) {
+            return null;
+        }
+        Registration<R> previous = row.actions.remove(action);
+        if (row.actions.isEmpty()) {
+            rows.remove(key);
+        }
+        publish();
+        return previous;
+    }
+
+    /**
+     * Unregister all handlers of a plugin
+     * @param plugin    The name of the plugin
+     * @return The previous registrations by action or null if there were none
+     */
+    synchronized Map<String, Registration<R>> removeAll(String plugin) {
+        Row<R> row = rows.remove(plugin.toLowerCase(Locale.ROOT));
+        if (row == null) {
+            return null;
+        }
+        publish();
+        return row.actions;
+    }
+
+    private void publish() {
+        Map<String, Map<String, Registration<R>>> snapshot = new HashMap<>();
+        for (Map.Entry<String, Row<R>> entry : rows.entrySet()) {
+            Map<String, Registration<R>> actions = ImmutableMap.copyOf(entry.getValue().actions);
+            snapshot.put(entry.getKey(), actions);
+            for (String name : entry.getValue().names) {
+                snapshot.put(name, actions);
+            }
+        }
+        this.snapshot = ImmutableMap.copyOf(snapshot);
+    }
+
+    /**
+     * A registered handler and how it gets dispatched
+     * @param <R> The type of the receiver
+     */
+    static class Registration<R> {
+        private final String key;
+        private final BiConsumer<R, Message> handler;
+        private final DispatchPolicy policy;
+
+        private Registration(String key, BiConsumer<R, Message> handler, DispatchPolicy policy) {
+            this.key = key;
+            this.handler = handler;
+            this.policy = policy;
+        }
+
+        /**
+         * Get the normalized name of the plugin which registered the handler
+         * @return The plugin key
+         */
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the handler
+         * @return The handler
+         */
+        BiConsumer<R, Message> getHandler() {
+            return handler;
+        }
+
+        /**
+         * Get the policy with which the handler is dispatched
+         * @return The policy or null if the default one of the dispatcher is used
+         */
+        DispatchPolicy getPolicy() {
+            return policy;
+        }
+    }
+
+    private static class Row<R> {
+        private final Set<String> names = new HashSet<>();
+        private final Map<String, Registration<R>> actions = new HashMap<>();
+    }
+}
@@ -0,0 +1,187 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which route the hybrid messenger uses for a message and keeps the statistics of each route.
+ * Plugin messages are only used for the configured targets and if the frame fits into a plugin message,
+ * everything else goes through the broker.
+ */
+public class HybridRoutes {
+
+    /**
+     * Servers only accept plugin messages of up to 32767 bytes from the proxy, leave some room for the packet itself
+     */
+    public static final int MAX_PLUGIN_MESSAGE_SIZE = 32000;
+
+    private final Set<MessageTarget> pluginMessageTargets;
+    private final Map<Route, Statistics> statistics = new EnumMap<>(Route.class);
+
+    /**
+     * Create the routes
+     * @param plugin                The plugin
+     * @param pluginMessageTargets  The names of the targets for which plugin messages should be used if possible
+     */
+    public HybridRoutes(ConnectorPlugin plugin, Collection<String> pluginMessageTargets) {
+        this.pluginMessageTargets = EnumSet.noneOf(MessageTarget.class);
+        for (String name : pluginMessageTargets) {
+            try {
+                this.pluginMessageTargets.add(MessageTarget.valueOf(name.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                plugin.logWarning("Unknown message target " + name + " in the plugin message targets of the hybrid messenger");
+            }
+        }
+        for (Route route : Route.values()) {
+            statistics.put(route, new Statistics());
+        }
+    }
+
+    /**
+     * Check whether plugin messages should be tried for a message
+     * @param message   The message
+     * @return Whether its target is one of the configured plugin message targets
+     */
+    public boolean prefersPluginMessage(Message message) {
+        return pluginMessageTargets.contains(message.getTarget());
+    }
+
+    /**
+     * Check whether a frame can be sent as a plugin message
+     * @param frame The encoded frame
+     * @return Whether it is small enough
+     */
+    public boolean fitsPluginMessage(byte[] frame) {
+        return frame.length <= MAX_PLUGIN_MESSAGE_SIZE;
+    }
+
+    /**
+     * Record a message which was sent through a route
+     * @param route     The route
+     * @param start     The value of {@link System#nanoTime()} before the message was sent
+     */
+    public void record(Route route, long start) {
+        statistics.get(route).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record a message for which plugin messages were preferred but which had to be sent through the broker
+     */
+    public void recordFallback() {
+        statistics.get(Route.PLUGIN_MESSAGE).fallbacks.increment();
+    }
+
+    /**
+     * Get the targets for which plugin messages are used if possible
+     * @return The targets
+     */
+    public Set<MessageTarget> getPluginMessageTargets() {
+        return pluginMessageTargets;
+    }
+
+    /**
+     * Get the statistics of a route
+     * @param route The route
+     * @return The statistics
+     */
+    public Statistics getStatistics(Route route) {
+        return statistics.get(route);
+    }
+
+    public enum Route {
+        /**
+         * Handled directly as we are the destination
+         */
+        LOCAL,
+        /**
+         * Sent as a plugin message through a player's connection
+         */
+        PLUGIN_MESSAGE,
+        /**
+         * Sent through the broker
+         */
+        BROKER
+    }
+
+    /**
+     * The statistics of a route. The latency is the time which the sending thread spent passing the message
+     * to the route, not the time until the receiver handled it.
+     */
+    public static class Statistics {
+        private final LongAdder messages = new LongAdder();
+        private final LongAdder fallbacks = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            messages.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Get the amount of messages which were sent through this route
+         * @return The amount of messages
+         */
+        public long getMessages() {
+            return messages.sum();
+        }
+
+        /**
+         * Get the amount of messages for which this route was preferred but which had to be sent through the broker
+         * @return The amount of fallbacks
+         */
+        public long getFallbacks() {
+            return fallbacks.sum();
+        }
+
+        /**
+         * Get the average time it took to send a message through this route
+         * @return The average latency in microseconds
+         */
+        public long getAverageLatency() {
+            long count = messages.sum();
+            return count > 0 ? totalNanos.sum() / count / 1000 : 0;
+        }
+
+        /**
+         * Get the longest time it took to send a message through this route
+         * @return The maximum latency in microseconds
+         */
+        public long getMaxLatency() {
+            return maxNanos.get() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "messages=" + getMessages() + ", fallbacks=" + getFallbacks()
+                    + ", avg=" + getAverageLatency() + "us, max=" + getMaxLatency() + "us";
+        }
+    }
+}
@@ -20,22 +20,56 @@ import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
 
+import java.nio.ByteBuffer;
+
 public class Message {
-    private static final int VERSION = 2;
+    static final int VERSION = 2;
     private final String group;
     private final MessageTarget target;
     private final String sendingServer;
     private final String sendingPlugin;
     private final String action;
-    private final byte[] data;
+    private final ByteBuffer data;
+    private byte[] dataArray;
+    private MessagePriority priority;
 
     public Message(String group, MessageTarget target, String sendingServer, String sendingPlugin, String action, byte[] data) {
+        this(group, target, sendingServer, sendingPlugin, action, data != null ? ByteBuffer.wrap(data) : ByteBuffer.allocate(0));
+        this.dataArray = data;
+    }
+
+    /**
+     * Create a message whose data is backed by a view of a buffer. The buffer is not copied!
+     * @param group         The group of the message
+     * @param target        The target of the message
+     * @param sendingServer The server which sent the message
+     * @param sendingPlugin The plugin which sent the message
+     * @param action        The action of the message
+     * @param data          The data, only the remaining bytes of it are used
+     */
+    public Message(String group, MessageTarget target, String sendingServer, String sendingPlugin, String action, ByteBuffer data) {
         this.group = group;
         this.target = target;
         this.sendingServer = sendingServer;
         this.sendingPlugin = sendingPlugin;
         this.action = action;
-        this.data = data;
+        this.data = data.slice();
+    }
+
+    /**
+     * Create a message of which only the envelope and the sender are known yet.
+     * Subclasses need to provide the sending plugin, action and data themselves.
+     * @param group         The group of the message
+     * @param target        The target of the message
+     * @param sendingServer The server which sent the message
+     */
+    protected Message(String group, MessageTarget target, String sendingServer) {
+        this.group = group;
+        this.target = target;
+        this.sendingServer = sendingServer;
+        this.sendingPlugin = null;
+        this.action = null;
+        this.data = null;
     }
 
     public String getGroup() {
@@ -58,22 +92,79 @@ public class Message {
         return action;
     }
 
+    /**
+     * Get the priority with which the sender requested this message to be sent. This is not part of the frame
+     * so it is only known on the sending side.
+     * @return The priority or null if the default one of the message should be used
+     */
+    public MessagePriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority with which this message should be sent
+     * @param priority  The priority or null to use the default one of the message
+     * @return This message
+     */
+    public Message setPriority(MessagePriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Get the data of this message. If the message was decoded from a larger frame then the data will only be
+     * copied out of it once on the first call of this method.
+     * @return The data as a byte array
+     */
     public byte[] getData() {
-        return data;
+        if (dataArray == null) {
+            if (data.hasArray() && data.arrayOffset() == 0 && data.remaining() == data.array().length) {
+                dataArray = data.array();
+            } else {
+                byte[] array = new byte[data.remaining()];
+                data.duplicate().get(array);
+                dataArray = array;
+            }
+        }
+        return dataArray;
+    }
+
+    /**
+     * Get a view of the data of this message without copying it
+     * @return A new buffer sharing the content of this message's data
+     */
+    public ByteBuffer getDataBuffer() {
+        return data.duplicate();
+    }
+
+    /**
+     * Get the length of the data of this message
+     * @return The amount of bytes in the data
+     */
+    public int getDataLength() {
+        return data.remaining();
     }
 
+    /**
+     * @deprecated Use the {@link FrameCodec} of the {@link Connector} which writes the whole frame in one pass
+     */
+    @Deprecated
     public byte[] writeToByteArray() {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = PooledDataOutput.acquire();
         out.writeInt(VERSION);
-        out.writeUTF(target.name());
-        out.writeUTF(sendingServer);
-        out.writeUTF(sendingPlugin);
-        out.writeUTF(action);
-        out.writeInt(data.length);
-        out.write(data);
+        out.writeUTF(getTarget().name());
+        out.writeUTF(getSendingServer());
+        out.writeUTF(getSendingPlugin());
+        out.writeUTF(getAction());
+        out.writeInt(getDataLength());
+        out.write(getData());
         return out.toByteArray();
     }
 
+    /**
+     * @deprecated Use the {@link FrameCodec} of the {@link Connector} which doesn't copy the message data
+     */
+    @Deprecated
     public static Message fromByteArray(String group, byte[] messageData) throws VersionMismatchException {
         ByteArrayDataInput in = ByteStreams.newDataInput(messageData);
         int messageVersion = in.readInt();
@@ -0,0 +1,319 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the handlers of received messages according to their {@link DispatchPolicy}
+ * and keeps statistics about the queue depth and handler latency of every policy.
+ */
+public class MessageDispatcher {
+
+    /**
+     * How many messages an ordered queue handles before it lets the queues of other plugins use the thread
+     */
+    private static final int ORDERED_BATCH_SIZE = 64;
+
+    private final ConnectorPlugin plugin;
+    private final DispatchPolicy defaultPolicy;
+    private final long mainThreadBudget;
+
+    private final ExecutorService orderedPool;
+    private final Map<String, OrderedQueue> orderedQueues = new ConcurrentHashMap<>();
+    private final ExecutorService virtualThreads;
+    private final Queue<Runnable> mainThreadQueue = new ConcurrentLinkedQueue<>();
+
+    private final Map<DispatchPolicy, Statistics> statistics = new EnumMap<>(DispatchPolicy.class);
+
+    /**
+     * Create a dispatcher which runs all handlers inline
+     * @param plugin    The plugin
+     */
+    public MessageDispatcher(ConnectorPlugin plugin) {
+        this(plugin, DispatchPolicy.INLINE, 1, 0);
+    }
+
+    /**
+     * Create a dispatcher
+     * @param plugin            The plugin
+     * @param defaultPolicy     The policy of handlers which were registered without one
+     * @param orderedThreads    The maximum amount of threads which run the ordered queues of the plugins
+     * @param mainThreadBudget  The microseconds per tick for which main thread handlers may run,
+     *                          0 if there is no main thread and {@link #runMainThreadBatch()} is never called
+     */
+    public MessageDispatcher(ConnectorPlugin plugin, DispatchPolicy defaultPolicy, int orderedThreads, long mainThreadBudget) {
+        this.plugin = plugin;
+        this.mainThreadBudget = TimeUnit.MICROSECONDS.toNanos(mainThreadBudget);
+        for (DispatchPolicy policy : DispatchPolicy.values()) {
+            statistics.put(policy, new Statistics());
+        }
+
+        ThreadPoolExecutor orderedPool = new ThreadPoolExecutor(
+                Math.max(orderedThreads, 1), Math.max(orderedThreads, 1),
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, plugin.getName() + " message dispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        orderedPool.allowCoreThreadTimeOut(true);
+        this.orderedPool = orderedPool;
+
+        ExecutorService virtualThreads = null;
+        try {
+            virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Virtual threads require Java 21
+        }
+        this.virtualThreads = virtualThreads;
+
+        this.defaultPolicy = resolve(defaultPolicy);
+    }
+
+    /**
+     * Get the policy which is actually used for a requested one, i.e. the fallback if it isn't available
+     * @param policy    The requested policy, null for the default one
+     * @return The policy that is used
+     */
+    public DispatchPolicy resolve(DispatchPolicy policy) {
+        if (policy == null) {
+            return defaultPolicy;
+        }
+        if (policy == DispatchPolicy.VIRTUAL_THREAD && virtualThreads == null) {
+            plugin.logWarning("Virtual threads require Java 21 or newer, using ordered dispatching instead");
+            return DispatchPolicy.ORDERED;
+        }
+        if (policy == DispatchPolicy.MAIN_THREAD && mainThreadBudget <= 0) {
+            plugin.logDebug("There is no main thread to dispatch messages to, running handlers inline instead");
+            return DispatchPolicy.INLINE;
+        }
+        return policy;
+    }
+
+    /**
+     * Run the handler of a message
+     * @param policy    The policy of the handler, null for the default one
+     * @param key       The normalized name of the plugin which registered the handler
+     * @param handler   The handler
+     * @param receiver  The receiver of the message
+     * @param message   The message
+     * @param <R>       The type of the receiver
+     */
+    public <R> void dispatch(DispatchPolicy policy, String key, BiConsumer<R, Message> handler, R receiver, Message message) {
+        if (policy == null) {
+            policy = defaultPolicy;
+        } else if (policy == DispatchPolicy.VIRTUAL_THREAD && virtualThreads == null) {
+            policy = DispatchPolicy.ORDERED;
+        } else if (policy == DispatchPolicy.MAIN_THREAD && mainThreadBudget <= 0) {
+            policy = DispatchPolicy.INLINE;
+        }
+        Statistics stats = statistics.get(policy);
+        if (policy == DispatchPolicy.INLINE) {
+            stats.run(handler, receiver, message);
+            return;
+        }
+
+        Runnable task = () -> {
+            stats.queued.decrementAndGet();
+            try {
+                stats.run(handler, receiver, message);
+            } catch (RuntimeException e) {
+                plugin.logError("Error while handling " + message.getSendingPlugin() + ":" + message.getAction() + " from " + message.getSendingServer() + "! ", e);
+            }
+        };
+        stats.queued.incrementAndGet();
+        try {
+            switch (policy) {
+                case ORDERED:
+                    orderedQueues.computeIfAbsent(key, k -> new OrderedQueue()).add(task);
+                    break;
+                case VIRTUAL_THREAD:
+                    virtualThreads.execute(task);
+                    break;
+                case MAIN_THREAD:
+                    mainThreadQueue.add(task);
+                    break;
+            }
+        } catch (RejectedExecutionException e) {
+            stats.queued.decrementAndGet();
+            plugin.logDebug("Dropping " + message.getSendingPlugin() + ":" + message.getAction() + " as the dispatcher is closed");
+        }
+    }
+
+    /**
+     * Run the handlers which are waiting for the main thread until the time budget of this tick is used up.
+     * Has to be called every tick on the main thread if there is one.
+     */
+    public void runMainThreadBatch() {
+        long end = System.nanoTime() + mainThreadBudget;
+        Runnable task;
+        // At least one handler is always run so that a slow one can't block the queue forever
+        do {
+            task = mainThreadQueue.poll();
+            if (task == null) {
+                return;
+            }
+            task.run();
+        } while (System.nanoTime() < end);
+    }
+
+    /**
+     * Get the policy of handlers which were registered without one
+     * @return The default policy
+     */
+    public DispatchPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * Get the statistics of a policy
+     * @param policy    The policy
+     * @return The statistics
+     */
+    public Statistics getStatistics(DispatchPolicy policy) {
+        return statistics.get(policy);
+    }
+
+    /**
+     * Stop the threads, handlers which are still queued are not run anymore
+     */
+    public void close() {
+        orderedPool.shutdown();
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+        mainThreadQueue.clear();
+    }
+
+    /**
+     * The handlers of one plugin which are run one after another on the ordered pool
+     */
+    private class OrderedQueue implements Runnable {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private void add(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            orderedPool.execute(this);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < ORDERED_BATCH_SIZE; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+            // Give the queues of other plugins a chance before continuing
+            orderedPool.execute(this);
+        }
+    }
+
+    /**
+     * The statistics of a policy. The latency is the time which the handlers took to run,
+     * not the time that the messages waited in the queue.
+     */
+    public static class Statistics {
+        private final AtomicLong queued = new AtomicLong();
+        private final LongAdder handled = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private <R> void run(BiConsumer<R, Message> handler, R receiver, Message message) {
+            long start = System.nanoTime();
+            try {
+                handler.accept(receiver, message);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                handled.increment();
+                totalNanos.add(nanos);
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        /**
+         * Get the amount of messages which are waiting for their handler to run
+         * @return The queue depth
+         */
+        public long getQueuedMessages() {
+            return queued.get();
+        }
+
+        /**
+         * Get the amount of messages which were handled
+         * @return The amount of handled messages
+         */
+        public long getHandledMessages() {
+            return handled.sum();
+        }
+
+        /**
+         * Get the average time the handlers took to run
+         * @return The average latency in microseconds
+         */
+        public long getAverageLatency() {
+            long count = handled.sum();
+            return count > 0 ? totalNanos.sum() / count / 1000 : 0;
+        }
+
+        /**
+         * Get the longest time a handler took to run
+         * @return The maximum latency in microseconds
+         */
+        public long getMaxLatency() {
+            return maxNanos.get() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + getQueuedMessages() + ", handled=" + getHandledMessages()
+                    + ", avg=" + getAverageLatency() + "us, max=" + getMaxLatency() + "us";
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits messages whose data is too big for a messenger into several fragments and reassembles them again.
+ * Fragments are sent as messages of the connector itself, the first one of a message also contains its
+ * original group, plugin and action. Incomplete messages are kept in a bounded buffer and get discarded
+ * if no further fragment arrives within the timeout.
+ */
+public class MessageFragmenter {
+
+    public static final String FRAGMENT_ACTION = "fragment";
+
+    /**
+     * Room which is left in every fragment for the header of the frame that it is sent in
+     */
+    static final int FRAME_OVERHEAD = 1024;
+    /**
+     * The smallest maximum frame size that can be configured
+     */
+    public static final int MIN_FRAME_SIZE = 2 * FRAME_OVERHEAD;
+    /**
+     * The smallest amount of data that all but the first fragment carry, used to reject implausible fragment counts
+     */
+    private static final int MIN_CHUNK_SIZE = 512;
+
+    private final int maxFrameSize;
+    private final long maxMemory;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    private final AtomicLong fragmentedMessages = new AtomicLong();
+    private final AtomicLong sentFragments = new AtomicLong();
+    private final AtomicLong reassembledMessages = new AtomicLong();
+    private final AtomicLong expiredMessages = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    private final Cache<String, Reassembly> reassemblies;
+
+    /**
+     * Create a fragmenter which uses the default frame size of the messenger
+     */
+    public MessageFragmenter() {
+        this(0, 30, 64, 16 * 1024 * 1024);
+    }
+
+    /**
+     * Create a fragmenter
+     * @param maxFrameSize      The maximum size of a frame in bytes, 0 to use the default size of the messenger
+     * @param timeout           The seconds after which incomplete messages get discarded if no further fragment arrived
+     * @param maxReassemblies   The maximum amount of messages which get reassembled at the same time
+     * @param maxMemory         The maximum amount of bytes to buffer for incomplete messages
+     */
+    public MessageFragmenter(int maxFrameSize, int timeout, int maxReassemblies, long maxMemory) {
+        this.maxFrameSize = maxFrameSize > 0 ? Math.max(maxFrameSize, MIN_FRAME_SIZE) : 0;
+        this.maxMemory = maxMemory;
+        this.reassemblies = CacheBuilder.newBuilder()
+                .expireAfterAccess(timeout, TimeUnit.SECONDS)
+                .maximumSize(maxReassemblies)
+                .<String, Reassembly>removalListener(notification -> {
+                    bufferedBytes.addAndGet(-notification.getValue().bufferedBytes);
+                    if (notification.getCause() == RemovalCause.EXPIRED) {
+                        expiredMessages.incrementAndGet();
+                    } else if (notification.getCause() != RemovalCause.EXPLICIT) {
+                        droppedMessages.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * The configured maximum size of a frame
+     * @return The maximum size in bytes or 0 if the default size of the messenger should be used
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Split a message into fragments if its data doesn't fit into a frame of the given size
+     * @param message       The message to split
+     * @param sender        The name of the plugin which sends the fragments
+     * @param maxFrameSize  The maximum size of a frame
+     * @return The fragment messages or null if the message doesn't need to be split
+     */
+    public List<Message> split(Message message, String sender, int maxFrameSize) {
+        int maxChunkSize = Math.max(maxFrameSize, MIN_FRAME_SIZE) - FRAME_OVERHEAD;
+        int length = message.getDataLength();
+        if (length <= maxChunkSize) {
+            return null;
+        }
+
+        int id = nextId.getAndIncrement();
+        int firstHeader = FrameCodec.stringLength(message.getGroup())
+                + FrameCodec.stringLength(message.getSendingPlugin())
+                + FrameCodec.stringLength(message.getAction())
+                + FrameCodec.varIntLength(length);
+        // Index and count are at most 5 bytes each
+        int headerSize = FrameCodec.varIntLength(id) + 10;
+        int chunkCapacity = maxChunkSize - headerSize;
+        // Very long names might not leave room for data in the first fragment but it still has to contain some
+        int firstCapacity = Math.max(chunkCapacity - firstHeader, 1);
+        int count = 1 + (Math.max(length - firstCapacity, 0) + chunkCapacity - 1) / chunkCapacity;
+
+        ByteBuffer data = message.getDataBuffer();
+        List<Message> fragments = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int chunkSize = Math.min(data.remaining(), index == 0 ? firstCapacity : chunkCapacity);
+            ByteBuffer out = ByteBuffer.allocate(headerSize + (index == 0 ? firstHeader : 0) + chunkSize);
+            FrameCodec.writeVarInt(out, id);
+            FrameCodec.writeVarInt(out, index);
+            FrameCodec.writeVarInt(out, count);
+            if (index == 0) {
+                FrameCodec.writeString(out, message.getGroup());
+                FrameCodec.writeString(out, message.getSendingPlugin());
+                FrameCodec.writeString(out, message.getAction());
+                FrameCodec.writeVarInt(out, length);
+            }
+            ByteBuffer chunk = data.slice();
+            chunk.limit(chunkSize);
+            out.put(chunk);
+            data.position(data.position() + chunkSize);
+            out.flip();
+            // Fragments are bulk messages unless the message was explicitly sent with another priority
+            fragments.add(new Message("", message.getTarget(), message.getSendingServer(), sender, FRAGMENT_ACTION, out)
+                    .setPriority(message.getPriority()));
+        }
+        fragmentedMessages.incrementAndGet();
+        sentFragments.addAndGet(count);
+        return fragments;
+    }
+
+    /**
+     * Add a received fragment
+     * @param fragment  The fragment message
+     * @return The reassembled message if this was the last missing fragment, null otherwise
+     * @throws IllegalArgumentException if the fragment is malformed
+     */
+    public Message add(Message fragment) {
+        ByteBuffer in = fragment.getDataBuffer();
+        String key;
+        int index;
+        int count;
+        try {
+            key = fragment.getSendingServer() + ":" + FrameCodec.readVarInt(in);
+            index = FrameCodec.readVarInt(in);
+            count = FrameCodec.readVarInt(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Fragment ended unexpectedly", e);
+        }
+        if (count < 2 || index < 0 || index >= count || count > Math.max(maxMemory / MIN_CHUNK_SIZE, 2)) {
+            throw new IllegalArgumentException("Invalid fragment " + index + "/" + count);
+        }
+
+        Reassembly reassembly;
+        try {
+            reassembly = reassemblies.get(key, () -> new Reassembly(count));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Message message = null;
+        boolean drop = false;
+        synchronized (reassembly) {
+            if (reassembly.chunks.length != count) {
+                throw new IllegalArgumentException("Fragment " + index + " of " + key + " has a different count (" + count + ") than the previous ones (" + reassembly.chunks.length + ")");
+            }
+            if (reassembly.chunks[index] != null) {
+                return null;
+            }
+            if (index == 0) {
+                try {
+                    reassembly.group = FrameCodec.readString(in);
+                    reassembly.plugin = FrameCodec.readString(in);
+                    reassembly.action = FrameCodec.readString(in);
+                    reassembly.length = FrameCodec.readVarInt(in);
+                } catch (BufferUnderflowException e) {
+                    throw new IllegalArgumentException("Fragment ended unexpectedly", e);
+                }
+            }
+            if (reassembly.length > maxMemory || bufferedBytes.get() + in.remaining() > maxMemory) {
+                drop = true;
+            } else {
+                byte[] chunk = new byte[in.remaining()];
+                in.get(chunk);
+                reassembly.chunks[index] = chunk;
+                reassembly.received++;
+                reassembly.bufferedBytes += chunk.length;
+                bufferedBytes.addAndGet(chunk.length);
+
+                if (reassembly.received == count) {
+                    ByteBuffer data = ByteBuffer.allocate(reassembly.bufferedBytes);
+                    for (byte[] c : reassembly.chunks) {
+                        data.put(c);
+                    }
+                    if (data.position() != reassembly.length) {
+                        reassemblies.invalidate(key);
+                        throw new IllegalArgumentException("Reassembled " + data.position() + " bytes of " + key + " but expected " + reassembly.length);
+                    }
+                    data.flip();
+                    message = new Message(reassembly.group, fragment.getTarget(), fragment.getSendingServer(), reassembly.plugin, reassembly.action, data);
+                }
+            }
+        }
+
+        if (drop) {
+            reassemblies.asMap().remove(key, reassembly);
+            droppedMessages.incrementAndGet();
+            throw new IllegalArgumentException("Not enough memory to reassemble " + key + " (" + bufferedBytes.get() + " of " + maxMemory + " bytes buffered)");
+        } else if (message != null) {
+            reassemblies.invalidate(key);
+            reassembledMessages.incrementAndGet();
+        }
+        reassemblies.cleanUp();
+        return message;
+    }
+
+    /**
+     * Get the amount of messages which are currently getting reassembled
+     * @return The amount of incomplete messages
+     */
+    public long getInFlightReassemblies() {
+        return reassemblies.size();
+    }
+
+    /**
+     * Get the amount of bytes which are buffered for incomplete messages
+     * @return The buffered bytes
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Get the amount of sent messages that had to be split
+     * @return The amount of fragmented messages
+     */
+    public long getFragmentedMessages() {
+        return fragmentedMessages.get();
+    }
+
+    /**
+     * Get the amount of fragments that were sent
+     * @return The amount of sent fragments
+     */
+    public long getSentFragments() {
+        return sentFragments.get();
+    }
+
+    /**
+     * Get the amount of received messages that were successfully reassembled
+     * @return The amount of reassembled messages
+     */
+    public long getReassembledMessages() {
+        return reassembledMessages.get();
+    }
+
+    /**
+     * Get the amount of incomplete messages that were discarded because no further fragment arrived in time
+     * @return The amount of expired messages
+     */
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+
+    /**
+     * Get the amount of incomplete messages that were discarded because of the memory or reassembly limits
+     * @return The amount of dropped messages
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    private static class Reassembly {
+        private final byte[][] chunks;
+        private int received = 0;
+        private int bufferedBytes = 0;
+        private String group;
+        private String plugin;
+        private String action;
+        private int length = -1;
+
+        private Reassembly(int count) {
+            this.chunks = new byte[count][];
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How urgently a message needs to be sent compared to others when they have to wait
+ */
+public enum MessagePriority {
+    /**
+     * Messages of the connector itself and the bridge which players or commands are waiting for
+     */
+    INTERACTIVE,
+    /**
+     * Messages of other plugins and notifications of the bridge
+     */
+    NORMAL,
+    /**
+     * Fragments of big messages
+     */
+    BULK;
+
+    /**
+     * Get the priority of a message, either the one it was sent with or the default one for its sender and action
+     * @param connectorName The name of the connector plugin
+     * @param message       The message
+     * @return The priority of the message
+     */
+    public static MessagePriority of(String connectorName, Message message) {
+        if (message.getPriority() != null) {
+            return message.getPriority();
+        }
+        if (!connectorName.equals(message.getSendingPlugin())) {
+            return NORMAL;
+        }
+        return MessageFragmenter.FRAGMENT_ACTION.equals(message.getAction()) ? BULK : INTERACTIVE;
+    }
+}
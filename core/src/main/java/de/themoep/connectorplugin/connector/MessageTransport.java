@@ -0,0 +1,39 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A connection over which messages can be sent to other servers and proxies
+ */
+public interface MessageTransport {
+
+    /**
+     * Send a message
+     * @param targetData    The target data of the message
+     * @param message       The message
+     * @param destination   The only server or proxy which should handle the message or null if it should be broadcast,
+     *                      transports which can't send to a single destination broadcast it anyway
+     */
+    void sendMessage(String targetData, Message message, String destination);
+
+    /**
+     * Close the transport and release its resources
+     */
+    void close();
+}
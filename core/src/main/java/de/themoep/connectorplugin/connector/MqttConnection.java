@@ -17,26 +17,88 @@ package de.themoep.connectorplugin.connector;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.connectorplugin.ConnectorPlugin;
+import org.eclipse.paho.mqttv5.client.DisconnectedBufferOptions;
 import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
-import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttSubscription;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
-public class MqttConnection {
+public class MqttConnection implements MessageTransport {
 
-    private final ConnectorPlugin plugin;
-    private MqttClient client;
+    private final ConnectorPlugin<?> plugin;
+    private final FrameCodec codec;
+    private final int defaultQos;
+    private final Map<String, PluginQos> qos = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    /**
+     * The size of the in-flight window, this is the configured maximum unless the broker allows less
+     */
+    private volatile int window;
+    private final boolean hierarchicalTopics;
+    private MqttAsyncClient client;
 
-    public MqttConnection(ConnectorPlugin plugin, String brokerURI, String clientID, String username, String password, int keepAlive, BiConsumer<String, Message> onMessage) {
+    private final Outbox<Publish> queue;
+    /**
+     * Permits for every message that was added to the queue, the publisher waits on this for new messages
+     */
+    private final Semaphore queued = new Semaphore(0);
+    private final Semaphore inflight;
+    private final Thread publisher;
+    private volatile boolean running = true;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Create a connection to an MQTT broker
+     * @param plugin        The plugin
+     * @param codec         The codec of the frames
+     * @param brokerURI     The URI of the broker
+     * @param clientID      The ID of the client, a unique one is generated if this is empty
+     * @param username      The username
+     * @param password      The password
+     * @param keepAlive     The keep alive interval in seconds
+     * @param maxInflight   The maximum amount of messages which are sent but not completed yet
+     * @param queueLimits   The limits of the queue of messages which wait for a free slot in the in-flight window
+     * @param defaultQos    The QoS to publish messages with
+     * @param qos           The QoS of certain plugins ("pluginname") or actions of plugins ("pluginname:action")
+     * @param hierarchicalTopics    Whether to publish to topics per target and group instead of one topic for everything.
+     *                              All servers and proxies need to support this when it's enabled!
+     * @param onMessage     Handler for received messages which takes the receiver data and the message
+     */
+    public MqttConnection(ConnectorPlugin<?> plugin, FrameCodec codec, String brokerURI, String clientID, String username, String password, int keepAlive, int maxInflight, Map<MessagePriority, Outbox.Limit> queueLimits, int defaultQos, Map<String, Integer> qos, boolean hierarchicalTopics, BiConsumer<String, Message> onMessage) {
         this.plugin = plugin;
+        this.codec = codec;
+        this.defaultQos = defaultQos;
+        // Split the keys once so that looking up the QoS of a message doesn't need to build any strings
+        for (Map.Entry<String, Integer> entry : qos.entrySet()) {
+            String[] parts = entry.getKey().split(":", 2);
+            PluginQos pluginQos = this.qos.computeIfAbsent(parts[0], p -> new PluginQos());
+            if (parts.length > 1) {
+                pluginQos.actions.put(parts[1], entry.getValue());
+            } else {
+                pluginQos.level = entry.getValue();
+            }
+        }
+        this.queue = new Outbox<>(queueLimits);
+        this.window = Math.max(maxInflight, 1);
+        this.inflight = new Semaphore(this.window);
+        this.hierarchicalTopics = hierarchicalTopics;
 
         MqttConnectionOptions conOpts = new MqttConnectionOptions();
 
@@ -58,11 +120,26 @@ public class MqttConnection {
         conOpts.setAutomaticReconnect(true);
 
         try {
-            client = new MqttClient(brokerURI, clientID);
-            client.connect(conOpts);
+            client = new MqttAsyncClient(brokerURI, clientID, new MemoryPersistence());
+            // Keep messages which are published while reconnecting instead of failing them
+            DisconnectedBufferOptions bufferOptions = new DisconnectedBufferOptions();
+            bufferOptions.setBufferEnabled(true);
+            bufferOptions.setDeleteOldestMessages(true);
+            client.setBufferOpts(bufferOptions);
+            IMqttToken connectToken = client.connect(conOpts);
+            connectToken.waitForCompletion(10000);
+            // The client fails publishes which exceed the Receive Maximum of the broker instead of waiting
+            Integer receiveMaximum = connectToken.getResponseProperties() != null
+                    ? connectToken.getResponseProperties().getReceiveMaximum()
+                    : null;
+            if (receiveMaximum != null && receiveMaximum > 0 && receiveMaximum < window) {
+                plugin.logDebug("MQTT broker only allows " + receiveMaximum + " messages in flight, reducing window from " + window);
+                inflight.acquireUninterruptibly(window - receiveMaximum);
+                window = receiveMaximum;
+            }
 
-            client.subscribe(new MqttSubscription[]{new MqttSubscription(plugin.getMessageChannel())}, new IMqttMessageListener[] {(topic, message) -> {
-                if (!topic.equals(plugin.getMessageChannel())) {
+            IMqttMessageListener listener = (topic, message) -> {
+                if (!topic.equals(plugin.getMessageChannel()) && !topic.startsWith(plugin.getMessageChannel() + "/")) {
                     return;
                 }
                 if (message.getPayload().length == 0) {
@@ -70,52 +147,258 @@ public class MqttConnection {
                     return;
                 }
 
-                ByteArrayDataInput in = ByteStreams.newDataInput(message.getPayload());
-                String group = in.readUTF();
-
-                String target = in.readUTF();
-
-                int messageLength = in.readInt();
-                byte[] messageData = new byte[messageLength];
-                in.readFully(messageData);
-
                 try {
-                    onMessage.accept(target, Message.fromByteArray(group, messageData));
+                    FrameCodec.Frame frame = codec.decode(message.getPayload());
+                    onMessage.accept(frame.getTarget(), frame.getMessage());
                 } catch (IllegalArgumentException e) {
                     plugin.logError("Error while decoding message on " + topic + " MQTT topic! ", e);
                 } catch (VersionMismatchException e) {
                     plugin.logWarning(e.getMessage() + ". Ignoring message!");
                 }
-            }}).waitForCompletion(10000);
+            };
+
+            String[] topics = getSubscribedTopics();
+            MqttSubscription[] subscriptions = new MqttSubscription[topics.length];
+            IMqttMessageListener[] listeners = new IMqttMessageListener[topics.length];
+            for (int i = 0; i < topics.length; i++) {
+                subscriptions[i] = new MqttSubscription(topics[i]);
+                listeners[i] = listener;
+            }
+            client.subscribe(subscriptions, null, null, listeners, null).waitForCompletion(10000);
+            plugin.logDebug("Subscribed to MQTT topics " + Arrays.toString(topics));
         } catch (MqttException e) {
             throw new IllegalArgumentException(e);
         }
+
+        publisher = new Thread(this::publish, plugin.getName() + " MQTT publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    private void publish() {
+        while (running) {
+            Publish publish;
+            try {
+                queued.acquire();
+                // Wait until a slot in the window is free so we never have more than the maximum in flight,
+                // the message stays in the bounded queue until then
+                inflight.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            publish = queue.poll();
+            if (publish == null) {
+                // Permit of a message that was dropped to make room for a newer one
+                inflight.release();
+                continue;
+            }
+            try {
+                client.publish(publish.topic, publish.data, publish.qos, false, null, new MqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        inflight.release();
+                        published.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable exception) {
+                        inflight.release();
+                        failed.incrementAndGet();
+                        plugin.logError("Error while publishing message to " + publish.topic + " MQTT topic!", exception);
+                    }
+                });
+            } catch (MqttException e) {
+                if (e.getReasonCode() == MqttClientException.REASON_CODE_MAX_INFLIGHT && window > 1) {
+                    // The broker allows less messages in flight than our window, e.g. after reconnecting to one with a
+                    // lower Receive Maximum. Keep the permit to shrink the window and send the message again later.
+                    window--;
+                    queue.addFirst(publish.priority, publish);
+                    queued.release();
+                    plugin.logDebug("MQTT broker doesn't allow more messages in flight, reducing window to " + window);
+                    continue;
+                }
+                inflight.release();
+                failed.incrementAndGet();
+                plugin.logError("Error while publishing message to " + publish.topic + " MQTT topic!", e);
+            }
+        }
     }
 
     public void sendMessage(String senderName, Message message) {
-        byte[] messageData = message.writeToByteArray();
+        sendMessage(senderName, message, null);
+    }
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message.getGroup());
-        out.writeUTF(senderName != null ? senderName : "");
-        out.writeInt(messageData.length);
-        out.write(messageData);
-        byte[] dataToSend = out.toByteArray();
+    /**
+     * Publish a message
+     * @param senderName    The target data of the message
+     * @param message       The message
+     * @param destination   The only server or proxy which will handle the message or null if it should be broadcast.
+     *                      If hierarchical topics are enabled then the message is only published to this one's topic.
+     */
+    public void sendMessage(String senderName, Message message, String destination) {
+        MessagePriority priority = MessagePriority.of(plugin.getName(), message);
+        if (queue.add(priority, new Publish(priority, getTopic(message, destination), codec.encode(senderName, message), getQos(message)))) {
+            queued.release();
+        } else {
+            plugin.logDebug("MQTT publish queue is full, discarding " + message.getSendingPlugin() + ":" + message.getAction() + " message");
+        }
+    }
 
-        plugin.runAsync(() -> {
-            try {
-                client.publish(plugin.getMessageChannel(), dataToSend, 1, false);
-            } catch (MqttException e) {
-                e.printStackTrace();
+    /**
+     * Get the topic a message is published to. With hierarchical topics these are:
+     * <ul>
+     *     <li>{@code <channel>/server/<name>} and {@code <channel>/proxy/<id>} for messages to a single server or proxy</li>
+     *     <li>{@code <channel>/group/<group>} for messages to servers which are restricted to a group</li>
+     *     <li>{@code <channel>/all} for everything else</li>
+     * </ul>
+     * @param message       The message
+     * @param destination   The only server or proxy which will handle the message or null if it's a broadcast
+     * @return The topic
+     */
+    public String getTopic(Message message, String destination) {
+        if (!hierarchicalTopics) {
+            return plugin.getMessageChannel();
+        }
+        if (destination != null && !destination.isEmpty()) {
+            return getOwnTopic(destination);
+        }
+        if (!message.getGroup().isEmpty() && message.getTarget().getType() == MessageTarget.Type.SERVER) {
+            return plugin.getMessageChannel() + "/group/" + escape(message.getGroup());
+        }
+        return plugin.getMessageChannel() + "/all";
+    }
+
+    /**
+     * Get the topics this server or proxy needs to subscribe to. These are the ones for all, for itself and
+     * for the groups it is in. If it accepts messages from all groups for any plugin then it subscribes to all groups.
+     * @return The topics
+     */
+    private String[] getSubscribedTopics() {
+        if (!hierarchicalTopics) {
+            return new String[]{plugin.getMessageChannel()};
+        }
+        Set<String> topics = new TreeSet<>();
+        topics.add(plugin.getMessageChannel() + "/all");
+        topics.add(getOwnTopic(plugin.getServerName()));
+        Set<String> groups = new TreeSet<>(plugin.getGroups().values());
+        groups.add(plugin.getGlobalGroup());
+        if (groups.contains("")) {
+            topics.add(plugin.getMessageChannel() + "/group/+");
+        } else {
+            for (String group : groups) {
+                topics.add(plugin.getMessageChannel() + "/group/" + escape(group));
             }
-        });
+        }
+        return topics.toArray(new String[0]);
+    }
+
+    private String getOwnTopic(String serverName) {
+        if (serverName.startsWith(Connector.PROXY_ID_PREFIX)) {
+            return plugin.getMessageChannel() + "/proxy/" + escape(serverName.substring(Connector.PROXY_ID_PREFIX.length()));
+        }
+        return plugin.getMessageChannel() + "/server/" + escape(serverName);
+    }
+
+    /**
+     * Replace characters that have a special meaning in MQTT topics
+     */
+    private static String escape(String topicLevel) {
+        return topicLevel.replace('/', '_').replace('+', '_').replace('#', '_');
+    }
+
+    /**
+     * Get the QoS a message is published with
+     * @param message   The message
+     * @return The QoS of the message's action, plugin or the default one
+     */
+    public int getQos(Message message) {
+        if (qos.isEmpty()) {
+            return defaultQos;
+        }
+        PluginQos pluginQos = qos.get(message.getSendingPlugin());
+        if (pluginQos == null) {
+            return defaultQos;
+        }
+        Integer level = pluginQos.actions.get(message.getAction());
+        if (level == null) {
+            level = pluginQos.level;
+        }
+        return level != null ? level : defaultQos;
+    }
+
+    /**
+     * Get the amount of messages which are waiting for a free slot in the in-flight window
+     * @return The amount of queued messages
+     */
+    public int getQueued() {
+        return queue.getDepth();
+    }
+
+    /**
+     * Get the amount of messages which were dropped or rejected because the queue was full
+     * @return The amount of discarded messages
+     */
+    public long getDiscarded() {
+        long discarded = 0;
+        for (MessagePriority priority : MessagePriority.values()) {
+            discarded += queue.getDropped(priority) + queue.getRejected(priority);
+        }
+        return discarded;
+    }
+
+    /**
+     * Get the amount of messages which are sent but not completed yet
+     * @return The amount of in-flight messages
+     */
+    public int getInflight() {
+        return window - inflight.availablePermits();
+    }
+
+    /**
+     * Get the amount of messages that were published successfully
+     * @return The amount of published messages
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Get the amount of messages that couldn't be published
+     * @return The amount of failed messages
+     */
+    public long getFailed() {
+        return failed.get();
     }
 
     public void close() {
+        running = false;
+        publisher.interrupt();
         try {
-            client.disconnect();
+            client.disconnect().waitForCompletion(10000);
         } catch (MqttException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * The QoS levels of a plugin and its actions
+     */
+    private static class PluginQos {
+        private Integer level = null;
+        private final Map<String, Integer> actions = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    private static class Publish {
+        private final MessagePriority priority;
+        private final String topic;
+        private final byte[] data;
+        private final int qos;
+
+        private Publish(MessagePriority priority, String topic, byte[] data, int qos) {
+            this.priority = priority;
+            this.topic = topic;
+            this.data = data;
+            this.qos = qos;
+        }
+    }
 }
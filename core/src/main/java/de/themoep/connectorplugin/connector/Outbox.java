@@ -0,0 +1,230 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded buffer for messages which can't be sent right now, e.g. because the connection is down.
+ * Every {@link MessagePriority} has its own limit and policy for what happens when it is full.
+ * Entries are taken out in the order they were added, regardless of their priority, unless a priority is given.
+ * @param <T> The type of the buffered entries
+ */
+public class Outbox<T> {
+
+    private final Map<MessagePriority, Lane> lanes = new EnumMap<>(MessagePriority.class);
+    private long nextSequence = 0;
+    private long headSequence = 0;
+
+    /**
+     * Create an outbox
+     * @param limits    The limits of the priorities, priorities without one get the default limit
+     */
+    public Outbox(Map<MessagePriority, Limit> limits) {
+        for (MessagePriority priority : MessagePriority.values()) {
+            lanes.put(priority, new Lane(limits.getOrDefault(priority, Limit.DEFAULT)));
+        }
+    }
+
+    /**
+     * Add an entry
+     * @param priority  The priority of the entry
+     * @param entry     The entry
+     * @return Whether the entry was added, false if it was rejected as the outbox is full for its priority
+     */
+    public synchronized boolean add(MessagePriority priority, T entry) {
+        Lane lane = lanes.get(priority);
+        if (lane.entries.size() >= lane.limit.getMaxSize()) {
+            if (lane.limit.getPolicy() == OverflowPolicy.REJECT || lane.entries.isEmpty()) {
+                lane.rejected++;
+                return false;
+            }
+            lane.entries.removeFirst();
+            lane.dropped++;
+        }
+        lane.entries.addLast(new Entry<>(nextSequence++, entry));
+        lane.maxDepth = Math.max(lane.maxDepth, lane.entries.size());
+        return true;
+    }
+
+    /**
+     * Put an entry which was taken out but couldn't be sent back in front of all others. This ignores the limit
+     * of the priority as the entry was already accepted before.
+     * @param priority  The priority of the entry
+     * @param entry     The entry
+     */
+    public synchronized void addFirst(MessagePriority priority, T entry) {
+        Lane lane = lanes.get(priority);
+        lane.entries.addFirst(new Entry<>(--headSequence, entry));
+        lane.maxDepth = Math.max(lane.maxDepth, lane.entries.size());
+    }
+
+    /**
+     * Take out the oldest entry
+     * @return The entry that was added first or null if the outbox is empty
+     */
+    public synchronized T poll() {
+        Lane oldest = null;
+        for (Lane lane : lanes.values()) {
+            if (!lane.entries.isEmpty() && (oldest == null || lane.entries.getFirst().sequence < oldest.entries.getFirst().sequence)) {
+                oldest = lane;
+            }
+        }
+        return oldest != null ? oldest.entries.removeFirst().value : null;
+    }
+
+    /**
+     * Take out the oldest entry of a priority
+     * @param priority  The priority
+     * @return The entry of that priority that was added first or null if there is none
+     */
+    public synchronized T poll(MessagePriority priority) {
+        Lane lane = lanes.get(priority);
+        return !lane.entries.isEmpty() ? lane.entries.removeFirst().value : null;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Lane lane : lanes.values()) {
+            if (!lane.entries.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the amount of buffered entries
+     * @return The current depth of the outbox
+     */
+    public synchronized int getDepth() {
+        int depth = 0;
+        for (Lane lane : lanes.values()) {
+            depth += lane.entries.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Get the amount of buffered entries of a priority
+     * @param priority  The priority
+     * @return The current depth of the priority
+     */
+    public synchronized int getDepth(MessagePriority priority) {
+        return lanes.get(priority).entries.size();
+    }
+
+    /**
+     * Get the highest amount of entries a priority had buffered at the same time
+     * @param priority  The priority
+     * @return The maximum depth of the priority
+     */
+    public synchronized int getMaxDepth(MessagePriority priority) {
+        return lanes.get(priority).maxDepth;
+    }
+
+    /**
+     * Get the amount of entries of a priority that were dropped to make room for newer ones
+     * @param priority  The priority
+     * @return The amount of dropped entries
+     */
+    public synchronized long getDropped(MessagePriority priority) {
+        return lanes.get(priority).dropped;
+    }
+
+    /**
+     * Get the amount of entries of a priority that were rejected as it was full
+     * @param priority  The priority
+     * @return The amount of rejected entries
+     */
+    public synchronized long getRejected(MessagePriority priority) {
+        return lanes.get(priority).rejected;
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Remove the oldest entry to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Don't add the new entry
+         */
+        REJECT;
+
+        /**
+         * Get a policy by its name as used in configs, e.g. "drop-oldest"
+         * @param name  The name
+         * @return The policy
+         * @throws IllegalArgumentException if there is no policy with that name
+         */
+        public static OverflowPolicy fromConfig(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    public static class Limit {
+        public static final Limit DEFAULT = new Limit(1024, OverflowPolicy.DROP_OLDEST);
+
+        private final int maxSize;
+        private final OverflowPolicy policy;
+
+        /**
+         * The limit of a priority
+         * @param maxSize   The maximum amount of entries
+         * @param policy    What to do when a new entry is added while the maximum is reached
+         */
+        public Limit(int maxSize, OverflowPolicy policy) {
+            this.maxSize = maxSize;
+            this.policy = policy;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public OverflowPolicy getPolicy() {
+            return policy;
+        }
+    }
+
+    private class Lane {
+        private final Limit limit;
+        private final Deque<Entry<T>> entries = new ArrayDeque<>();
+        private int maxDepth = 0;
+        private long dropped = 0;
+        private long rejected = 0;
+
+        private Lane(Limit limit) {
+            this.limit = limit;
+        }
+    }
+
+    private static class Entry<T> {
+        private final long sequence;
+        private final T value;
+
+        private Entry(long sequence, T value) {
+            this.sequence = sequence;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of message data in compact frames. Keeps counters about how much it actually saves.
+ */
+public class PayloadCompression {
+
+    /**
+     * The default maximum length of decompressed data, same as the default memory limit of the fragmenter
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+
+    private final boolean enabled;
+    private final Codec codec;
+    private final int minSize;
+    private final int maxLength;
+    private final Set<String> excluded = new HashSet<>();
+
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong skippedMessages = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong decompressedMessages = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    /**
+     * Create a disabled compression which can still decompress received data
+     */
+    public PayloadCompression() {
+        this(false, Codec.DEFLATE, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Create a compression which accepts received data of up to {@link #DEFAULT_MAX_LENGTH} bytes
+     * @param enabled   Whether to compress sent data
+     * @param codec     The codec to use
+     * @param minSize   The minimum amount of bytes data needs to have to be compressed
+     * @param excluded  Plugin names or plugin:action combinations which should never get compressed
+     */
+    public PayloadCompression(boolean enabled, Codec codec, int minSize, Collection<String> excluded) {
+        this(enabled, codec, minSize, excluded, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Create a compression
+     * @param enabled   Whether to compress sent data
+     * @param codec     The codec to use
+     * @param minSize   The minimum amount of bytes data needs to have to be compressed
+     * @param excluded  Plugin names or plugin:action combinations which should never get compressed
+     * @param maxLength The maximum length which received data may have after decompressing it
+     */
+    public PayloadCompression(boolean enabled, Codec codec, int minSize, Collection<String> excluded, int maxLength) {
+        this.enabled = enabled;
+        this.codec = codec;
+        this.minSize = minSize;
+        this.maxLength = maxLength;
+        if (excluded != null) {
+            for (String exclusion : excluded) {
+                this.excluded.add(exclusion.toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Check whether a message should get compressed
+     * @param message   The message
+     * @return Whether its data should be compressed
+     */
+    public boolean shouldCompress(Message message) {
+        if (!enabled || message.getDataLength() < minSize) {
+            return false;
+        }
+        if (excluded.isEmpty()) {
+            return true;
+        }
+        String plugin = message.getSendingPlugin().toLowerCase(Locale.ROOT);
+        return !excluded.contains(plugin) && !excluded.contains(plugin + ":" + message.getAction().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compress data
+     * @param data  The data to compress, only the remaining bytes are used
+     * @return The compressed data or null if compressing wouldn't make it smaller
+     */
+    public byte[] compress(ByteBuffer data) {
+        long start = System.nanoTime();
+        int length = data.remaining();
+        byte[] input;
+        int offset;
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            input = new byte[length];
+            data.duplicate().get(input);
+            offset = 0;
+        }
+
+        Deflater deflater = new Deflater(codec.getLevel());
+        byte[] output = new byte[length];
+        int compressedLength;
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            compressedLength = deflater.deflate(output);
+            if (!deflater.finished()) {
+                // Output buffer is full so the result would be bigger than the original
+                compressedLength = -1;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        compressionNanos.addAndGet(System.nanoTime() - start);
+        uncompressedBytes.addAndGet(length);
+        if (compressedLength < 0 || compressedLength >= length) {
+            skippedMessages.incrementAndGet();
+            compressedBytes.addAndGet(length);
+            return null;
+        }
+        compressedMessages.incrementAndGet();
+        compressedBytes.addAndGet(compressedLength);
+        return Arrays.copyOf(output, compressedLength);
+    }
+
+    /**
+     * Decompress data
+     * @param data              The compressed data, only the remaining bytes are used
+     * @param originalLength    The length of the data before it was compressed
+     * @return The decompressed data
+     * @throws IllegalArgumentException if the data couldn't be decompressed or the original length is invalid
+     */
+    public ByteBuffer decompress(ByteBuffer data, int originalLength) {
+        // The length comes from the frame so check it before allocating the buffer for it
+        if (originalLength < 0 || originalLength > maxLength) {
+            throw new IllegalArgumentException("Invalid original data length " + originalLength + " (maximum is " + maxLength + ")");
+        }
+        long start = System.nanoTime();
+        byte[] input;
+        int offset;
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            input = new byte[data.remaining()];
+            data.duplicate().get(input);
+            offset = 0;
+        }
+
+        Inflater inflater = new Inflater();
+        byte[] output = new byte[originalLength];
+        try {
+            inflater.setInput(input, offset, data.remaining());
+            int length = inflater.inflate(output);
+            if (length != originalLength || !inflater.finished()) {
+                throw new IllegalArgumentException("Decompressed data has a different length than expected (" + originalLength + ")");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Unable to decompress data", e);
+        } finally {
+            inflater.end();
+        }
+        decompressionNanos.addAndGet(System.nanoTime() - start);
+        decompressedMessages.incrementAndGet();
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * Get the amount of messages that got compressed
+     * @return The amount of compressed messages
+     */
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    /**
+     * Get the amount of messages which were tried to compress but weren't smaller afterwards
+     * @return The amount of skipped messages
+     */
+    public long getSkippedMessages() {
+        return skippedMessages.get();
+    }
+
+    /**
+     * Get the ratio of the sent to the original size of all data that was tried to compress
+     * @return The compression ratio, 1 if nothing was compressed yet
+     */
+    public double getRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed > 0 ? (double) compressedBytes.get() / uncompressed : 1;
+    }
+
+    /**
+     * Get the amount of bytes that were saved by compressing
+     * @return The saved bytes
+     */
+    public long getSavedBytes() {
+        return uncompressedBytes.get() - compressedBytes.get();
+    }
+
+    /**
+     * Get the total time spent compressing
+     * @return The time in nanoseconds
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    /**
+     * Get the amount of received messages that got decompressed
+     * @return The amount of decompressed messages
+     */
+    public long getDecompressedMessages() {
+        return decompressedMessages.get();
+    }
+
+    /**
+     * Get the total time spent decompressing
+     * @return The time in nanoseconds
+     */
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+
+    public enum Codec {
+        /**
+         * Deflate with the default compression level
+         */
+        DEFLATE(Deflater.DEFAULT_COMPRESSION),
+        /**
+         * Deflate with the fastest compression level, trades ratio for less CPU time
+         */
+        DEFLATE_FAST(Deflater.BEST_SPEED);
+
+        private final int level;
+
+        Codec(int level) {
+            this.level = level;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+    }
+}
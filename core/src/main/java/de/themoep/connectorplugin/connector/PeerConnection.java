@@ -0,0 +1,722 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Connection which sends frames directly to the other servers and proxies over TCP without a broker in between.
+ * Every node listens on its own port and keeps a persistent connection to each peer that it sends to.
+ * Frames are prefixed with their length and messages for a single server or proxy are only sent to that one.
+ * All connections are handled by a single thread with a selector.
+ * <p>
+ * Nodes on the same host can additionally listen on a Unix domain socket in a shared directory.
+ * Peers which have a socket there are connected to through it instead of TCP if the Java version supports it.
+ */
+public class PeerConnection implements MessageTransport {
+
+    /**
+     * The size of the buffer that every connection reads into
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ConnectorPlugin plugin;
+    private final FrameCodec codec;
+    private final byte[] secret;
+    private final int maxFrameSize;
+    private final long maxQueuedBytes;
+    private final long reconnectDelay;
+    private final BiConsumer<String, Message> onMessage;
+
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final File socketDirectory;
+    private final File socketFile;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong receivedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    /**
+     * Create a peer-to-peer connection and start listening
+     * @param plugin            The plugin
+     * @param codec             The codec of the frames
+     * @param bindAddress       The address to listen on for connections of other peers
+     * @param peers             The names of all other servers and proxies (as returned by {@link ConnectorPlugin#getServerName()})
+     *                          and their addresses, an entry for this one is ignored
+     * @param secret            The secret that every peer has to send when connecting, should be the same on all of them
+     * @param maxFrameSize      The maximum size of a received frame in bytes, connections which send bigger ones get closed
+     * @param maxQueuedBytes    The maximum amount of bytes which are queued for a peer while it is unreachable
+     * @param reconnectDelay    The time in milliseconds after which to try again to connect to an unreachable peer
+     * @param socketDirectory   The directory in which the nodes on this host create their Unix domain sockets, null to only use TCP
+     * @param onMessage         Handler for received messages which takes the receiver data and the message
+     * @throws IllegalArgumentException if the address can't be bound
+     */
+    public PeerConnection(ConnectorPlugin plugin, FrameCodec codec, InetSocketAddress bindAddress, Map<String, InetSocketAddress> peers, String secret, int maxFrameSize, long maxQueuedBytes, long reconnectDelay, File socketDirectory, BiConsumer<String, Message> onMessage) {
+        this.plugin = plugin;
+        this.codec = codec;
+        this.secret = secret != null ? secret.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        this.maxFrameSize = maxFrameSize;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.reconnectDelay = Math.max(reconnectDelay, 100);
+        this.onMessage = onMessage;
+        for (Map.Entry<String, InetSocketAddress> entry : peers.entrySet()) {
+            if (!entry.getKey().equals(plugin.getServerName())) {
+                this.peers.put(entry.getKey(), new Peer(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        Selector selector = null;
+        ServerSocketChannel server = null;
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(bindAddress);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            try {
+                if (server != null) {
+                    server.close();
+                }
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException ignored) {}
+            throw new IllegalArgumentException("Unable to listen for peers on " + bindAddress, e);
+        }
+        this.selector = selector;
+        this.server = server;
+        plugin.logDebug("Listening for peers on " + bindAddress + ", connecting to " + this.peers.keySet());
+
+        if (socketDirectory != null && !UnixDomainSockets.isSupported()) {
+            plugin.logWarning("Unix domain sockets require Java 16 or newer, connecting to peers on this host over TCP instead");
+            socketDirectory = null;
+        }
+        File socketFile = null;
+        if (socketDirectory != null) {
+            socketFile = getSocketFile(socketDirectory, plugin.getServerName());
+            try {
+                listenLocally(socketDirectory, socketFile);
+                plugin.logDebug("Listening for peers on this host on " + socketFile);
+            } catch (IOException e) {
+                plugin.logError("Unable to listen on " + socketFile + ", connecting to peers on this host over TCP instead!", e);
+                socketDirectory = null;
+                socketFile = null;
+            }
+        }
+        this.socketDirectory = socketDirectory;
+        this.socketFile = socketFile;
+
+        thread = new Thread(this::run, plugin.getName() + " peer connection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void listenLocally(File socketDirectory, File socketFile) throws IOException {
+        if (!socketDirectory.isDirectory() && !socketDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory " + socketDirectory);
+        }
+        // A socket file which is left over from a previous run can't be bound again
+        Files.deleteIfExists(socketFile.toPath());
+        ServerSocketChannel localServer = UnixDomainSockets.openServer();
+        try {
+            localServer.bind(UnixDomainSockets.address(socketFile));
+            localServer.configureBlocking(false);
+            localServer.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            localServer.close();
+            throw e;
+        }
+    }
+
+    private static File getSocketFile(File socketDirectory, String serverName) {
+        return new File(socketDirectory, serverName.replaceAll("[^a-zA-Z0-9._-]", "_") + ".sock");
+    }
+
+    private void run() {
+        for (Peer peer : peers.values()) {
+            connect(peer);
+        }
+        while (running) {
+            try {
+                selector.select(reconnectDelay);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    Link link = (Link) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            finishConnect(key, link);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key, link);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key, link.peer);
+                        }
+                    } catch (IOException e) {
+                        plugin.logDebug("Connection to " + link.getName() + " failed: " + e.getMessage());
+                        close(key, link);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                for (Peer peer : peers.values()) {
+                    if (peer.key == null && peer.nextAttempt <= now) {
+                        connect(peer);
+                    }
+                }
+            } catch (Exception e) {
+                if (running) {
+                    plugin.logError("Error in peer connection loop!", e);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void accept(ServerSocketChannel server) {
+        SocketChannel channel = null;
+        try {
+            channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            if (server == this.server) {
+                channel.socket().setTcpNoDelay(true);
+            }
+            channel.register(selector, SelectionKey.OP_READ, new Link(null, server != this.server));
+        } catch (IOException e) {
+            plugin.logDebug("Unable to accept connection of peer: " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private void connect(Peer peer) {
+        SocketChannel channel = null;
+        File peerSocket = socketDirectory != null ? getSocketFile(socketDirectory, peer.name) : null;
+        // Alternate with TCP if the peer's socket didn't work last time as it might be left over from a crash
+        boolean local = peerSocket != null && !peer.skipLocal && peerSocket.exists();
+        peer.skipLocal = local;
+        try {
+            SocketAddress address;
+            if (local) {
+                channel = UnixDomainSockets.openSocket();
+                address = UnixDomainSockets.address(peerSocket);
+            } else {
+                channel = SocketChannel.open();
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                // Try to resolve the host again if it was unknown before
+                address = peer.address.isUnresolved()
+                        ? new InetSocketAddress(peer.address.getHostString(), peer.address.getPort())
+                        : peer.address;
+            }
+            channel.configureBlocking(false);
+            Link link = new Link(peer, local);
+            if (channel.connect(address)) {
+                peer.key = channel.register(selector, SelectionKey.OP_READ, link);
+                connected(peer);
+            } else {
+                peer.key = channel.register(selector, SelectionKey.OP_CONNECT, link);
+            }
+        } catch (IOException | UnresolvedAddressException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+            peer.key = null;
+            peer.nextAttempt = local ? 0 : System.currentTimeMillis() + reconnectDelay;
+            plugin.logDebug("Unable to connect to peer " + peer.name + " at " + (local ? peerSocket : peer.address) + ": " + e.getMessage());
+        }
+    }
+
+    private void finishConnect(SelectionKey key, Link link) throws IOException {
+        if (((SocketChannel) key.channel()).finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            connected(link.peer);
+        }
+    }
+
+    private void connected(Peer peer) {
+        // The hello with our name and the secret always has to be the first frame on a connection
+        String name = plugin.getServerName();
+        ByteBuffer hello = ByteBuffer.allocate(4 + FrameCodec.stringLength(name) + FrameCodec.varIntLength(secret.length) + secret.length);
+        hello.putInt(hello.capacity() - 4);
+        FrameCodec.writeString(hello, name);
+        FrameCodec.writeVarInt(hello, secret.length);
+        hello.put(secret);
+        hello.flip();
+        synchronized (peer) {
+            peer.queue.addFirst(hello);
+            peer.queuedBytes += hello.remaining();
+            peer.hello = hello;
+            peer.connected = true;
+        }
+        peer.key.interestOps(peer.key.interestOps() | SelectionKey.OP_WRITE);
+        boolean local = ((Link) peer.key.attachment()).local;
+        // The local socket works, use it again next time
+        peer.skipLocal = false;
+        plugin.logDebug("Connected to peer " + peer.name + (local ? " on this host" : " at " + peer.address));
+    }
+
+    private void read(SelectionKey key, Link link) throws IOException {
+        int read = ((SocketChannel) key.channel()).read(link.readBuffer);
+        if (read < 0) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer buffer = link.readBuffer;
+        buffer.flip();
+        try {
+            while (true) {
+                if (link.frame == null) {
+                    if (buffer.remaining() < 4) {
+                        break;
+                    }
+                    int length = buffer.getInt();
+                    if (length <= 0 || length > maxFrameSize) {
+                        throw new IOException("Received frame with invalid length " + length);
+                    }
+                    link.frame = new byte[length];
+                    link.framePosition = 0;
+                }
+                int chunk = Math.min(buffer.remaining(), link.frame.length - link.framePosition);
+                buffer.get(link.frame, link.framePosition, chunk);
+                link.framePosition += chunk;
+                if (link.framePosition < link.frame.length) {
+                    break;
+                }
+                byte[] frame = link.frame;
+                link.frame = null;
+                handleFrame(link, frame);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void handleFrame(Link link, byte[] data) throws IOException {
+        if (link.peer != null) {
+            throw new IOException("Received data on an outgoing connection");
+        }
+        if (link.remoteName == null) {
+            ByteBuffer hello = ByteBuffer.wrap(data);
+            String name;
+            byte[] remoteSecret;
+            try {
+                name = FrameCodec.readString(hello);
+                remoteSecret = new byte[FrameCodec.readVarInt(hello)];
+                hello.get(remoteSecret);
+            } catch (RuntimeException e) {
+                throw new IOException("Received invalid hello", e);
+            }
+            if (!MessageDigest.isEqual(secret, remoteSecret)) {
+                plugin.logWarning("Peer " + name + " connected with a wrong secret, closing the connection");
+                throw new IOException("Wrong secret");
+            }
+            link.remoteName = name;
+            plugin.logDebug("Peer " + name + " connected" + (link.local ? " on this host" : ""));
+            if (link.local) {
+                // The peer might have started after we connected to it over TCP, switch to its socket now
+                Peer peer = peers.get(name);
+                SelectionKey peerKey = peer != null ? peer.key : null;
+                if (peerKey != null && !((Link) peerKey.attachment()).local) {
+                    plugin.logDebug("Switching to the local socket of peer " + name);
+                    close(peerKey, (Link) peerKey.attachment());
+                    peer.nextAttempt = 0;
+                }
+            }
+            return;
+        }
+
+        receivedFrames.incrementAndGet();
+        try {
+            FrameCodec.Frame frame = codec.decode(data);
+            onMessage.accept(frame.getTarget(), frame.getMessage());
+        } catch (IllegalArgumentException e) {
+            plugin.logError("Error while decoding message from peer " + link.remoteName + "! ", e);
+        } catch (VersionMismatchException e) {
+            plugin.logWarning(e.getMessage() + ". Ignoring message!");
+        } catch (RuntimeException e) {
+            // Don't let a failing handler close the connection to the peer
+            plugin.logError("Error while handling message from peer " + link.remoteName + "! ", e);
+        }
+    }
+
+    private void write(SelectionKey key, Peer peer) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        synchronized (peer) {
+            ByteBuffer buffer;
+            while ((buffer = peer.queue.peekFirst()) != null) {
+                int written = channel.write(buffer);
+                peer.queuedBytes -= written;
+                if (buffer.hasRemaining()) {
+                    // Socket buffer is full, wait until it can be written to again
+                    return;
+                }
+                peer.queue.removeFirst();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(SelectionKey key, Link link) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+        if (link.peer != null) {
+            Peer peer = link.peer;
+            synchronized (peer) {
+                // The first frame might have been sent partially, send it again completely on the next connection
+                ByteBuffer first = peer.queue.peekFirst();
+                if (first != null && first.position() > 0) {
+                    peer.queuedBytes += first.position();
+                    first.rewind();
+                }
+                // A new connection gets a new hello
+                if (peer.hello != null && peer.queue.remove(peer.hello)) {
+                    peer.queuedBytes -= peer.hello.remaining();
+                }
+                peer.hello = null;
+                peer.connected = false;
+                peer.key = null;
+            }
+            peer.nextAttempt = System.currentTimeMillis() + reconnectDelay;
+        }
+    }
+
+    public void sendMessage(String targetData, Message message) {
+        sendMessage(targetData, message, null);
+    }
+
+    /**
+     * Send a message
+     * @param targetData    The target data of the message
+     * @param message       The message
+     * @param destination   The only server or proxy which will handle the message or null if it should be sent to all
+     */
+    public void sendMessage(String targetData, Message message, String destination) {
+        Collection<Peer> receivers;
+        boolean local;
+        if (destination != null && destination.equals(plugin.getServerName())) {
+            receivers = null;
+            local = true;
+        } else if (destination != null && peers.containsKey(destination)) {
+            receivers = Collections.singleton(peers.get(destination));
+            local = false;
+        } else {
+            if (destination != null) {
+                plugin.logDebug("No peer configured for " + destination + ", sending message to all peers");
+            }
+            receivers = peers.values();
+            local = true;
+        }
+
+        if (receivers != null && !receivers.isEmpty()) {
+            FrameCodec.PreparedFrame frame = codec.prepare(targetData, message);
+            if (frame.getLength() > maxFrameSize) {
+                // Peers would close the connection and it would be sent again on every reconnect
+                droppedFrames.incrementAndGet();
+                plugin.logWarning("Frame of " + message.getSendingPlugin() + ":" + message.getAction() + " is bigger than the maximum frame size of "
+                        + maxFrameSize + " bytes that peers accept, dropping it!");
+                receivers = Collections.emptyList();
+            }
+            ByteBuffer data = ByteBuffer.allocate(4 + frame.getLength());
+            data.putInt(frame.getLength());
+            frame.writeTo(data);
+            data.flip();
+            for (Peer peer : receivers) {
+                enqueue(peer, data.duplicate());
+            }
+        }
+        if (local) {
+            // Messages to everyone also reach ourselves like they would with a broker
+            tasks.add(() -> onMessage.accept(targetData, message));
+            selector.wakeup();
+        }
+    }
+
+    private void enqueue(Peer peer, ByteBuffer data) {
+        synchronized (peer) {
+            if (peer.queuedBytes + data.remaining() > maxQueuedBytes) {
+                droppedFrames.incrementAndGet();
+                plugin.logDebug("Queue of peer " + peer.name + " is full, dropping message");
+                return;
+            }
+            sentFrames.incrementAndGet();
+            if (peer.connected && peer.queue.isEmpty()) {
+                // Write directly from this thread if nothing is waiting, this saves the hand-off to the selector thread
+                try {
+                    ((SocketChannel) peer.key.channel()).write(data);
+                } catch (IOException e) {
+                    // The selector thread notices the broken connection and sends the rest on the next one
+                }
+                if (!data.hasRemaining()) {
+                    return;
+                }
+            }
+            peer.queue.addLast(data);
+            peer.queuedBytes += data.remaining();
+        }
+        tasks.add(() -> {
+            SelectionKey key = peer.key;
+            if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Get the maximum size of a frame which peers accept
+     * @return The maximum size in bytes
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Get the names of the configured peers
+     * @return The names of all other servers and proxies
+     */
+    public Collection<String> getPeers() {
+        return Collections.unmodifiableSet(peers.keySet());
+    }
+
+    /**
+     * Get the amount of bytes which are waiting to be sent to a peer
+     * @param name  The name of the peer
+     * @return The amount of queued bytes or -1 if there is no such peer
+     */
+    public long getQueuedBytes(String name) {
+        Peer peer = peers.get(name);
+        if (peer == null) {
+            return -1;
+        }
+        synchronized (peer) {
+            return peer.queuedBytes;
+        }
+    }
+
+    /**
+     * Check whether a peer is connected to through a Unix domain socket
+     * @param name  The name of the peer
+     * @return Whether the peer is on this host and connected locally
+     */
+    public boolean isConnectedLocally(String name) {
+        Peer peer = peers.get(name);
+        SelectionKey key = peer != null ? peer.key : null;
+        return key != null && ((Link) key.attachment()).local;
+    }
+
+    /**
+     * Get the amount of frames that were queued to be sent to peers
+     * @return The amount of sent frames
+     */
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    /**
+     * Get the amount of frames that were received from peers
+     * @return The amount of received frames
+     */
+    public long getReceivedFrames() {
+        return receivedFrames.get();
+    }
+
+    /**
+     * Get the amount of frames that were dropped because the queue of their peer was full
+     * @return The amount of dropped frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ignored) {}
+        try {
+            server.close();
+        } catch (IOException ignored) {}
+        if (socketFile != null) {
+            try {
+                Files.deleteIfExists(socketFile.toPath());
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Parse peers in the format {@code <name>=<host>:<port>}
+     * @param entries   The entries to parse
+     * @return The addresses of the peers by their name
+     * @throws IllegalArgumentException if an entry is invalid
+     */
+    public static Map<String, InetSocketAddress> parsePeers(List<String> entries) {
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        for (String entry : entries) {
+            entry = entry.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException("Invalid peer " + entry + ", it needs to be in the format <name>=<host>:<port>");
+            }
+            peers.put(entry.substring(0, equals).trim(), parseAddress(entry.substring(equals + 1).trim()));
+        }
+        return peers;
+    }
+
+    /**
+     * Read peers from a file which contains one peer per line in the format {@code <name>=<host>:<port>}.
+     * Empty lines and lines starting with # are ignored.
+     * @param file  The file to read
+     * @return The addresses of the peers by their name
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if an entry is invalid
+     */
+    public static Map<String, InetSocketAddress> readPeers(File file) throws IOException {
+        return parsePeers(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse an address in the format {@code <host>:<port>}
+     * @param address   The address
+     * @return The address, unresolved if the host is unknown
+     * @throws IllegalArgumentException if the address is invalid
+     */
+    public static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid address " + address + ", it needs to be in the format <host>:<port>");
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            return new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in address " + address, e);
+        }
+    }
+
+    private static class Peer {
+        private final String name;
+        private final InetSocketAddress address;
+        private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        private ByteBuffer hello;
+        private boolean connected = false;
+        private volatile SelectionKey key;
+        private long nextAttempt = 0;
+        private boolean skipLocal = false;
+
+        private Peer(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+    }
+
+    private static class Link {
+        private final Peer peer;
+        private final boolean local;
+        private final ByteBuffer readBuffer;
+        private String remoteName;
+        private byte[] frame;
+        private int framePosition;
+
+        private Link(Peer peer, boolean local) {
+            this.peer = peer;
+            this.local = local;
+            // Outgoing connections only have to notice when they get closed
+            this.readBuffer = ByteBuffer.allocate(peer != null ? 16 : READ_BUFFER_SIZE);
+        }
+
+        private String getName() {
+            if (peer != null) {
+                return peer.name;
+            }
+            return remoteName != null ? remoteName : "unknown peer";
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.io.ByteArrayDataOutput;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link ByteArrayDataOutput} whose buffer gets reused by the same thread instead of allocating
+ * and growing a new one for every message that is written.
+ * <p>
+ * Calling {@link #toByteArray()} returns the buffer to the pool, so the output must not be used afterwards!
+ * Every output borrows the buffer of its thread, if the buffer is already borrowed then a new one is allocated.
+ * An output which is never closed (e.g. because a writer threw) keeps its buffer and the pool just gets a new one.
+ * <p>
+ * Outputs can be compact which allows writers to use smaller encodings like varints.
+ * Data written that way has to be read with a {@link CompactDataInput}.
+ */
+public class PooledDataOutput implements ByteArrayDataOutput, AutoCloseable {
+
+    private static final int INITIAL_SIZE = 256;
+    /**
+     * Buffers which grew bigger than this are not kept after they were used to not hold onto a lot of memory
+     */
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> POOL = new ThreadLocal<>();
+
+    private final boolean compact;
+    private final boolean quantizingLocations;
+    private byte[] buffer;
+    private int count = 0;
+
+    private PooledDataOutput(byte[] buffer, boolean compact, boolean quantizingLocations) {
+        this.buffer = buffer;
+        this.compact = compact;
+        this.quantizingLocations = quantizingLocations;
+    }
+
+    /**
+     * Get an output which uses the buffer of the current thread
+     * @return An empty output
+     */
+    public static PooledDataOutput acquire() {
+        return acquire(false, false);
+    }
+
+    /**
+     * Get an output which uses the buffer of the current thread
+     * @param compact               Whether the data should be written in the compact format
+     * @param quantizingLocations   Whether locations should be written with reduced precision in the compact format
+     * @return An empty output
+     */
+    public static PooledDataOutput acquire(boolean compact, boolean quantizingLocations) {
+        byte[] buffer = POOL.get();
+        if (buffer != null) {
+            POOL.set(null);
+        } else {
+            buffer = new byte[INITIAL_SIZE];
+        }
+        return new PooledDataOutput(buffer, compact, compact && quantizingLocations);
+    }
+
+    /**
+     * Whether data is written in the compact format
+     * @return Whether this output is compact
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Whether locations should be written with reduced precision
+     * @return Whether locations should get quantized
+     */
+    public boolean isQuantizingLocations() {
+        return quantizingLocations;
+    }
+
+    /**
+     * Write a number with 7 bits per byte, the highest bit marks whether another byte follows.
+     * Negative numbers always take 10 bytes, use {@link #writeSignedVarLong(long)} for those.
+     * @param value The number to write
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[count++] = (byte) value;
+    }
+
+    /**
+     * Write a number which might be negative so that small absolute values only take a few bytes
+     * @param value The number to write
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = count + additional;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Get the amount of bytes written so far
+     * @return The amount of written bytes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get the written bytes and return the buffer to the pool. The output must not be used afterwards!
+     * @return A copy of exactly the written bytes
+     */
+    @Override
+    public byte[] toByteArray() {
+        byte[] bytes = Arrays.copyOf(buffer, count);
+        close();
+        return bytes;
+    }
+
+    /**
+     * Return the buffer to the pool without getting the written bytes
+     */
+    @Override
+    public void close() {
+        if (buffer == null) {
+            return;
+        }
+        // Only keep one buffer, a nested output might have returned its own already
+        if (buffer.length <= MAX_RETAINED_SIZE && POOL.get() == null) {
+            POOL.set(buffer);
+        }
+        buffer = null;
+        count = 0;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        ensureCapacity(2);
+        buffer[count++] = (byte) (v >>> 8);
+        buffer[count++] = (byte) v;
+    }
+
+    @Override
+    public void writeChar(int v) {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        buffer[count++] = (byte) (v >>> 24);
+        buffer[count++] = (byte) (v >>> 16);
+        buffer[count++] = (byte) (v >>> 8);
+        buffer[count++] = (byte) v;
+    }
+
+    @Override
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    /**
+     * Write the low byte of every char of a string. Deprecated in {@link ByteArrayDataOutput} as it loses data
+     * for non-Latin-1 chars but still has to be implemented to fulfill the interface.
+     * @param s The string
+     * @deprecated Use {@link #writeUTF(String)} or write the bytes of the string in an explicit charset
+     */
+    @Deprecated
+    @Override
+    public void writeBytes(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        ensureCapacity(s.length() * 2);
+        for (int i = 0; i < s.length(); i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) {
+        int length = FrameCodec.utfLength(s);
+        ensureCapacity(length);
+        FrameCodec.writeUTF(ByteBuffer.wrap(buffer, count, length), s);
+        count += length;
+    }
+}
@@ -0,0 +1,198 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends messages on a separate thread with one queue per {@link MessagePriority} so that big transfers of
+ * other plugins can't hold up the messages that players are waiting for. The queues are drained by weight:
+ * with the weights 8, 4 and 1, up to eight interactive and four normal messages are sent for every bulk one
+ * while all of them have messages waiting. Messages of the same priority keep their order.
+ */
+public class PriorityLanes {
+
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final ConnectorPlugin plugin;
+    private final Outbox<Runnable> queues;
+    private final int[] weights = new int[PRIORITIES.length];
+    private final int[] credits = new int[PRIORITIES.length];
+    private final LongAdder[] sent = new LongAdder[PRIORITIES.length];
+    private final Thread sender;
+    private boolean running = true;
+
+    /**
+     * Create the lanes and start the thread which sends their messages
+     * @param plugin    The plugin
+     * @param weights   How many messages of a priority are sent per round, priorities without one get a weight of 1
+     * @param limits    The limits of the queues, priorities without one get the default limit
+     */
+    public PriorityLanes(ConnectorPlugin plugin, Map<MessagePriority, Integer> weights, Map<MessagePriority, Outbox.Limit> limits) {
+        this.plugin = plugin;
+        this.queues = new Outbox<>(limits);
+        for (MessagePriority priority : PRIORITIES) {
+            this.weights[priority.ordinal()] = Math.max(weights.getOrDefault(priority, 1), 1);
+            this.credits[priority.ordinal()] = this.weights[priority.ordinal()];
+            this.sent[priority.ordinal()] = new LongAdder();
+        }
+        sender = new Thread(this::run, plugin.getName() + " priority lanes");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Create weights with the default share of 8 interactive and 4 normal messages per bulk one
+     * @return The default weights
+     */
+    public static Map<MessagePriority, Integer> defaultWeights() {
+        Map<MessagePriority, Integer> weights = new EnumMap<>(MessagePriority.class);
+        weights.put(MessagePriority.INTERACTIVE, 8);
+        weights.put(MessagePriority.NORMAL, 4);
+        weights.put(MessagePriority.BULK, 1);
+        return weights;
+    }
+
+    /**
+     * Queue a message to be sent
+     * @param priority  The priority of the message
+     * @param send      Sends the message
+     * @return Whether the message was queued, false if its lane is full or the lanes were closed
+     */
+    public synchronized boolean send(MessagePriority priority, Runnable send) {
+        if (!running || !queues.add(priority, send)) {
+            return false;
+        }
+        notifyAll();
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                while ((next = next()) == null) {
+                    if (!running) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                plugin.logError("Error while sending message! ", e);
+            }
+        }
+    }
+
+    /**
+     * Take out the next message, the highest priority that still has credit in this round goes first
+     * @return The next message or null if all lanes are empty
+     */
+    private Runnable next() {
+        for (int round = 0; round < 2; round++) {
+            for (MessagePriority priority : PRIORITIES) {
+                int i = priority.ordinal();
+                if (credits[i] > 0) {
+                    Runnable next = queues.poll(priority);
+                    if (next != null) {
+                        credits[i]--;
+                        sent[i].increment();
+                        return next;
+                    }
+                }
+            }
+            if (queues.isEmpty()) {
+                return null;
+            }
+            // All lanes with waiting messages used up their share, start a new round
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+        return null;
+    }
+
+    /**
+     * Get the amount of messages waiting in the lane of a priority
+     * @param priority  The priority
+     * @return The amount of queued messages
+     */
+    public int getQueuedMessages(MessagePriority priority) {
+        return queues.getDepth(priority);
+    }
+
+    /**
+     * Get the highest amount of messages that were waiting in the lane of a priority at the same time
+     * @param priority  The priority
+     * @return The maximum amount of queued messages
+     */
+    public int getMaxQueuedMessages(MessagePriority priority) {
+        return queues.getMaxDepth(priority);
+    }
+
+    /**
+     * Get the amount of messages of a priority which were sent
+     * @param priority  The priority
+     * @return The amount of sent messages
+     */
+    public long getSentMessages(MessagePriority priority) {
+        return sent[priority.ordinal()].sum();
+    }
+
+    /**
+     * Get the amount of messages of a priority which were discarded as its lane was full
+     * @param priority  The priority
+     * @return The amount of dropped and rejected messages
+     */
+    public long getDiscardedMessages(MessagePriority priority) {
+        return queues.getDropped(priority) + queues.getRejected(priority);
+    }
+
+    /**
+     * Stop the lanes. Messages which are still queued get sent on the calling thread.
+     */
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Runnable next;
+        while ((next = queues.poll()) != null) {
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                plugin.logError("Error while sending message! ", e);
+            }
+        }
+    }
+}
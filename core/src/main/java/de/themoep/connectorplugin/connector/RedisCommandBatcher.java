@@ -0,0 +1,156 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.lettuce.core.api.StatefulConnection;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disables the automatic flushing of a Redis connection and instead flushes its commands in batches,
+ * either once a certain amount of commands was issued or a certain time after the first one, whichever comes first.
+ */
+public class RedisCommandBatcher {
+
+    private final int maxCommands;
+    private final long maxDelay;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile StatefulConnection<?, ?> connection;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedCommands = new AtomicLong();
+    private final AtomicInteger maxBatchSize = new AtomicInteger();
+
+    /**
+     * Create a batcher
+     * @param name          The name of the thread that flushes delayed batches
+     * @param maxCommands   The amount of commands after which a batch is flushed right away, 1 or less to disable batching
+     * @param maxDelay      The time in microseconds after the first command of a batch after which it gets flushed, 0 to disable batching
+     */
+    public RedisCommandBatcher(String name, int maxCommands, long maxDelay) {
+        this.maxCommands = maxCommands;
+        this.maxDelay = maxDelay;
+        if (isEnabled()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Whether commands get batched at all
+     * @return Whether batching is enabled
+     */
+    public boolean isEnabled() {
+        return maxCommands > 1 && maxDelay > 0;
+    }
+
+    /**
+     * Set the connection whose commands should be batched. This disables its automatic flushing.
+     * @param connection    The connection
+     */
+    public void setConnection(StatefulConnection<?, ?> connection) {
+        if (isEnabled()) {
+            connection.setAutoFlushCommands(false);
+        }
+        this.connection = connection;
+    }
+
+    /**
+     * Notify the batcher that a command was issued on the connection
+     */
+    public void added() {
+        if (!isEnabled()) {
+            return;
+        }
+        int count = pending.incrementAndGet();
+        if (count >= maxCommands) {
+            flush();
+        } else if (count == 1) {
+            scheduler.schedule(this::flush, maxDelay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Flush all commands which were issued since the last flush
+     */
+    public void flush() {
+        int count = pending.getAndSet(0);
+        StatefulConnection<?, ?> connection = this.connection;
+        if (count > 0 && connection != null) {
+            connection.flushCommands();
+            flushes.incrementAndGet();
+            flushedCommands.addAndGet(count);
+            maxBatchSize.accumulateAndGet(count, Math::max);
+        }
+    }
+
+    /**
+     * Get the amount of batches that were flushed
+     * @return The amount of flushes
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * Get the amount of commands that were flushed in batches
+     * @return The amount of flushed commands
+     */
+    public long getFlushedCommands() {
+        return flushedCommands.get();
+    }
+
+    /**
+     * Get the average amount of commands per flushed batch
+     * @return The average batch size, 0 if nothing was flushed yet
+     */
+    public double getAverageBatchSize() {
+        long flushes = this.flushes.get();
+        return flushes > 0 ? (double) flushedCommands.get() / flushes : 0;
+    }
+
+    /**
+     * Get the biggest amount of commands that were flushed at once
+     * @return The maximum batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    /**
+     * Flush the remaining commands and stop the flushing thread
+     */
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            flush();
+        }
+    }
+}
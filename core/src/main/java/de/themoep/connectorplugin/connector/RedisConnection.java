@@ -17,60 +17,80 @@ package de.themoep.connectorplugin.connector;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.connectorplugin.ConnectorPlugin;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
-import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.codec.ByteArrayCodec;
 import io.lettuce.core.codec.RedisCodec;
 import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.codec.ToByteBufEncoder;
 import io.lettuce.core.pubsub.RedisPubSubListener;
 import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import io.netty.buffer.ByteBuf;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Map;
 import java.util.function.BiConsumer;
 
-public class RedisConnection {
+public class RedisConnection implements MessageTransport {
 
     private final ConnectorPlugin plugin;
+    private final FrameCodec codec;
+    private final boolean directChannels;
+    private final String directChannel;
 
     private final RedisClient client;
-    private StatefulRedisConnection<String, byte[]> connection;
+    private final RedisPublisher publisher;
+    private final RedisPublisher interactivePublisher;
 
-    public RedisConnection(ConnectorPlugin plugin, String uriString, String host, int port, int db, String password, long timeout, BiConsumer<String, Message> onMessage) {
+    /**
+     * Create a connection to Redis
+     * @param plugin            The plugin
+     * @param codec             The codec of the frames
+     * @param uriString         The URI of the Redis server, if set the other connection details are ignored
+     * @param host              The host of the Redis server
+     * @param port              The port of the Redis server
+     * @param db                The database to use
+     * @param password          The password
+     * @param timeout           The timeout in seconds
+     * @param directChannels    Whether messages for a single server or proxy should only be published to its own channel.
+     *                          All servers and proxies need to support this when it's enabled!
+     * @param batchCommands     The amount of published messages after which they get flushed right away
+     * @param batchDelay        The time in microseconds after the first published message after which it gets flushed
+     * @param outboxLimits      The limits of the outbox which buffers messages while the connection is down
+     * @param healthCheckInterval   The interval in seconds in which the connection is checked
+     * @param interactiveConnection Whether to send {@link MessagePriority#INTERACTIVE} messages through their own
+     *                              connection without batching so that they don't wait behind big messages
+     * @param onMessage         Handler for received messages which takes the receiver data and the message
+     */
+    public RedisConnection(ConnectorPlugin plugin, FrameCodec codec, String uriString, String host, int port, int db, String password, long timeout, boolean directChannels, int batchCommands, long batchDelay, Map<MessagePriority, Outbox.Limit> outboxLimits, long healthCheckInterval, boolean interactiveConnection, BiConsumer<String, Message> onMessage) {
         this.plugin = plugin;
-        RedisURI uri;
-        if (uriString != null && !uriString.isEmpty()) {
-            uri = RedisURI.create(uriString);
-        } else {
-            uri = new RedisURI();
-            if (host != null && !host.isEmpty()) {
-                uri.setHost(host);
-            }
-            if (port > 0) {
-                uri.setPort(port);
-            }
-            if (db > -1) {
-                uri.setDatabase(db);
-            }
-            if (password != null && !password.isEmpty()) {
-                uri.setPassword(password);
-            }
-            if (timeout > 0) {
-                uri.setTimeout(Duration.ofSeconds(timeout));
-            }
-        }
-        client = RedisClient.create(uri);
+        this.codec = codec;
+        this.directChannels = directChannels;
+        this.directChannel = getDirectChannel(plugin.getServerName());
+        client = RedisClient.create(createUri(uriString, host, port, db, password, timeout));
+        publisher = new RedisPublisher(
+                plugin,
+                client,
+                new RedisCommandBatcher(plugin.getName() + " Redis flusher", batchCommands, batchDelay),
+                outboxLimits,
+                healthCheckInterval
+        );
+        interactivePublisher = interactiveConnection ? new RedisPublisher(
+                plugin,
+                client,
+                new RedisCommandBatcher(plugin.getName() + " Redis interactive flusher", 1, 0),
+                outboxLimits,
+                healthCheckInterval
+        ) : null;
 
         StatefulRedisPubSubConnection<String, byte[]> connection = client.connectPubSub(new StringByteArrayCodec());
         connection.addListener(new RedisPubSubListener<String, byte[]>() {
             @Override
             public void message(String channel, byte[] data) {
-                if (!channel.equals(plugin.getMessageChannel())) {
+                if (!channel.equals(plugin.getMessageChannel()) && !channel.equals(directChannel)) {
                     return;
                 }
                 if (data.length == 0) {
@@ -78,17 +98,9 @@ public class RedisConnection {
                     return;
                 }
 
-                ByteArrayDataInput in = ByteStreams.newDataInput(data);
-                String group = in.readUTF();
-
-                String target = in.readUTF();
-
-                int messageLength = in.readInt();
-                byte[] messageData = new byte[messageLength];
-                in.readFully(messageData);
-
                 try {
-                    onMessage.accept(target, Message.fromByteArray(group, messageData));
+                    FrameCodec.Frame frame = codec.decode(data);
+                    onMessage.accept(frame.getTarget(), frame.getMessage());
                 } catch (IllegalArgumentException e) {
                     plugin.logError("Error while decoding message on " + channel + " redis channel! ", e);
                 } catch (VersionMismatchException e) {
@@ -112,39 +124,150 @@ public class RedisConnection {
             public void punsubscribed(String pattern, long count) {}
         });
 
-        connection.async().subscribe(plugin.getMessageChannel());
+        // Always listen on our own channel so that others can send to it directly no matter our setting
+        connection.async().subscribe(plugin.getMessageChannel(), directChannel);
+    }
+
+    /**
+     * Get the channel on which only a certain server or proxy receives messages
+     * @param serverName    The name of the server or ID of the proxy
+     * @return The channel name
+     */
+    public String getDirectChannel(String serverName) {
+        return plugin.getMessageChannel() + ":" + serverName;
     }
 
     public void sendMessage(String targetData, Message message) {
-        byte[] messageData = message.writeToByteArray();
-
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message.getGroup());
-        out.writeUTF(targetData != null ? targetData : "");
-        out.writeInt(messageData.length);
-        out.write(messageData);
-        byte[] dataToSend = out.toByteArray();
-
-        Runnable sendMessage = () -> connection.async().publish(plugin.getMessageChannel(), dataToSend);
-
-        if (connection == null || !connection.isOpen()) {
-            plugin.logDebug("No connection to Redis, reconnecting...");
-            plugin.runAsync(() -> {
-                if (connection == null || !connection.isOpen()) {
-                    connection = client.connect(new StringByteArrayCodec());
-                }
-                sendMessage.run();
-            });
-        } else {
-            sendMessage.run();
-        }
+        sendMessage(targetData, message, null);
+    }
+
+    /**
+     * Publish a message
+     * @param targetData    The target data of the message
+     * @param message       The message
+     * @param destination   The only server or proxy which will handle the message or null if it should be broadcast.
+     *                      If direct channels are enabled then the message is only published to this one's channel.
+     */
+    public void sendMessage(String targetData, Message message, String destination) {
+        // The frame is only written once the command is sent, directly into the connection's own buffer
+        FrameCodec.PreparedFrame frame = codec.prepare(targetData, message);
+        String channel = directChannels && destination != null && !destination.isEmpty()
+                ? getDirectChannel(destination)
+                : plugin.getMessageChannel();
+
+        MessagePriority priority = MessagePriority.of(plugin.getName(), message);
+        getPublisher(priority).send(priority, commands -> commands.publish(channel, frame));
+    }
+
+    /**
+     * Get the publisher which sends the messages and buffers them while the connection is down
+     * @return The publisher
+     */
+    public RedisPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Get the publisher which sends messages of a certain priority
+     * @param priority  The priority of the messages
+     * @return The interactive publisher for interactive messages if it is enabled, the normal one otherwise
+     */
+    public RedisPublisher getPublisher(MessagePriority priority) {
+        return priority == MessagePriority.INTERACTIVE && interactivePublisher != null ? interactivePublisher : publisher;
     }
 
     public void close() {
+        publisher.close();
+        if (interactivePublisher != null) {
+            interactivePublisher.close();
+        }
         client.shutdown();
     }
 
-    private class StringByteArrayCodec implements RedisCodec<String, byte[]> {
+    /**
+     * Create the URI of a Redis server
+     * @param uriString The URI as a string, if set the other connection details are ignored
+     * @param host      The host
+     * @param port      The port
+     * @param db        The database to use
+     * @param password  The password
+     * @param timeout   The timeout in seconds
+     * @return The URI
+     */
+    static RedisURI createUri(String uriString, String host, int port, int db, String password, long timeout) {
+        RedisURI uri;
+        if (uriString != null && !uriString.isEmpty()) {
+            uri = RedisURI.create(uriString);
+        } else {
+            uri = new RedisURI();
+            if (host != null && !host.isEmpty()) {
+                uri.setHost(host);
+            }
+            if (port > 0) {
+                uri.setPort(port);
+            }
+            if (db > -1) {
+                uri.setDatabase(db);
+            }
+            if (password != null && !password.isEmpty()) {
+                uri.setPassword(password);
+            }
+            if (timeout > 0) {
+                uri.setTimeout(Duration.ofSeconds(timeout));
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Codec for publishing which writes frames straight into the buffers of the Redis client
+     */
+    static class StringFrameCodec implements RedisCodec<String, FrameCodec.PreparedFrame>, ToByteBufEncoder<String, FrameCodec.PreparedFrame> {
+
+        private final StringCodec stringCodec = new StringCodec(StandardCharsets.UTF_8);
+
+        @Override
+        public String decodeKey(ByteBuffer bytes) {
+            return stringCodec.decodeKey(bytes);
+        }
+
+        @Override
+        public FrameCodec.PreparedFrame decodeValue(ByteBuffer bytes) {
+            throw new UnsupportedOperationException("Frames can only be encoded with this codec");
+        }
+
+        @Override
+        public ByteBuffer encodeKey(String key) {
+            return stringCodec.encodeKey(key);
+        }
+
+        @Override
+        public ByteBuffer encodeValue(FrameCodec.PreparedFrame value) {
+            return ByteBuffer.wrap(value.toByteArray());
+        }
+
+        @Override
+        public void encodeKey(String key, ByteBuf target) {
+            stringCodec.encodeKey(key, target);
+        }
+
+        @Override
+        public void encodeValue(FrameCodec.PreparedFrame value, ByteBuf target) {
+            target.ensureWritable(value.getLength());
+            value.writeTo(target.nioBuffer(target.writerIndex(), value.getLength()));
+            target.writerIndex(target.writerIndex() + value.getLength());
+        }
+
+        @Override
+        public int estimateSize(Object keyOrValue) {
+            if (keyOrValue instanceof FrameCodec.PreparedFrame) {
+                return ((FrameCodec.PreparedFrame) keyOrValue).getLength();
+            }
+            return stringCodec.estimateSize(keyOrValue);
+        }
+    }
+
+    static class StringByteArrayCodec implements RedisCodec<String, byte[]> {
 
         private final StringCodec stringCodec = new StringCodec();
         private final ByteArrayCodec byteArrayCodec = new ByteArrayCodec();
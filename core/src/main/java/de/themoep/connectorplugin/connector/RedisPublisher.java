@@ -0,0 +1,277 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The connection which is used to send frames to Redis. It is opened right away and checked regularly.
+ * Commands which are sent while it is down are kept in an {@link Outbox} and sent in order once it is back.
+ */
+public class RedisPublisher {
+
+    /**
+     * Seconds between attempts to open the connection if the first one failed
+     */
+    private static final long CONNECT_RETRY_DELAY = 5;
+
+    private final ConnectorPlugin plugin;
+    private final RedisClient client;
+    private final RedisCommandBatcher batcher;
+    private final Outbox<Command> outbox;
+    private final long healthCheckInterval;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection;
+    private volatile boolean healthy = false;
+
+    /**
+     * Create a publisher and connect it. This also configures the client to reject commands while it is disconnected
+     * so it should be created before any other connection of the client is opened.
+     * @param plugin                The plugin
+     * @param client                The Redis client
+     * @param batcher               The batcher which flushes the sent commands
+     * @param outboxLimits          The limits of the outbox for commands which are sent while the connection is down
+     * @param healthCheckInterval   The interval in seconds in which the connection is checked
+     */
+    public RedisPublisher(ConnectorPlugin plugin, RedisClient client, RedisCommandBatcher batcher, Map<MessagePriority, Outbox.Limit> outboxLimits, long healthCheckInterval) {
+        this.plugin = plugin;
+        this.client = client;
+        this.batcher = batcher;
+        this.outbox = new Outbox<>(outboxLimits);
+        this.healthCheckInterval = healthCheckInterval;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, plugin.getName() + " Redis publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // We buffer commands ourselves while disconnected instead of letting the client queue them without a limit
+        client.setOptions(ClientOptions.builder().disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS).build());
+        client.addListener(new RedisConnectionStateListener() {
+            @Override
+            public void onRedisConnected(RedisChannelHandler<?, ?> channelHandler, SocketAddress socketAddress) {
+                if (channelHandler == connection) {
+                    healthy = true;
+                    scheduler.execute(RedisPublisher.this::drain);
+                }
+            }
+
+            @Override
+            public void onRedisDisconnected(RedisChannelHandler<?, ?> channelHandler) {
+                if (channelHandler == connection) {
+                    healthy = false;
+                    plugin.logDebug("Lost connection to Redis, buffering messages until it is back");
+                }
+            }
+        });
+
+        if (!connect()) {
+            scheduler.schedule(this::retryConnect, CONNECT_RETRY_DELAY, TimeUnit.SECONDS);
+        }
+        if (healthCheckInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkHealth, healthCheckInterval, healthCheckInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Open the connection
+     * @return Whether it was opened
+     */
+    private boolean connect() {
+        try {
+            StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection = client.connect(new RedisConnection.StringFrameCodec());
+            batcher.setConnection(connection);
+            this.connection = connection;
+            healthy = true;
+            drain();
+            return true;
+        } catch (Exception e) {
+            plugin.logError("Unable to connect to Redis! Buffering messages until the connection succeeds...", e);
+            return false;
+        }
+    }
+
+    /**
+     * Try to open the connection until it succeeds, the client only reconnects connections which were established once
+     */
+    private void retryConnect() {
+        if (connection == null && !connect() && !scheduler.isShutdown()) {
+            scheduler.schedule(this::retryConnect, CONNECT_RETRY_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    private void checkHealth() {
+        StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection = this.connection;
+        if (connection == null) {
+            // The initial connect is still being retried
+            return;
+        }
+        if (!connection.isOpen()) {
+            healthy = false;
+            plugin.logDebug("Redis is still disconnected, " + outbox.getDepth() + " messages are buffered");
+            return;
+        }
+        try {
+            RedisFuture<String> ping = connection.async().ping();
+            // Commands might not get flushed automatically if they are batched
+            connection.flushCommands();
+            ping.get(healthCheckInterval, TimeUnit.SECONDS);
+            healthy = true;
+        } catch (Exception e) {
+            healthy = false;
+            plugin.logWarning("Redis health check failed: " + e.getMessage());
+            return;
+        }
+        if (!outbox.isEmpty()) {
+            drain();
+        }
+    }
+
+    /**
+     * Send a command or put it into the outbox if the connection is down
+     * @param priority  The priority of the sent message
+     * @param command   The command to run with the connection
+     */
+    public void send(MessagePriority priority, Function<RedisAsyncCommands<String, FrameCodec.PreparedFrame>, RedisFuture<?>> command) {
+        synchronized (outbox) {
+            StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection = this.connection;
+            // Don't overtake buffered messages if the connection just came back
+            if (connection != null && connection.isOpen() && outbox.isEmpty()) {
+                run(connection, priority, command);
+                return;
+            }
+            if (!outbox.add(priority, new Command(priority, command))) {
+                plugin.logDebug("Outbox for " + priority + " messages is full, rejecting message");
+            }
+        }
+        if (connection != null && connection.isOpen() && !scheduler.isShutdown()) {
+            scheduler.execute(this::drain);
+        }
+    }
+
+    /**
+     * Run a command with the connection. If the client rejects it because the connection was lost right before
+     * then it is put back into the outbox to send it again once the connection is back.
+     */
+    private void run(StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection, MessagePriority priority, Function<RedisAsyncCommands<String, FrameCodec.PreparedFrame>, RedisFuture<?>> command) {
+        command.apply(connection.async()).whenComplete((result, e) -> {
+            if (e == null) {
+                return;
+            }
+            if (e instanceof RedisCommandExecutionException) {
+                // Redis received the command but couldn't execute it, sending it again won't help
+                plugin.logError("Error while sending message to Redis!", e);
+                return;
+            }
+            try {
+                // Not right away as this might be called while sending or draining
+                scheduler.execute(() -> {
+                    synchronized (outbox) {
+                        if (!outbox.add(priority, new Command(priority, command))) {
+                            plugin.logDebug("Outbox for " + priority + " messages is full, rejecting message that failed to send");
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException closed) {
+                plugin.logError("Unable to send message to Redis as the connection was closed", e);
+            }
+        });
+        batcher.added();
+    }
+
+    /**
+     * Send all commands in the outbox
+     */
+    private void drain() {
+        int count = 0;
+        synchronized (outbox) {
+            StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection = this.connection;
+            if (connection == null || !connection.isOpen()) {
+                return;
+            }
+            Command command;
+            while ((command = outbox.poll()) != null) {
+                run(connection, command.priority, command.function);
+                count++;
+            }
+        }
+        if (count > 0) {
+            batcher.flush();
+            plugin.logDebug("Sent " + count + " messages that were buffered while Redis was unavailable");
+        }
+    }
+
+    /**
+     * Whether the connection is open and passed its last health check
+     * @return Whether the connection is healthy
+     */
+    public boolean isHealthy() {
+        StatefulRedisConnection<String, FrameCodec.PreparedFrame> connection = this.connection;
+        return healthy && connection != null && connection.isOpen();
+    }
+
+    /**
+     * Get the outbox of commands which are waiting for the connection
+     * @return The outbox
+     */
+    public Outbox<?> getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Get the batcher which flushes the sent commands
+     * @return The command batcher
+     */
+    public RedisCommandBatcher getBatcher() {
+        return batcher;
+    }
+
+    public void close() {
+        scheduler.shutdown();
+        drain();
+        batcher.close();
+    }
+
+    private static class Command {
+        private final MessagePriority priority;
+        private final Function<RedisAsyncCommands<String, FrameCodec.PreparedFrame>, RedisFuture<?>> function;
+
+        private Command(MessagePriority priority, Function<RedisAsyncCommands<String, FrameCodec.PreparedFrame>, RedisFuture<?>> function) {
+            this.priority = priority;
+            this.function = function;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.RedisBusyException;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAddArgs;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Connection which sends messages through a Redis stream instead of pub/sub.
+ * Every server and proxy reads the stream with its own consumer group, so messages which were sent while
+ * it was offline get delivered once it is back, as long as they weren't trimmed from the stream yet.
+ */
+public class RedisStreamConnection implements MessageTransport {
+
+    /**
+     * The field of stream entries which contains the frame
+     */
+    private static final String FRAME_FIELD = "f";
+
+    private final ConnectorPlugin plugin;
+    private final FrameCodec codec;
+    private final String stream;
+    private final long maxLength;
+    private final int batchSize;
+    private final long blockTime;
+    private final BiConsumer<String, Message> onMessage;
+
+    private final RedisClient client;
+    private final RedisPublisher publisher;
+    private final RedisPublisher interactivePublisher;
+    private final Thread reader;
+    private volatile boolean running = true;
+
+    /**
+     * Create a connection to a Redis stream
+     * @param plugin            The plugin
+     * @param codec             The codec of the frames
+     * @param uriString         The URI of the Redis server, if set the other connection details are ignored
+     * @param host              The host of the Redis server
+     * @param port              The port of the Redis server
+     * @param db                The database to use
+     * @param password          The password
+     * @param timeout           The timeout in seconds
+     * @param maxLength         The approximate amount of entries to keep in the stream
+     * @param batchSize         The maximum amount of entries to read and acknowledge at once
+     * @param blockTime         How long to wait for new entries in one read in milliseconds
+     * @param batchCommands     The amount of added entries after which they get flushed right away
+     * @param batchDelay        The time in microseconds after the first added entry after which it gets flushed
+     * @param outboxLimits      The limits of the outbox which buffers messages while the connection is down
+     * @param healthCheckInterval   The interval in seconds in which the connection is checked
+     * @param interactiveConnection Whether to send {@link MessagePriority#INTERACTIVE} messages through their own
+     *                              connection without batching so that they don't wait behind big messages
+     * @param onMessage         Handler for received messages which takes the receiver data and the message
+     */
+    public RedisStreamConnection(ConnectorPlugin plugin, FrameCodec codec, String uriString, String host, int port, int db, String password, long timeout, long maxLength, int batchSize, long blockTime, int batchCommands, long batchDelay, Map<MessagePriority, Outbox.Limit> outboxLimits, long healthCheckInterval, boolean interactiveConnection, BiConsumer<String, Message> onMessage) {
+        this.plugin = plugin;
+        this.codec = codec;
+        this.stream = plugin.getMessageChannel();
+        this.maxLength = maxLength;
+        this.batchSize = batchSize;
+        this.blockTime = blockTime;
+        this.onMessage = onMessage;
+        client = RedisClient.create(RedisConnection.createUri(uriString, host, port, db, password, timeout));
+        publisher = new RedisPublisher(
+                plugin,
+                client,
+                new RedisCommandBatcher(plugin.getName() + " Redis flusher", batchCommands, batchDelay),
+                outboxLimits,
+                healthCheckInterval
+        );
+        interactivePublisher = interactiveConnection ? new RedisPublisher(
+                plugin,
+                client,
+                new RedisCommandBatcher(plugin.getName() + " Redis interactive flusher", 1, 0),
+                outboxLimits,
+                healthCheckInterval
+        ) : null;
+
+        reader = new Thread(this::read, plugin.getName() + " Redis stream reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        StatefulRedisConnection<String, byte[]> readConnection = null;
+        Consumer<String> consumer = Consumer.from(plugin.getServerName(), plugin.getServerName());
+        // Start with the entries that were delivered to us before but never acknowledged
+        boolean readPending = true;
+        while (running) {
+            try {
+                if (readConnection == null || !readConnection.isOpen()) {
+                    readConnection = client.connect(new RedisConnection.StringByteArrayCodec());
+                    createGroup(readConnection.sync());
+                    readPending = true;
+                }
+                RedisCommands<String, byte[]> commands = readConnection.sync();
+                List<StreamMessage<String, byte[]>> entries;
+                if (readPending) {
+                    entries = readGroup(commands, consumer, XReadArgs.Builder.count(batchSize), XReadArgs.StreamOffset.from(stream, "0"));
+                    if (entries.isEmpty()) {
+                        readPending = false;
+                        continue;
+                    }
+                    plugin.logDebug("Reading " + entries.size() + " unacknowledged entries of the " + stream + " redis stream");
+                } else {
+                    entries = readGroup(commands, consumer, XReadArgs.Builder.count(batchSize).block(blockTime), XReadArgs.StreamOffset.lastConsumed(stream));
+                }
+                if (entries.isEmpty()) {
+                    continue;
+                }
+
+                String[] ids = new String[entries.size()];
+                for (int i = 0; i < entries.size(); i++) {
+                    StreamMessage<String, byte[]> entry = entries.get(i);
+                    ids[i] = entry.getId();
+                    handle(entry);
+                }
+                commands.xack(stream, consumer.getGroup(), ids);
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                plugin.logError("Error while reading the " + stream + " redis stream! Retrying in a second...", e);
+                // Entries might have been read without being acknowledged
+                readPending = true;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interruptedException) {
+                    break;
+                }
+            }
+        }
+        if (readConnection != null) {
+            readConnection.close();
+        }
+    }
+
+    /**
+     * Read entries of the stream as a consumer of a group
+     * @param commands  The commands of the connection to read with
+     * @param consumer  The consumer
+     * @param args      The arguments of the read
+     * @param offset    Where to start reading the stream
+     * @return The read entries
+     */
+    @SuppressWarnings("unchecked") // Only a single offset is passed to the varargs parameter, nothing can pollute the array
+    private static List<StreamMessage<String, byte[]>> readGroup(RedisCommands<String, byte[]> commands, Consumer<String> consumer, XReadArgs args, XReadArgs.StreamOffset<String> offset) {
+        return commands.xreadgroup(consumer, args, offset);
+    }
+
+    private void createGroup(RedisCommands<String, byte[]> commands) {
+        try {
+            // New groups only get entries which are added after they were created
+            commands.xgroupCreate(XReadArgs.StreamOffset.latest(stream), plugin.getServerName(), XGroupCreateArgs.Builder.mkstream());
+            plugin.logDebug("Created consumer group " + plugin.getServerName() + " for the " + stream + " redis stream");
+        } catch (RedisBusyException e) {
+            // Group already exists, continue where we left off
+        }
+    }
+
+    private void handle(StreamMessage<String, byte[]> entry) {
+        // Entries which were trimmed from the stream while they were pending have no body anymore
+        byte[] data = entry.getBody() != null ? entry.getBody().get(FRAME_FIELD) : null;
+        if (data == null || data.length == 0) {
+            plugin.logWarning("Received an entry without data on the " + stream + " redis stream? " + entry.getId());
+            return;
+        }
+
+        try {
+            FrameCodec.Frame frame = codec.decode(data);
+            onMessage.accept(frame.getTarget(), frame.getMessage());
+        } catch (IllegalArgumentException e) {
+            plugin.logError("Error while decoding entry " + entry.getId() + " of the " + stream + " redis stream! ", e);
+        } catch (VersionMismatchException e) {
+            plugin.logWarning(e.getMessage() + ". Ignoring message!");
+        } catch (RuntimeException e) {
+            // Don't let one broken handler stop the batch, it would neither be acknowledged nor read again
+            plugin.logError("Error while handling entry " + entry.getId() + " of the " + stream + " redis stream!", e);
+        }
+    }
+
+    /**
+     * Add a message to the stream, all servers and proxies read the stream so the destination is ignored
+     * @param targetData    The target data of the message
+     * @param message       The message
+     * @param destination   The server or proxy which will handle the message, ignored
+     */
+    @Override
+    public void sendMessage(String targetData, Message message, String destination) {
+        sendMessage(targetData, message);
+    }
+
+    public void sendMessage(String targetData, Message message) {
+        FrameCodec.PreparedFrame frame = codec.prepare(targetData, message);
+
+        MessagePriority priority = MessagePriority.of(plugin.getName(), message);
+        getPublisher(priority).send(priority, commands -> commands.xadd(
+                stream,
+                new XAddArgs().maxlen(maxLength).approximateTrimming(),
+                Collections.singletonMap(FRAME_FIELD, frame)
+        ));
+    }
+
+    /**
+     * Get the publisher which adds the entries and buffers them while the connection is down
+     * @return The publisher
+     */
+    public RedisPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Get the publisher which sends messages of a certain priority
+     * @param priority  The priority of the messages
+     * @return The interactive publisher for interactive messages if it is enabled, the normal one otherwise
+     */
+    public RedisPublisher getPublisher(MessagePriority priority) {
+        return priority == MessagePriority.INTERACTIVE && interactivePublisher != null ? interactivePublisher : publisher;
+    }
+
+    public void close() {
+        publisher.close();
+        if (interactivePublisher != null) {
+            interactivePublisher.close();
+        }
+        running = false;
+        reader.interrupt();
+        client.shutdown();
+    }
+}
@@ -0,0 +1,345 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * At-least-once delivery of single messages. A message is wrapped into an envelope with a unique ID which
+ * the receiver acknowledges, the envelope is sent again with an exponentially growing delay until the
+ * acknowledgement arrives or the retries are used up. Receivers remember the IDs for a limited time
+ * to drop envelopes which they already handled but whose acknowledgement got lost.
+ */
+public class ReliableDelivery {
+
+    public static final String MESSAGE_ACTION = "reliable";
+    public static final String ACK_ACTION = "reliable_ack";
+
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final int maxRetries;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * IDs only need to be unique per sender. The random start makes sure that a restarted
+     * sender doesn't reuse IDs which receivers still remember.
+     */
+    private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final Cache<String, Boolean> received;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder totalAckNanos = new LongAdder();
+    private final AtomicLong maxAckNanos = new AtomicLong();
+
+    /**
+     * Create a reliable delivery which only receives envelopes, reliable messages are sent fire-and-forget
+     */
+    public ReliableDelivery() {
+        this(null, 500, 5000, 5, 60, 4096);
+    }
+
+    /**
+     * Create a reliable delivery
+     * @param name          The name of the thread which sends unacknowledged messages again, null to disable sending
+     * @param retryDelay    The milliseconds after which an unacknowledged message is sent again the first time
+     * @param maxRetryDelay The maximum milliseconds between two retries, the delay doubles with every retry until then
+     * @param maxRetries    How often a message is sent again at most before giving up
+     * @param dedupeWindow  The seconds for which the IDs of received messages are remembered to drop duplicates
+     * @param dedupeSize    The maximum amount of IDs of received messages to remember
+     */
+    public ReliableDelivery(String name, long retryDelay, long maxRetryDelay, int maxRetries, int dedupeWindow, int dedupeSize) {
+        this.retryDelay = Math.max(retryDelay, 1);
+        this.maxRetryDelay = Math.max(maxRetryDelay, this.retryDelay);
+        this.maxRetries = Math.max(maxRetries, 0);
+        this.received = CacheBuilder.newBuilder()
+                .expireAfterWrite(dedupeWindow, TimeUnit.SECONDS)
+                .maximumSize(dedupeSize)
+                .build();
+        if (name != null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Whether messages can be sent reliably or only fire-and-forget
+     * @return Whether reliable sending is enabled
+     */
+    public boolean isEnabled() {
+        return scheduler != null;
+    }
+
+    /**
+     * Wrap a message into an envelope with a new ID and send it until it gets acknowledged.
+     * The first attempt is made on the calling thread so that errors get passed to the caller.
+     * @param message   The message to send
+     * @param sender    The name of the plugin which sends the envelopes
+     * @param send      Sends an envelope to the target of the message
+     * @param onFailure Called with the message if it wasn't acknowledged after all retries
+     * @throws IllegalStateException if reliable sending isn't enabled
+     */
+    public void send(Message message, String sender, Consumer<Message> send, Consumer<Message> onFailure) {
+        if (scheduler == null) {
+            throw new IllegalStateException("Reliable sending is not enabled!");
+        }
+        long id = nextId.getAndIncrement();
+        Pending entry = new Pending(id, message, wrap(id, message, sender), send, onFailure);
+        pending.put(id, entry);
+        try {
+            send.accept(entry.envelope);
+        } catch (RuntimeException e) {
+            pending.remove(id);
+            throw e;
+        }
+        sent.increment();
+        schedule(entry, retryDelay);
+    }
+
+    private Message wrap(long id, Message message, String sender) {
+        ByteBuffer data = message.getDataBuffer();
+        ByteBuffer out = ByteBuffer.allocate(Long.BYTES
+                + FrameCodec.stringLength(message.getGroup())
+                + FrameCodec.stringLength(message.getSendingPlugin())
+                + FrameCodec.stringLength(message.getAction())
+                + data.remaining());
+        out.putLong(id);
+        FrameCodec.writeString(out, message.getGroup());
+        FrameCodec.writeString(out, message.getSendingPlugin());
+        FrameCodec.writeString(out, message.getAction());
+        out.put(data);
+        out.flip();
+        // Keep the priority of the wrapped message instead of the one of the connector's own messages
+        return new Message("", message.getTarget(), message.getSendingServer(), sender, MESSAGE_ACTION, out)
+                .setPriority(MessagePriority.of(sender, message));
+    }
+
+    private void schedule(Pending entry, long delay) {
+        synchronized (entry) {
+            if (pending.get(entry.id) == entry) {
+                entry.retry = scheduler.schedule(() -> retry(entry, delay), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void retry(Pending entry, long delay) {
+        if (pending.get(entry.id) != entry) {
+            return;
+        }
+        if (entry.retries >= maxRetries) {
+            if (pending.remove(entry.id, entry)) {
+                failed.increment();
+                entry.onFailure.accept(entry.message);
+            }
+            return;
+        }
+        entry.retries++;
+        retransmits.increment();
+        try {
+            entry.send.accept(entry.envelope);
+        } catch (RuntimeException e) {
+            // Counts as a lost attempt, the next retry might find the connection working again
+        }
+        schedule(entry, Math.min(delay * 2, maxRetryDelay));
+    }
+
+    /**
+     * Open a received envelope
+     * @param envelope  The envelope message
+     * @param ack       Sends the acknowledgement data back to the sender of the envelope
+     * @return The wrapped message or null if it was already received before
+     * @throws IllegalArgumentException if the envelope is malformed
+     */
+    public Message receive(Message envelope, Consumer<byte[]> ack) {
+        ByteBuffer in = envelope.getDataBuffer();
+        long id;
+        String group;
+        String plugin;
+        String action;
+        try {
+            id = in.getLong();
+            group = FrameCodec.readString(in);
+            plugin = FrameCodec.readString(in);
+            action = FrameCodec.readString(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Envelope ended unexpectedly", e);
+        }
+
+        // Acknowledge duplicates too as the first acknowledgement might be the one that got lost
+        ack.accept(ByteBuffer.allocate(Long.BYTES).putLong(id).array());
+
+        if (received.asMap().putIfAbsent(envelope.getSendingServer() + ":" + id, Boolean.TRUE) != null) {
+            duplicates.increment();
+            return null;
+        }
+        return new Message(group, envelope.getTarget(), envelope.getSendingServer(), plugin, action, in.slice());
+    }
+
+    /**
+     * Handle a received acknowledgement
+     * @param ack   The acknowledgement message
+     * @throws IllegalArgumentException if the acknowledgement is malformed
+     */
+    public void acknowledge(Message ack) {
+        long id;
+        try {
+            id = ack.getDataBuffer().getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Acknowledgement ended unexpectedly", e);
+        }
+        Pending entry = pending.remove(id);
+        if (entry == null) {
+            // Acknowledgement of a retry which arrived after the first one
+            return;
+        }
+        synchronized (entry) {
+            if (entry.retry != null) {
+                entry.retry.cancel(false);
+            }
+        }
+        long nanos = System.nanoTime() - entry.sentAt;
+        acknowledged.increment();
+        totalAckNanos.add(nanos);
+        maxAckNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Get the amount of messages which were sent but not acknowledged yet
+     * @return The amount of pending messages
+     */
+    public int getPendingMessages() {
+        return pending.size();
+    }
+
+    /**
+     * Get the amount of messages which were sent reliably
+     * @return The amount of sent messages
+     */
+    public long getSentMessages() {
+        return sent.sum();
+    }
+
+    /**
+     * Get the amount of times that unacknowledged messages were sent again
+     * @return The amount of retransmits
+     */
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    /**
+     * Get the amount of messages which were acknowledged by their receiver
+     * @return The amount of acknowledged messages
+     */
+    public long getAcknowledgedMessages() {
+        return acknowledged.sum();
+    }
+
+    /**
+     * Get the amount of messages which weren't acknowledged after all retries
+     * @return The amount of failed messages
+     */
+    public long getFailedMessages() {
+        return failed.sum();
+    }
+
+    /**
+     * Get the amount of received messages which were dropped as they were already received before
+     * @return The amount of duplicates
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Get the average time from the first attempt of sending a message until its acknowledgement arrived
+     * @return The average acknowledgement latency in microseconds
+     */
+    public long getAverageAckLatency() {
+        long count = acknowledged.sum();
+        return count > 0 ? totalAckNanos.sum() / count / 1000 : 0;
+    }
+
+    /**
+     * Get the longest time from the first attempt of sending a message until its acknowledgement arrived
+     * @return The maximum acknowledgement latency in microseconds
+     */
+    public long getMaxAckLatency() {
+        return maxAckNanos.get() / 1000;
+    }
+
+    /**
+     * Stop sending unacknowledged messages again
+     */
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        pending.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + getSentMessages() + ", pending=" + getPendingMessages() + ", retransmits=" + getRetransmits()
+                + ", failed=" + getFailedMessages() + ", duplicates=" + getDuplicates()
+                + ", ack avg=" + getAverageAckLatency() + "us, max=" + getMaxAckLatency() + "us";
+    }
+
+    private static class Pending {
+        private final long id;
+        private final Message message;
+        private final Message envelope;
+        private final Consumer<Message> send;
+        private final Consumer<Message> onFailure;
+        private final long sentAt = System.nanoTime();
+        private int retries = 0;
+        private ScheduledFuture<?> retry;
+
+        private Pending(long id, Message message, Message envelope, Consumer<Message> send, Consumer<Message> onFailure) {
+            this.id = id;
+            this.message = message;
+            this.envelope = envelope;
+            this.send = send;
+            this.onFailure = onFailure;
+        }
+    }
+}
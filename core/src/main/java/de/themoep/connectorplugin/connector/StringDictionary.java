@@ -0,0 +1,184 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of strings which repeatedly get sent in frame headers (groups, plugin names and actions).
+ * Each server and proxy announces the IDs of its own strings and remembers the ones announced by others.
+ * IDs are only valid for one session of the announcing server so that restarts never reuse stale IDs.
+ */
+public class StringDictionary {
+    private static final Random RANDOM = new Random();
+
+    private final int session = RANDOM.nextInt(1 << 28);
+    private final int maxSize;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> entries = new ArrayList<>();
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final Map<String, Remote> remotes = new ConcurrentHashMap<>();
+
+    public StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The session of this dictionary. Frames which use IDs of it contain this so receivers know which IDs are meant.
+     * @return The random session ID
+     */
+    public int getSession() {
+        return session;
+    }
+
+    /**
+     * The maximum amount of strings this dictionary will contain
+     * @return The maximum size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Add a string to this dictionary. It will only be used in frames after it was announced.
+     * @param string    The string to add
+     */
+    public synchronized void add(String string) {
+        if (string != null && !string.isEmpty() && !ids.containsKey(string) && entries.size() + pending.size() < maxSize) {
+            pending.add(string);
+        }
+    }
+
+    /**
+     * Get the ID of an announced string
+     * @param string    The string
+     * @return The ID or -1 if it wasn't announced yet
+     */
+    public int getId(String string) {
+        Integer id = ids.get(string);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Whether there are strings which were added but not announced yet
+     * @return Whether an announcement would add new strings
+     */
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Create an announcement of all strings of this dictionary. All pending strings can be used after this was sent.
+     * @return The announcement data
+     */
+    public synchronized byte[] createAnnouncement() {
+        for (String string : pending) {
+            ids.put(string, entries.size());
+            entries.add(string);
+        }
+        pending.clear();
+
+        int length = FrameCodec.varIntLength(session) + FrameCodec.varIntLength(entries.size());
+        for (String entry : entries) {
+            length += FrameCodec.stringLength(entry);
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        FrameCodec.writeVarInt(out, session);
+        FrameCodec.writeVarInt(out, entries.size());
+        for (String entry : entries) {
+            FrameCodec.writeString(out, entry);
+        }
+        return out.array();
+    }
+
+    /**
+     * Read the announcement of another server's dictionary
+     * @param server    The server that sent the announcement
+     * @param in        The announcement data
+     * @throws IllegalArgumentException if the announcement is malformed
+     */
+    public void readAnnouncement(String server, ByteBuffer in) {
+        try {
+            int remoteSession = FrameCodec.readVarInt(in);
+            int size = FrameCodec.readVarInt(in);
+            if (size < 0 || size > in.remaining()) {
+                throw new IllegalArgumentException("Invalid dictionary size " + size);
+            }
+            String[] remoteEntries = new String[size];
+            for (int i = 0; i < size; i++) {
+                remoteEntries[i] = FrameCodec.readString(in).intern();
+            }
+            // Dictionaries only grow during a session so never replace a bigger one with an outdated announcement
+            remotes.merge(server, new Remote(remoteSession, remoteEntries), (oldRemote, newRemote) ->
+                    oldRemote.session == newRemote.session && oldRemote.entries.length > newRemote.entries.length ? oldRemote : newRemote);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Dictionary announcement ended unexpectedly", e);
+        }
+    }
+
+    /**
+     * Check whether we know an ID of a certain session of another server's dictionary
+     * @param server    The server
+     * @param session   The session of the server's dictionary
+     * @param id        The ID
+     * @return Whether the ID can be resolved
+     */
+    public boolean knows(String server, int session, int id) {
+        Remote remote = remotes.get(server);
+        return remote != null && remote.session == session && id < remote.entries.length;
+    }
+
+    /**
+     * Resolve the ID of another server's dictionary
+     * @param server    The server which sent the ID
+     * @param session   The session of the server's dictionary
+     * @param id        The ID
+     * @return The string
+     * @throws IllegalArgumentException if the ID is not known
+     */
+    public String resolve(String server, int session, int id) {
+        Remote remote = remotes.get(server);
+        if (remote == null || remote.session != session) {
+            throw new IllegalArgumentException("Unknown dictionary session " + session + " of " + server);
+        }
+        if (id < 0 || id >= remote.entries.length) {
+            throw new IllegalArgumentException("Unknown dictionary ID " + id + " of " + server + " (session " + session + " only has " + remote.entries.length + " entries)");
+        }
+        return remote.entries[id];
+    }
+
+    private static class Remote {
+        private final int session;
+        private final String[] entries;
+
+        private Remote(int session, String[] entries) {
+            this.session = session;
+            this.entries = entries;
+        }
+    }
+}
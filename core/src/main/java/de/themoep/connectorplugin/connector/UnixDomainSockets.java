@@ -0,0 +1,112 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Access to the Unix domain socket channels of Java 16+ while still running on older versions.
+ * The methods can only be used if {@link #isSupported()} returns true.
+ */
+class UnixDomainSockets {
+
+    private static final ProtocolFamily UNIX;
+    private static final Method OPEN_SOCKET;
+    private static final Method OPEN_SERVER;
+    private static final Method ADDRESS_OF;
+
+    static {
+        ProtocolFamily unix = null;
+        Method openSocket = null;
+        Method openServer = null;
+        Method addressOf = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            openSocket = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            unix = null;
+        }
+        UNIX = unix;
+        OPEN_SOCKET = openSocket;
+        OPEN_SERVER = openServer;
+        ADDRESS_OF = addressOf;
+    }
+
+    private UnixDomainSockets() {}
+
+    /**
+     * Whether Unix domain sockets are supported by this Java version
+     * @return Whether they are supported
+     */
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * Open a Unix domain socket channel
+     * @return The channel, not connected yet
+     * @throws IOException if it can't be opened
+     */
+    static SocketChannel openSocket() throws IOException {
+        return (SocketChannel) invoke(OPEN_SOCKET, null, UNIX);
+    }
+
+    /**
+     * Open a Unix domain server socket channel
+     * @return The channel, not bound yet
+     * @throws IOException if it can't be opened
+     */
+    static ServerSocketChannel openServer() throws IOException {
+        return (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+    }
+
+    /**
+     * Get the address of a socket file
+     * @param file  The socket file
+     * @return The address to bind or connect to
+     * @throws IOException if the path is invalid
+     */
+    static SocketAddress address(File file) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, null, file.toPath());
+    }
+
+    private static Object invoke(Method method, Object instance, Object argument) throws IOException {
+        try {
+            return method.invoke(instance, argument);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.themoep.connectorplugin;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import de.themoep.connectorplugin.connector.CompactDataInput;
+import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessageTarget;
+import de.themoep.connectorplugin.connector.PooledDataOutput;
+import de.themoep.connectorplugin.connector.VersionMismatchException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BridgeCommonTest {
+
+    private static final long[] IDS = {0, 1, 127, 128, 1 << 20, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+
+    @Test
+    public void testLegacyIdRoundTrip() throws VersionMismatchException {
+        for (long id : IDS) {
+            ByteArrayDataInput in = writeAndRead(false, id);
+            assertFalse(in instanceof CompactDataInput);
+            assertEquals(id, BridgeCommon.readId(in));
+            assertEquals("after", in.readUTF());
+        }
+    }
+
+    @Test
+    public void testCompactIdRoundTrip() throws VersionMismatchException {
+        for (long id : IDS) {
+            ByteArrayDataInput in = writeAndRead(true, id);
+            assertTrue(in instanceof CompactDataInput);
+            assertEquals(id, BridgeCommon.readId(in));
+            assertEquals("after", in.readUTF());
+        }
+    }
+
+    @Test
+    public void testLegacyIdIsFixedSize() {
+        ByteArrayDataOutput out = PooledDataOutput.acquire(false, false);
+        BridgeCommon.writeId(out, 1);
+        assertEquals(8, out.toByteArray().length);
+    }
+
+    @Test
+    public void testCompactIdIsSmaller() {
+        ByteArrayDataOutput out = PooledDataOutput.acquire(true, false);
+        BridgeCommon.writeId(out, 1);
+        assertEquals(1, out.toByteArray().length);
+    }
+
+    /**
+     * Write an ID and a string into a bridge message the same way requests are sent and get the input of the received message
+     */
+    private static ByteArrayDataInput writeAndRead(boolean compact, long id) throws VersionMismatchException {
+        ByteArrayDataOutput out = PooledDataOutput.acquire(compact, false);
+        out.writeUTF("server");
+        BridgeCommon.writeId(out, id);
+        out.writeUTF("after");
+        byte[] data = new BridgeCommon.BridgeMessage(out.toByteArray(), compact).writeToByteArray();
+
+        Message message = new Message("group", MessageTarget.SERVER, "sender", "ConnectorPlugin", BridgeCommon.Action.GET_PLAYER_INFO, data);
+        ByteArrayDataInput in = BridgeCommon.BridgeMessage.fromMessage(message).getDataInput();
+        assertEquals("server", in.readUTF());
+        return in;
+    }
+}
@@ -0,0 +1,79 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Connection of a server or proxy to a {@link LoopbackNetwork}. Messages are encoded into frames and decoded
+ * by every receiver just like with a real broker.
+ */
+public class LoopbackConnection implements MessageTransport {
+
+    private final ConnectorPlugin plugin;
+    private final FrameCodec codec;
+    private final LoopbackNetwork network;
+    private final BiConsumer<String, Message> onMessage;
+
+    LoopbackConnection(ConnectorPlugin plugin, FrameCodec codec, LoopbackNetwork network, BiConsumer<String, Message> onMessage) {
+        this.plugin = plugin;
+        this.codec = codec;
+        this.network = network;
+        this.onMessage = onMessage;
+    }
+
+    /**
+     * Get the name of the server or proxy which this connection belongs to
+     * @return The server name
+     */
+    public String getName() {
+        return plugin.getServerName();
+    }
+
+    void receive(byte[] data) {
+        try {
+            FrameCodec.Frame frame = codec.decode(data);
+            onMessage.accept(frame.getTarget(), frame.getMessage());
+        } catch (IllegalArgumentException e) {
+            plugin.logError("Error while decoding message on loopback network! ", e);
+        } catch (VersionMismatchException e) {
+            plugin.logWarning(e.getMessage() + ". Ignoring message!");
+        }
+    }
+
+    public void sendMessage(String targetData, Message message) {
+        sendMessage(targetData, message, null);
+    }
+
+    /**
+     * Publish a message
+     * @param targetData    The target data of the message
+     * @param message       The message
+     * @param destination   The only server or proxy which will handle the message or null if it should be broadcast
+     */
+    public void sendMessage(String targetData, Message message, String destination) {
+        network.publish(codec.encode(targetData, message), destination);
+    }
+
+    public void close() {
+        network.disconnect(this);
+    }
+}
@@ -0,0 +1,187 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * An in-memory broker for servers and proxies which run in the same JVM, e.g. for simulations.
+ * Every published frame is delivered to all connections like with Redis pub/sub, or only to its destination
+ * if it has one. Delivery can be delayed and frames can get lost randomly to simulate a real network.
+ */
+public class LoopbackNetwork {
+
+    private final long latency;
+    private final long jitter;
+    private final double loss;
+    private final Random random;
+    private final ScheduledExecutorService scheduler;
+
+    private final List<LoopbackConnection> connections = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * Create a network without latency and loss
+     * @param name  The name of the thread which delivers the frames
+     */
+    public LoopbackNetwork(String name) {
+        this(name, 0, 0, 0, System.nanoTime());
+    }
+
+    /**
+     * Create a network
+     * @param name      The name of the thread which delivers the frames
+     * @param latency   The time in microseconds after which a frame gets delivered
+     * @param jitter    The maximum time in microseconds that is randomly added to the latency of a frame
+     * @param loss      The probability between 0 and 1 with which a frame gets lost
+     * @param seed      The seed of the random generator for jitter and loss
+     */
+    public LoopbackNetwork(String name, long latency, long jitter, double loss, long seed) {
+        this.latency = Math.max(latency, 0);
+        this.jitter = Math.max(jitter, 0);
+        this.loss = loss;
+        this.random = new Random(seed);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Connect a server or proxy to this network
+     * @param plugin    The plugin of the server or proxy
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The connection
+     */
+    public LoopbackConnection connect(ConnectorPlugin plugin, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        LoopbackConnection connection = new LoopbackConnection(plugin, codec, this, onMessage);
+        connections.add(connection);
+        return connection;
+    }
+
+    void disconnect(LoopbackConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Publish a frame
+     * @param frame         The frame
+     * @param destination   The only server or proxy to deliver the frame to or null if it should be delivered to all
+     */
+    void publish(byte[] frame, String destination) {
+        published.incrementAndGet();
+        for (LoopbackConnection connection : connections) {
+            if (destination != null && !destination.equals(connection.getName())) {
+                continue;
+            }
+            long delay;
+            synchronized (random) {
+                if (loss > 0 && random.nextDouble() < loss) {
+                    lost.incrementAndGet();
+                    continue;
+                }
+                delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+            }
+            pending.incrementAndGet();
+            Runnable delivery = () -> {
+                try {
+                    connection.receive(frame);
+                } finally {
+                    delivered.incrementAndGet();
+                    pending.decrementAndGet();
+                }
+            };
+            if (delay > 0) {
+                scheduler.schedule(delivery, delay, TimeUnit.MICROSECONDS);
+            } else {
+                scheduler.execute(delivery);
+            }
+        }
+    }
+
+    /**
+     * Wait until all published frames were delivered
+     * @param timeout   The maximum time to wait
+     * @param unit      The unit of the timeout
+     * @return Whether all frames were delivered, false if the timeout was reached first
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0) {
+            if (System.nanoTime() > end) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Get the amount of frames that were published
+     * @return The amount of published frames
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Get the amount of frames that were delivered to a connection, a frame which is published to all counts once per connection
+     * @return The amount of delivered frames
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Get the amount of frames that were randomly lost, a frame which is published to all counts once per connection
+     * @return The amount of lost frames
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Get the amount of frames which are waiting to be delivered
+     * @return The amount of pending frames
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        connections.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PayloadCompressionTest {
+
+    private final PayloadCompression compression = new PayloadCompression(true, PayloadCompression.Codec.DEFLATE, 0, null, 4096);
+
+    @Test
+    public void testRoundTrip() {
+        byte[] data = new byte[2048];
+        Arrays.fill(data, (byte) 'a');
+        byte[] compressed = compression.compress(ByteBuffer.wrap(data));
+        assertNotNull(compressed);
+
+        ByteBuffer decompressed = compression.decompress(ByteBuffer.wrap(compressed), data.length);
+        byte[] result = new byte[decompressed.remaining()];
+        decompressed.get(result);
+        assertArrayEquals(data, result);
+        assertEquals(1, compression.getDecompressedMessages());
+    }
+
+    @Test
+    public void testRejectsLengthAboveMaximum() {
+        byte[] data = new byte[8192];
+        byte[] compressed = compression.compress(ByteBuffer.wrap(data));
+        assertNotNull(compressed);
+
+        // Has to fail before trying to allocate the claimed length
+        assertThrows(IllegalArgumentException.class, () -> compression.decompress(ByteBuffer.wrap(compressed), Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> compression.decompress(ByteBuffer.wrap(compressed), data.length));
+        assertEquals(0, compression.getDecompressedMessages());
+    }
+
+    @Test
+    public void testRejectsNegativeLength() {
+        assertThrows(IllegalArgumentException.class, () -> compression.decompress(ByteBuffer.wrap(new byte[16]), -1));
+    }
+
+    @Test
+    public void testRejectsWrongLength() {
+        byte[] data = new byte[2048];
+        byte[] compressed = compression.compress(ByteBuffer.wrap(data));
+        assertNotNull(compressed);
+
+        assertThrows(IllegalArgumentException.class, () -> compression.decompress(ByteBuffer.wrap(compressed), 1024));
+    }
+}
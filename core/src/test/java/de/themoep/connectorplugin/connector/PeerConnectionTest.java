@@ -0,0 +1,246 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the peer-to-peer connection with nodes on localhost
+ */
+public class PeerConnectionTest {
+
+    private static final String SECRET = "secret";
+    private static final int MAX_FRAME_SIZE = 1024;
+
+    private final FrameCodec codec = new FrameCodec();
+    private final Map<String, InetSocketAddress> addresses = new HashMap<>();
+    private final Map<String, TestPlugin> plugins = new HashMap<>();
+    private final List<PeerConnection> connections = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        for (PeerConnection connection : connections) {
+            connection.close();
+        }
+        for (TestPlugin plugin : plugins.values()) {
+            plugin.close();
+        }
+    }
+
+    @Test
+    public void testSendsBetweenTwoNodes() throws IOException, InterruptedException {
+        addresses.put("a", freeAddress());
+        addresses.put("b", freeAddress());
+        BlockingQueue<Message> receivedA = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        PeerConnection a = connect("a", receivedA);
+        PeerConnection b = connect("b", receivedB);
+
+        a.sendMessage("", message("a", "to b"), "b");
+        assertEquals("to b", data(receivedB.poll(5, TimeUnit.SECONDS)));
+        assertNull(receivedA.poll(100, TimeUnit.MILLISECONDS));
+
+        // Broadcasts reach the sender itself too, like with a broker
+        b.sendMessage("", message("b", "to all"));
+        assertEquals("to all", data(receivedA.poll(5, TimeUnit.SECONDS)));
+        assertEquals("to all", data(receivedB.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void testAcceptsHelloWithSecret() throws IOException, InterruptedException {
+        addresses.put("b", freeAddress());
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        connect("b", receivedB);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), addresses.get("b").getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            writeHello(out, "a", SECRET);
+            byte[] frame = codec.encode("", message("a", "raw"));
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+            assertEquals("raw", data(receivedB.poll(5, TimeUnit.SECONDS)));
+        }
+    }
+
+    @Test
+    public void testClosesConnectionWithWrongSecret() throws IOException, InterruptedException {
+        addresses.put("b", freeAddress());
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        PeerConnection b = connect("b", receivedB);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), addresses.get("b").getPort())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            writeHello(out, "a", "wrong");
+            out.flush();
+            assertClosed(socket.getInputStream());
+        }
+        assertTrue(plugins.get("b").getWarnings().stream().anyMatch(w -> w.contains("wrong secret")));
+
+        // A peer with the wrong secret never gets its messages handled
+        addresses.put("a", freeAddress());
+        PeerConnection a = connect("a", new LinkedBlockingQueue<>(), "wrong", MAX_FRAME_SIZE);
+        a.sendMessage("", message("a", "rejected"), "b");
+        assertNull(receivedB.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(0, b.getReceivedFrames());
+    }
+
+    @Test
+    public void testClosesConnectionOnOversizedFrame() throws IOException, InterruptedException {
+        addresses.put("b", freeAddress());
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        connect("b", receivedB);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), addresses.get("b").getPort())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            writeHello(out, "a", SECRET);
+            out.writeInt(MAX_FRAME_SIZE + 1);
+            out.flush();
+            assertClosed(socket.getInputStream());
+        }
+        assertNull(receivedB.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDropsOversizedFramesBeforeSending() throws IOException, InterruptedException {
+        addresses.put("a", freeAddress());
+        addresses.put("b", freeAddress());
+        PeerConnection a = connect("a", new LinkedBlockingQueue<>());
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        connect("b", receivedB);
+
+        a.sendMessage("", message("a", new String(new byte[MAX_FRAME_SIZE], StandardCharsets.UTF_8)), "b");
+        assertEquals(1, a.getDroppedFrames());
+        assertEquals(0, a.getSentFrames());
+
+        // The connection is still usable afterwards
+        a.sendMessage("", message("a", "small"), "b");
+        assertEquals("small", data(receivedB.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void testReplaysQueuedFramesAfterReconnect() throws IOException, InterruptedException {
+        addresses.put("a", freeAddress());
+        addresses.put("b", freeAddress());
+        PeerConnection a = connect("a", new LinkedBlockingQueue<>());
+
+        // b isn't running yet so the message waits in the queue
+        a.sendMessage("", message("a", "queued"), "b");
+        assertTrue(a.getQueuedBytes("b") > 0);
+
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        PeerConnection b = connect("b", receivedB);
+        assertEquals("queued", data(receivedB.poll(5, TimeUnit.SECONDS)));
+        await(() -> a.getQueuedBytes("b") == 0);
+
+        // Restart b, messages sent while it is down are delivered once it is back
+        b.close();
+        connections.remove(b);
+        Thread.sleep(300);
+        a.sendMessage("", message("a", "while down"), "b");
+        await(() -> a.getQueuedBytes("b") > 0);
+
+        connect("b", receivedB);
+        assertEquals("while down", data(receivedB.poll(5, TimeUnit.SECONDS)));
+        await(() -> a.getQueuedBytes("b") == 0);
+    }
+
+    private PeerConnection connect(String name, BlockingQueue<Message> received) {
+        return connect(name, received, SECRET, MAX_FRAME_SIZE);
+    }
+
+    private PeerConnection connect(String name, BlockingQueue<Message> received, String secret, int maxFrameSize) {
+        TestPlugin plugin = plugins.computeIfAbsent(name, n -> new TestPlugin(n, "test"));
+        PeerConnection connection = new PeerConnection(
+                plugin, codec, addresses.get(name), addresses, secret, maxFrameSize, 1024 * 1024, 100, null,
+                (target, message) -> received.add(message)
+        );
+        connections.add(connection);
+        return connection;
+    }
+
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        }
+    }
+
+    private static void writeHello(DataOutputStream out, String name, String secret) throws IOException {
+        byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer hello = ByteBuffer.allocate(FrameCodec.stringLength(name) + FrameCodec.varIntLength(secretBytes.length) + secretBytes.length);
+        FrameCodec.writeString(hello, name);
+        FrameCodec.writeVarInt(hello, secretBytes.length);
+        hello.put(secretBytes);
+        out.writeInt(hello.capacity());
+        out.write(hello.array());
+    }
+
+    private static void assertClosed(InputStream in) throws IOException {
+        try {
+            assertEquals(-1, new DataInputStream(in).read(), "Connection wasn't closed");
+        } catch (SocketException e) {
+            // Connection reset also means it was closed
+        }
+    }
+
+    private static Message message(String sender, String data) {
+        return new Message("global", MessageTarget.SERVER, sender, "ConnectorPlugin", "test", data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String data(Message message) {
+        assertNotNull(message, "No message received");
+        return new String(message.getData(), StandardCharsets.UTF_8);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < end, "Condition wasn't met in time");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PooledDataOutputTest {
+
+    @Test
+    public void testNestedOutputsDontShareBuffer() {
+        PooledDataOutput outer = PooledDataOutput.acquire();
+        outer.writeUTF("outer");
+        PooledDataOutput inner = PooledDataOutput.acquire();
+        inner.writeUTF("inner");
+        byte[] innerData = inner.toByteArray();
+        outer.writeInt(innerData.length);
+
+        ByteArrayDataInput in = ByteStreams.newDataInput(outer.toByteArray());
+        assertEquals("outer", in.readUTF());
+        assertEquals(innerData.length, in.readInt());
+        assertEquals("inner", ByteStreams.newDataInput(innerData).readUTF());
+    }
+
+    @Test
+    public void testAbandonedOutputIsReplaced() {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'a');
+        PooledDataOutput abandoned = PooledDataOutput.acquire();
+        abandoned.writeUTF("before");
+        assertThrows(IllegalArgumentException.class, () -> abandoned.writeUTF(new String(chars)));
+
+        for (int i = 0; i < 3; i++) {
+            PooledDataOutput out = PooledDataOutput.acquire();
+            out.writeUTF("message " + i);
+            assertEquals("message " + i, ByteStreams.newDataInput(out.toByteArray()).readUTF());
+        }
+        assertEquals(8, abandoned.size());
+    }
+}
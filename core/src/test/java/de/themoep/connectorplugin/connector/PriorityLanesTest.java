@@ -0,0 +1,127 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests sending through the priority lanes of a connector
+ */
+public class PriorityLanesTest {
+
+    private static final ConnectingPlugin TEST = () -> "Test";
+
+    private final TestPlugin plugin = new TestPlugin("server", "test");
+    private final LaneConnector connector = new LaneConnector(plugin);
+
+    @AfterEach
+    public void tearDown() {
+        connector.close();
+        plugin.close();
+    }
+
+    @Test
+    public void testSendsOnLaneThread() throws InterruptedException {
+        connector.sendData(TEST, "action", MessageTarget.SERVER, "other", new byte[]{1});
+
+        Thread sendingThread = connector.sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sendingThread);
+        assertNotEquals(Thread.currentThread(), sendingThread);
+    }
+
+    @Test
+    public void testRejectsUnsupportedTargetOnCallingThread() throws InterruptedException {
+        assertThrows(UnsupportedOperationException.class,
+                () -> connector.sendData(TEST, "action", MessageTarget.SERVER, "unknown", new byte[]{1}));
+        assertThrows(UnsupportedOperationException.class,
+                () -> connector.sendData(TEST, "action", MessageTarget.ALL_WITH_PLAYERS, new byte[]{1}));
+
+        // Nothing of the rejected messages reaches the lanes
+        connector.sendData(TEST, "action", MessageTarget.SERVER, "other", new byte[]{1});
+        assertNotNull(connector.sent.poll(5, TimeUnit.SECONDS));
+        assertTrue(connector.sent.isEmpty());
+    }
+
+    @Test
+    public void testSenderCanReuseArray() throws InterruptedException {
+        byte[] data = new byte[1];
+        for (int i = 0; i < 100; i++) {
+            data[0] = (byte) i;
+            connector.sendData(TEST, "action", MessageTarget.SERVER, "other", data);
+        }
+        for (int i = 0; i < 100; i++) {
+            byte[] sent = connector.sentData.poll(5, TimeUnit.SECONDS);
+            assertNotNull(sent);
+            assertEquals((byte) i, sent[0]);
+        }
+    }
+
+    @Test
+    public void testRejectsUnsupportedReliableTarget() {
+        assertThrows(UnsupportedOperationException.class,
+                () -> connector.sendData(TEST, "action", MessageTarget.SERVER, "unknown", new byte[]{1}, MessagePriority.INTERACTIVE, DeliveryMode.RELIABLE));
+        assertEquals(0, connector.getReliableDelivery().getPendingMessages());
+    }
+
+    /**
+     * A connector which can only send to the server "other" and the queues of all servers
+     */
+    private static class LaneConnector extends Connector<TestPlugin, Object> {
+
+        private final BlockingQueue<Thread> sent = new LinkedBlockingQueue<>();
+        private final BlockingQueue<byte[]> sentData = new LinkedBlockingQueue<>();
+
+        private LaneConnector(TestPlugin plugin) {
+            super(plugin, false, new FrameCodec(), new MessageFragmenter(),
+                    new ReliableDelivery("Test reliable delivery", 500, 5000, 5, 60, 4096),
+                    new PriorityLanes(plugin, PriorityLanes.defaultWeights(), Collections.emptyMap()));
+        }
+
+        @Override
+        protected Object getReceiverImplementation(String name) {
+            return null;
+        }
+
+        @Override
+        protected void checkSupported(Object targetData, Message message) {
+            if (message.getTarget() == MessageTarget.SERVER ? !"other".equals(targetData) : message.getTarget() != MessageTarget.ALL_QUEUE) {
+                throw new UnsupportedOperationException("Sending to " + message.getTarget() + " " + targetData + " is not supported!");
+            }
+        }
+
+        @Override
+        protected void sendDataImplementation(Object targetData, Message message) {
+            checkSupported(targetData, message);
+            sent.add(Thread.currentThread());
+            sentData.add(message.getData());
+        }
+    }
+}
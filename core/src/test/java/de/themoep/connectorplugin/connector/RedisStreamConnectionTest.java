@@ -0,0 +1,256 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.lettuce.core.Consumer;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.abort;
+
+/**
+ * Tests the consumer groups of the stream connection against an embedded redis-server
+ */
+public class RedisStreamConnectionTest {
+
+    private static RedisServer server;
+    private static int port;
+    private static RedisClient client;
+    private static StatefulRedisConnection<String, byte[]> rawConnection;
+
+    private final FrameCodec codec = new FrameCodec();
+    private final List<RedisStreamConnection> connections = new ArrayList<>();
+    private final List<TestPlugin> plugins = new ArrayList<>();
+    private String stream;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        try {
+            server = new RedisServer(port);
+            server.start();
+        } catch (IOException | RuntimeException e) {
+            server = null;
+            abort("Unable to start an embedded redis-server on this platform: " + e.getMessage());
+        }
+        client = RedisClient.create(RedisURI.create("localhost", port));
+        rawConnection = client.connect(new RedisConnection.StringByteArrayCodec());
+    }
+
+    @AfterAll
+    public static void stopServer() throws IOException {
+        if (rawConnection != null) {
+            rawConnection.close();
+        }
+        if (client != null) {
+            client.shutdown();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @BeforeEach
+    public void setUp(TestInfo info) {
+        stream = "test:" + info.getTestMethod().map(m -> m.getName()).orElse("stream");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (RedisStreamConnection connection : connections) {
+            connection.close();
+        }
+        for (TestPlugin plugin : plugins) {
+            plugin.close();
+        }
+    }
+
+    @Test
+    public void testDeliversToAllGroupsAndAcknowledges() throws InterruptedException {
+        BlockingQueue<Message> receivedA = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> receivedB = new LinkedBlockingQueue<>();
+        connect("a", receivedA);
+        RedisStreamConnection b = connect("b", receivedB);
+        awaitGroups("a", "b");
+
+        b.sendMessage("", message("b", "hello"));
+
+        assertEquals("hello", data(receivedA.poll(5, TimeUnit.SECONDS)));
+        assertEquals("hello", data(receivedB.poll(5, TimeUnit.SECONDS)));
+        await(() -> pending("a") == 0 && pending("b") == 0);
+    }
+
+    @Test
+    public void testDeliversMessagesSentWhileOffline() throws InterruptedException {
+        BlockingQueue<Message> receivedA = new LinkedBlockingQueue<>();
+        RedisStreamConnection a = connect("a", receivedA);
+        RedisStreamConnection b = connect("b", new LinkedBlockingQueue<>());
+        awaitGroups("a", "b");
+
+        a.close();
+        connections.remove(a);
+        for (int i = 0; i < 3; i++) {
+            b.sendMessage("", message("b", "offline " + i));
+        }
+        await(() -> rawConnection.sync().xlen(stream) == 3);
+
+        connect("a", receivedA);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("offline " + i, data(receivedA.poll(5, TimeUnit.SECONDS)));
+        }
+        await(() -> pending("a") == 0);
+    }
+
+    @Test
+    public void testRedeliversUnacknowledgedEntries() throws InterruptedException {
+        // Simulate a node which read entries but stopped before acknowledging them
+        RedisCommands<String, byte[]> commands = rawConnection.sync();
+        commands.xgroupCreate(XReadArgs.StreamOffset.latest(stream), "a", XGroupCreateArgs.Builder.mkstream());
+        add(commands, message("b", "first"));
+        add(commands, message("b", "second"));
+        read(commands, Consumer.from("a", "a"));
+        assertEquals(2, pending("a"));
+
+        BlockingQueue<Message> receivedA = new LinkedBlockingQueue<>();
+        connect("a", receivedA);
+        assertEquals("first", data(receivedA.poll(5, TimeUnit.SECONDS)));
+        assertEquals("second", data(receivedA.poll(5, TimeUnit.SECONDS)));
+        await(() -> pending("a") == 0);
+        assertNull(receivedA.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testAcknowledgesBatchWhenHandlerFails() throws InterruptedException {
+        BlockingQueue<Message> receivedA = new LinkedBlockingQueue<>();
+        connect("a", (target, message) -> {
+            if (data(message).equals("broken")) {
+                throw new IllegalStateException("Handler failed");
+            }
+            receivedA.add(message);
+        });
+        awaitGroups("a");
+
+        // Added at once so that they are read in the same batch
+        RedisCommands<String, byte[]> commands = rawConnection.sync();
+        add(commands, message("b", "broken"));
+        add(commands, message("b", "after"));
+
+        assertEquals("after", data(receivedA.poll(5, TimeUnit.SECONDS)));
+        await(() -> pending("a") == 0);
+        assertNull(receivedA.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testNewGroupStartsAtTheEnd() throws InterruptedException {
+        add(rawConnection.sync(), message("b", "old"));
+
+        BlockingQueue<Message> receivedA = new LinkedBlockingQueue<>();
+        connect("a", receivedA);
+        RedisStreamConnection b = connect("b", new LinkedBlockingQueue<>());
+        awaitGroups("a", "b");
+
+        b.sendMessage("", message("b", "new"));
+        assertEquals("new", data(receivedA.poll(5, TimeUnit.SECONDS)));
+        assertNull(receivedA.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private RedisStreamConnection connect(String serverName, BlockingQueue<Message> received) {
+        return connect(serverName, (target, message) -> received.add(message));
+    }
+
+    private RedisStreamConnection connect(String serverName, BiConsumer<String, Message> onMessage) {
+        TestPlugin plugin = new TestPlugin(serverName, stream);
+        plugins.add(plugin);
+        RedisStreamConnection connection = new RedisStreamConnection(
+                plugin, codec, null, "localhost", port, 0, null, 5,
+                1000, 10, 100, 1, 0, Collections.emptyMap(), 0, false,
+                onMessage
+        );
+        connections.add(connection);
+        return connection;
+    }
+
+    private Message message(String sender, String data) {
+        return new Message("global", MessageTarget.ALL_QUEUE, sender, "ConnectorPlugin", "test", data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void add(RedisCommands<String, byte[]> commands, Message message) {
+        commands.xadd(stream, Collections.singletonMap("f", codec.encode("", message)));
+    }
+
+    @SuppressWarnings("unchecked") // Single offset, see RedisStreamConnection#readGroup
+    private void read(RedisCommands<String, byte[]> commands, Consumer<String> consumer) {
+        commands.xreadgroup(consumer, XReadArgs.StreamOffset.lastConsumed(stream));
+    }
+
+    private long pending(String group) {
+        return rawConnection.sync().xpending(stream, group).getCount();
+    }
+
+    private void awaitGroups(String... groups) throws InterruptedException {
+        await(() -> {
+            if (rawConnection.sync().exists(stream) == 0) {
+                return false;
+            }
+            return rawConnection.sync().xinfoGroups(stream).size() == groups.length;
+        });
+    }
+
+    private static String data(Message message) {
+        assertNotNull(message, "No message received");
+        return new String(message.getData(), StandardCharsets.UTF_8);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < end, "Condition wasn't met in time");
+            Thread.sleep(10);
+        }
+    }
+}
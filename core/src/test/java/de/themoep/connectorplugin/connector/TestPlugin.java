@@ -0,0 +1,130 @@
+package de.themoep.connectorplugin.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A plugin without a connector for testing connections on their own
+ */
+class TestPlugin implements ConnectorPlugin<Object> {
+
+    private final String serverName;
+    private final String channel;
+    private final Logger logger;
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool();
+    private final List<String> warnings = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a plugin
+     * @param serverName    The name of the server
+     * @param channel       The message channel, should be unique per test to not receive messages of others
+     */
+    TestPlugin(String serverName, String channel) {
+        this.serverName = serverName;
+        this.channel = channel;
+        this.logger = Logger.getLogger(getName() + " " + serverName);
+    }
+
+    @Override
+    public String getName() {
+        return "ConnectorPlugin";
+    }
+
+    @Override
+    public Connector<?, Object> getConnector() {
+        return null;
+    }
+
+    @Override
+    public MessageTarget.Type getSourceType() {
+        return MessageTarget.Type.SERVER;
+    }
+
+    @Override
+    public String getMessageChannel() {
+        return channel;
+    }
+
+    @Override
+    public String getServerName() {
+        return serverName;
+    }
+
+    @Override
+    public String getGlobalGroup() {
+        return "global";
+    }
+
+    @Override
+    public Map<String, String> getGroups() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void runAsync(Runnable runnable) {
+        asyncExecutor.execute(runnable);
+    }
+
+    @Override
+    public void logDebug(String message, Throwable... throwables) {
+        log(Level.FINE, message, throwables);
+    }
+
+    @Override
+    public void logInfo(String message, Throwable... throwables) {
+        log(Level.INFO, message, throwables);
+    }
+
+    @Override
+    public void logWarning(String message, Throwable... throwables) {
+        warnings.add(message);
+        log(Level.WARNING, message, throwables);
+    }
+
+    @Override
+    public void logError(String message, Throwable... throwables) {
+        log(Level.SEVERE, message, throwables);
+    }
+
+    private void log(Level level, String message, Throwable... throwables) {
+        logger.log(level, message, throwables.length > 0 ? throwables[0] : null);
+    }
+
+    /**
+     * Get the warnings that were logged
+     * @return The logged warnings
+     */
+    List<String> getWarnings() {
+        return warnings;
+    }
+
+    void close() {
+        asyncExecutor.shutdownNow();
+    }
+}
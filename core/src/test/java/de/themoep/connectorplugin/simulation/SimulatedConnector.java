@@ -0,0 +1,77 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.connector.Connector;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.LoopbackConnection;
+import de.themoep.connectorplugin.connector.LoopbackNetwork;
+import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessageTarget;
+
+/**
+ * Connector of a {@link SimulatedNode} which sends its messages over a {@link LoopbackNetwork}
+ */
+public class SimulatedConnector extends Connector<SimulatedNode, SimulatedPlayer> {
+
+    private final LoopbackConnection connection;
+
+    SimulatedConnector(SimulatedNode plugin, FrameCodec codec, LoopbackNetwork network) {
+        super(plugin, false, codec);
+        connection = network.connect(plugin, codec, this::handle);
+    }
+
+    @Override
+    protected SimulatedPlayer getReceiverImplementation(String name) {
+        return plugin.getPlayer(name);
+    }
+
+    @Override
+    protected String getDestination(String targetData, Message message) {
+        String destination = super.getDestination(targetData, message);
+        if (destination == null && plugin.isProxy() && targetData.startsWith(PLAYER_PREFIX)) {
+            // Like on a real proxy we know the server of our players and whether they are connected to us
+            SimulatedPlayer player = getReceiver(targetData);
+            if (message.getTarget() == MessageTarget.SERVER && player != null && player.getServer() != null) {
+                return player.getServer();
+            } else if (message.getTarget() == MessageTarget.PROXY && player != null) {
+                return plugin.getServerName();
+            }
+        }
+        return destination;
+    }
+
+    @Override
+    protected void sendDataImplementation(Object targetData, Message message) {
+        String target = targetData instanceof String
+                ? (hasPrefix((String) targetData)
+                        ? (String) targetData
+                        : SERVER_PREFIX + targetData)
+                : (targetData instanceof SimulatedPlayer
+                        ? PLAYER_PREFIX + ((SimulatedPlayer) targetData).getName()
+                        : "");
+        connection.sendMessage(target, message, getDestination(target, message));
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        connection.close();
+    }
+}
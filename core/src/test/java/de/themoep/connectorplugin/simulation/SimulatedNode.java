@@ -0,0 +1,162 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.ConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.LoopbackNetwork;
+import de.themoep.connectorplugin.connector.MessageTarget;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static de.themoep.connectorplugin.connector.Connector.PROXY_ID_PREFIX;
+
+/**
+ * A server or proxy in a {@link Simulation}
+ */
+public class SimulatedNode implements ConnectorPlugin<SimulatedPlayer> {
+
+    private final String serverName;
+    private final MessageTarget.Type type;
+    private final String globalGroup;
+    private final Map<String, String> pluginGroups = new HashMap<>();
+    private final Map<String, SimulatedPlayer> players = new ConcurrentHashMap<>();
+    private final Executor asyncExecutor;
+    private final Logger logger;
+    private boolean debug = false;
+    private final SimulatedConnector connector;
+
+    SimulatedNode(String serverName, MessageTarget.Type type, String globalGroup, Map<String, String> pluginGroups, LoopbackNetwork network, FrameCodec codec, Executor asyncExecutor) {
+        this.serverName = serverName;
+        this.type = type;
+        this.globalGroup = globalGroup;
+        for (Map.Entry<String, String> entry : pluginGroups.entrySet()) {
+            this.pluginGroups.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        this.asyncExecutor = asyncExecutor;
+        this.logger = Logger.getLogger(getName() + " " + serverName);
+        this.connector = new SimulatedConnector(this, codec, network);
+    }
+
+    @Override
+    public String getName() {
+        return "ConnectorPlugin";
+    }
+
+    @Override
+    public SimulatedConnector getConnector() {
+        return connector;
+    }
+
+    @Override
+    public MessageTarget.Type getSourceType() {
+        return type;
+    }
+
+    @Override
+    public String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * Whether this node is a proxy
+     * @return Whether it is a proxy, false if it's a server
+     */
+    public boolean isProxy() {
+        return serverName.startsWith(PROXY_ID_PREFIX);
+    }
+
+    @Override
+    public String getGlobalGroup() {
+        return globalGroup;
+    }
+
+    @Override
+    public Map<String, String> getGroups() {
+        return pluginGroups;
+    }
+
+    /**
+     * Get a player which is on this server or connected to this proxy
+     * @param name  The name of the player
+     * @return The player or null if they aren't here
+     */
+    public SimulatedPlayer getPlayer(String name) {
+        return players.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the players which are on this server or connected to this proxy
+     * @return The players
+     */
+    public Collection<SimulatedPlayer> getPlayers() {
+        return Collections.unmodifiableCollection(players.values());
+    }
+
+    void addPlayer(SimulatedPlayer player) {
+        players.put(player.getName().toLowerCase(Locale.ROOT), player);
+    }
+
+    void removePlayer(SimulatedPlayer player) {
+        players.remove(player.getName().toLowerCase(Locale.ROOT), player);
+    }
+
+    @Override
+    public void runAsync(Runnable runnable) {
+        asyncExecutor.execute(runnable);
+    }
+
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    @Override
+    public void logDebug(String message, Throwable... throwables) {
+        if (debug) {
+            logInfo("[DEBUG] " + message, throwables);
+        }
+    }
+
+    @Override
+    public void logInfo(String message, Throwable... throwables) {
+        log(Level.INFO, message, throwables);
+    }
+
+    @Override
+    public void logWarning(String message, Throwable... throwables) {
+        log(Level.WARNING, message, throwables);
+    }
+
+    @Override
+    public void logError(String message, Throwable... throwables) {
+        log(Level.SEVERE, message, throwables);
+    }
+
+    private void log(Level level, String message, Throwable... throwables) {
+        logger.log(level, message, throwables.length > 0 ? throwables[0] : null);
+    }
+}
@@ -0,0 +1,65 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A player in a {@link Simulation}
+ */
+public class SimulatedPlayer {
+    private final String name;
+    private volatile String server;
+    private volatile String proxy;
+
+    SimulatedPlayer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the server that the player is on
+     * @return The name of the server or null if the player isn't connected to one
+     */
+    public String getServer() {
+        return server;
+    }
+
+    void setServer(String server) {
+        this.server = server;
+    }
+
+    /**
+     * Get the proxy that the player is connected to
+     * @return The name of the proxy or null if the player is offline
+     */
+    public String getProxy() {
+        return proxy;
+    }
+
+    void setProxy(String proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedPlayer{name=" + name + ", server=" + server + ", proxy=" + proxy + "}";
+    }
+}
@@ -0,0 +1,191 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.io.ByteArrayDataInput;
+import de.themoep.connectorplugin.LocationInfo;
+import de.themoep.connectorplugin.ProxyBridgeCommon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static de.themoep.connectorplugin.connector.Connector.PROXY_ID_PREFIX;
+
+/**
+ * The bridge of a simulated proxy. Teleports move the player to the target's server in the {@link Simulation}.
+ */
+public class SimulatedProxyBridge extends ProxyBridgeCommon<SimulatedNode, SimulatedPlayer> {
+
+    private final Simulation simulation;
+    private final Set<String> startedServers = ConcurrentHashMap.newKeySet();
+    private final List<String> consoleCommands = new CopyOnWriteArrayList<>();
+
+    public SimulatedProxyBridge(SimulatedNode plugin, Simulation simulation) {
+        super(plugin);
+        this.simulation = simulation;
+
+        registerMessageHandler(Action.CONSOLE_COMMAND, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
+            String senderServer = message.getReceivedMessage().getSendingServer();
+            long id = readId(in);
+            String command = in.readUTF();
+
+            consoleCommands.add(command);
+            sendResponse(senderServer, id, true);
+        });
+    }
+
+    /**
+     * Let a player join this proxy and announce it to the network
+     * @param playerName    The name of the player
+     * @param serverName    The server to connect the player to
+     * @return The player
+     */
+    public SimulatedPlayer join(String playerName, String serverName) {
+        SimulatedPlayer player = simulation.join(playerName, getProxyId(), serverName);
+        onPlayerJoin(createPlayerInfo(player));
+        return player;
+    }
+
+    /**
+     * Let a player leave the network and announce it
+     * @param playerName    The name of the player
+     */
+    public void leave(String playerName) {
+        simulation.leave(playerName);
+        onPlayerLeave(playerName);
+    }
+
+    /**
+     * Whether this proxy knows about a player, either because they are connected to it or from the announcements of other proxies
+     * @param playerName    The name of the player
+     * @return Whether the player is known
+     */
+    public boolean isKnown(String playerName) {
+        return playerInfoMap.containsKey(playerName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the servers which announced that they started
+     * @return The names of the servers
+     */
+    public Set<String> getStartedServers() {
+        return startedServers;
+    }
+
+    /**
+     * Get the console commands which other proxies ran on this proxy
+     * @return The commands in the order they were received
+     */
+    public List<String> getConsoleCommands() {
+        return consoleCommands;
+    }
+
+    private String getProxyId() {
+        return plugin.getServerName().substring(PROXY_ID_PREFIX.length());
+    }
+
+    private CompletableFuture<Boolean> move(String playerName, String serverName, Consumer<String>[] consumer) {
+        SimulatedPlayer player = plugin.getPlayer(playerName);
+        if (player == null || simulation.getNode(serverName) == null) {
+            for (Consumer<String> c : consumer) {
+                c.accept(player == null ? "Player " + playerName + " is not online!" : "Unknown server " + serverName);
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+        simulation.join(playerName, getProxyId(), serverName);
+        for (Consumer<String> c : consumer) {
+            c.accept("Player teleported!");
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    protected void registerServerCommands(String server) {
+        startedServers.add(server);
+    }
+
+    @Override
+    protected SimulatedPlayer getPlayer(String playerName) {
+        return plugin.getPlayer(playerName);
+    }
+
+    @Override
+    public PlayerInfo createPlayerInfo(SimulatedPlayer player) {
+        return new PlayerInfo(
+                UUID.nameUUIDFromBytes(("OfflinePlayer:" + player.getName()).getBytes(StandardCharsets.UTF_8)),
+                player.getName(),
+                player.getServer() != null ? player.getServer() : ""
+        );
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(SimulatedPlayer player, LocationInfo location, Consumer<String>... consumer) {
+        return move(player.getName(), location.getServer(), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(String playerName, LocationInfo location, Consumer<String>... consumer) {
+        return move(playerName, location.getServer(), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(String playerName, String serverName, String worldName, Consumer<String>... consumer) {
+        return move(playerName, serverName, consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(SimulatedPlayer player, String serverName, String worldName, Consumer<String>... consumer) {
+        return move(player.getName(), serverName, consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(SimulatedPlayer player, SimulatedPlayer target, Consumer<String>... consumer) {
+        return teleport(player.getName(), target.getName(), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(String playerName, String targetName, Consumer<String>... consumer) {
+        SimulatedPlayer target = simulation.getPlayer(targetName);
+        if (target == null || target.getServer() == null) {
+            for (Consumer<String> c : consumer) {
+                c.accept("Target " + targetName + " is not online!");
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+        return move(playerName, target.getServer(), consumer);
+    }
+
+    @Override
+    public CompletableFuture<LocationInfo> getLocation(SimulatedPlayer player) {
+        return getLocation(player.getName());
+    }
+
+    @Override
+    public CompletableFuture<String> getServer(SimulatedPlayer player) {
+        return CompletableFuture.completedFuture(player.getServer());
+    }
+}
@@ -0,0 +1,187 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import de.themoep.connectorplugin.BridgeCommon;
+import de.themoep.connectorplugin.LocationInfo;
+import de.themoep.connectorplugin.ResponseHandler;
+import de.themoep.connectorplugin.connector.MessageTarget;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static de.themoep.connectorplugin.connector.Connector.PLAYER_PREFIX;
+import static de.themoep.connectorplugin.connector.Connector.PROXY_ID_PREFIX;
+
+/**
+ * The bridge of a simulated server. It answers the requests of proxies like the Bukkit bridge does,
+ * all players stand at the same {@link #getSpawn() spawn location} of the server.
+ */
+public class SimulatedServerBridge extends BridgeCommon<SimulatedNode, SimulatedPlayer> {
+
+    private final List<String> consoleCommands = new CopyOnWriteArrayList<>();
+
+    public SimulatedServerBridge(SimulatedNode plugin) {
+        super(plugin);
+
+        registerMessageHandler(Action.GET_LOCATION, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
+            String senderServer = message.getReceivedMessage().getSendingServer();
+            long id = readId(in);
+            String playerName = in.readUTF();
+
+            SimulatedPlayer player = plugin.getPlayer(playerName);
+            sendResponse(senderServer, id, player != null ? getSpawn() : null);
+        });
+
+        registerMessageHandler(Action.CONSOLE_COMMAND, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
+            String senderServer = message.getReceivedMessage().getSendingServer();
+            String targetServer = in.readUTF();
+            if (!targetServer.equals(plugin.getServerName())) {
+                return;
+            }
+            long id = readId(in);
+            String command = in.readUTF();
+
+            consoleCommands.add(command);
+            sendResponseMessage(senderServer, id, "Executed " + command);
+            sendResponse(senderServer, id, true);
+        });
+
+        registerMessageHandler(Action.RESPONSE, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
+            long id = readId(in);
+            boolean isCompletion = in.readBoolean();
+            if (isCompletion) {
+                handleResponse(id, in);
+            } else {
+                String responseMessage = in.readUTF();
+                Consumer<String>[] consumer = consumers.getIfPresent(id);
+                if (consumer != null) {
+                    for (Consumer<String> stringConsumer : consumer) {
+                        stringConsumer.accept(responseMessage);
+                    }
+                }
+            }
+        });
+
+        ByteArrayDataOutput out = newOutput();
+        out.writeUTF(plugin.getServerName());
+        sendData(Action.STARTED, MessageTarget.ALL_PROXIES, out.toByteArray());
+        plugin.getConnector().announceDictionary();
+    }
+
+    /**
+     * Get the location at which all players of this server are
+     * @return The location
+     */
+    public LocationInfo getSpawn() {
+        return new LocationInfo(plugin.getServerName(), "world", 12.5, 64, -7.25, 90, -45);
+    }
+
+    /**
+     * Get the console commands which other servers or proxies ran on this server
+     * @return The commands in the order they were received
+     */
+    public List<String> getConsoleCommands() {
+        return consoleCommands;
+    }
+
+    /**
+     * Whether this server knows about a player from the join and leave announcements of the proxies
+     * @param playerName    The name of the player
+     * @return Whether the player is known
+     */
+    public boolean isKnown(String playerName) {
+        return playerInfoMap.containsKey(playerName.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    protected void sendResponseData(String target, byte[] out) {
+        sendData(
+                Action.RESPONSE,
+                target.startsWith(PROXY_ID_PREFIX) ? MessageTarget.PROXY : MessageTarget.SERVER,
+                target,
+                out);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(SimulatedPlayer player, LocationInfo location, Consumer<String>... consumer) {
+        return teleport(player.getName(), location, consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(String playerName, LocationInfo location, Consumer<String>... consumer) {
+        return sendRequest(Action.TELEPORT, playerName, out -> location.write(out), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(String playerName, String serverName, String worldName, Consumer<String>... consumer) {
+        return sendRequest(Action.TELEPORT_TO_WORLD, playerName, out -> {
+            out.writeUTF(serverName);
+            out.writeUTF(worldName);
+        }, consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(SimulatedPlayer player, String serverName, String worldName, Consumer<String>... consumer) {
+        return teleport(player.getName(), serverName, worldName, consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(SimulatedPlayer player, SimulatedPlayer target, Consumer<String>... consumer) {
+        return teleport(player.getName(), target.getName(), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> teleport(String playerName, String targetName, Consumer<String>... consumer) {
+        return sendRequest(Action.TELEPORT_TO_PLAYER, playerName, out -> out.writeUTF(targetName), consumer);
+    }
+
+    private CompletableFuture<Boolean> sendRequest(String action, String playerName, Consumer<ByteArrayDataOutput> writer, Consumer<String>[] consumer) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
+        out.writeUTF(playerName);
+        writer.accept(out);
+        responses.put(id, new ResponseHandler.Boolean(future));
+        if (consumer.length > 0) {
+            consumers.put(id, consumer);
+        }
+        sendData(action, MessageTarget.PROXY, PLAYER_PREFIX + playerName, out.toByteArray());
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<LocationInfo> getLocation(SimulatedPlayer player) {
+        return CompletableFuture.completedFuture(player.getServer() != null ? getSpawn() : null);
+    }
+
+    @Override
+    public CompletableFuture<String> getServer(SimulatedPlayer player) {
+        return CompletableFuture.completedFuture(player.getServer());
+    }
+}
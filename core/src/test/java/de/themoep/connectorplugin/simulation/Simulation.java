@@ -0,0 +1,212 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.LoopbackNetwork;
+import de.themoep.connectorplugin.connector.MessageTarget;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static de.themoep.connectorplugin.connector.Connector.PROXY_ID_PREFIX;
+
+/**
+ * Runs several simulated servers and proxies in one JVM which are connected through a {@link LoopbackNetwork}.
+ * This allows exercising the connector, group filtering and plugins using it without real servers or a broker.
+ */
+public class Simulation {
+
+    private final LoopbackNetwork network;
+    private final Supplier<FrameCodec> codecSupplier;
+    private final ExecutorService asyncExecutor;
+    private final Map<String, SimulatedNode> nodes = new LinkedHashMap<>();
+    private final Map<String, SimulatedPlayer> players = new ConcurrentHashMap<>();
+
+    /**
+     * Create a simulation without latency and loss which uses the legacy frame format
+     */
+    public Simulation() {
+        this(new LoopbackNetwork("Simulated network"), FrameCodec::new);
+    }
+
+    /**
+     * Create a simulation
+     * @param network       The network to connect the servers and proxies with
+     * @param codecSupplier Supplies the frame codec of each server and proxy
+     */
+    public Simulation(LoopbackNetwork network, Supplier<FrameCodec> codecSupplier) {
+        this.network = network;
+        this.codecSupplier = codecSupplier;
+        this.asyncExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Simulation async task");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add a server
+     * @param name          The name of the server
+     * @param group         The global group of the server
+     * @param pluginGroups  The groups of certain plugins
+     * @return The server
+     */
+    public SimulatedNode addServer(String name, String group, Map<String, String> pluginGroups) {
+        return addNode(new SimulatedNode(name, MessageTarget.Type.SERVER, group, pluginGroups, network, codecSupplier.get(), asyncExecutor));
+    }
+
+    /**
+     * Add a server in the "global" group
+     * @param name  The name of the server
+     * @return The server
+     */
+    public SimulatedNode addServer(String name) {
+        return addServer(name, "global", Collections.emptyMap());
+    }
+
+    /**
+     * Add a proxy, proxies accept messages of all groups
+     * @param id    The ID of the proxy
+     * @return The proxy
+     */
+    public SimulatedNode addProxy(String id) {
+        return addNode(new SimulatedNode(PROXY_ID_PREFIX + id, MessageTarget.Type.PROXY, "", Collections.emptyMap(), network, codecSupplier.get(), asyncExecutor));
+    }
+
+    private synchronized SimulatedNode addNode(SimulatedNode node) {
+        if (nodes.containsKey(node.getServerName())) {
+            node.getConnector().close();
+            throw new IllegalArgumentException("There already is a node called " + node.getServerName());
+        }
+        nodes.put(node.getServerName(), node);
+        return node;
+    }
+
+    /**
+     * Get a server or proxy
+     * @param serverName    The name of the server or the prefixed ID of the proxy
+     * @return The node or null if there is none with that name
+     */
+    public synchronized SimulatedNode getNode(String serverName) {
+        return nodes.get(serverName);
+    }
+
+    /**
+     * Get all servers and proxies
+     * @return The nodes in the order they were added
+     */
+    public synchronized Collection<SimulatedNode> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * Let a player join a proxy and connect to a server. If they are already online they switch to the new ones.
+     * @param playerName    The name of the player
+     * @param proxyId       The ID of the proxy
+     * @param serverName    The name of the server or null if they shouldn't be on one
+     * @return The player
+     * @throws IllegalArgumentException if there is no such proxy or server
+     */
+    public SimulatedPlayer join(String playerName, String proxyId, String serverName) {
+        SimulatedNode proxy = getNode(PROXY_ID_PREFIX + proxyId);
+        SimulatedNode server = serverName != null ? getNode(serverName) : null;
+        if (proxy == null || (serverName != null && server == null)) {
+            throw new IllegalArgumentException("Unknown proxy " + proxyId + " or server " + serverName);
+        }
+        SimulatedPlayer player = players.computeIfAbsent(playerName.toLowerCase(Locale.ROOT), n -> new SimulatedPlayer(playerName));
+        synchronized (player) {
+            leave(player);
+            player.setProxy(proxy.getServerName());
+            proxy.addPlayer(player);
+            if (server != null) {
+                player.setServer(server.getServerName());
+                server.addPlayer(player);
+            }
+        }
+        return player;
+    }
+
+    /**
+     * Let a player leave the network
+     * @param playerName    The name of the player
+     * @return The player or null if they weren't online
+     */
+    public SimulatedPlayer leave(String playerName) {
+        SimulatedPlayer player = players.remove(playerName.toLowerCase(Locale.ROOT));
+        if (player != null) {
+            synchronized (player) {
+                leave(player);
+            }
+        }
+        return player;
+    }
+
+    private void leave(SimulatedPlayer player) {
+        for (String nodeName : new String[]{player.getProxy(), player.getServer()}) {
+            SimulatedNode node = nodeName != null ? getNode(nodeName) : null;
+            if (node != null) {
+                node.removePlayer(player);
+            }
+        }
+        player.setProxy(null);
+        player.setServer(null);
+    }
+
+    /**
+     * Get an online player
+     * @param playerName    The name of the player
+     * @return The player or null if they aren't online
+     */
+    public SimulatedPlayer getPlayer(String playerName) {
+        return players.get(playerName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Wait until all sent messages were delivered
+     * @param timeout   The maximum time to wait
+     * @param unit      The unit of the timeout
+     * @return Whether all messages were delivered, false if the timeout was reached first
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        return network.awaitIdle(timeout, unit);
+    }
+
+    public LoopbackNetwork getNetwork() {
+        return network;
+    }
+
+    public void close() {
+        for (SimulatedNode node : getNodes()) {
+            node.getConnector().close();
+        }
+        network.close();
+        asyncExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,263 @@
+package de.themoep.connectorplugin.simulation;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.LocationInfo;
+import de.themoep.connectorplugin.connector.ConnectingPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.LoopbackNetwork;
+import de.themoep.connectorplugin.connector.MessageTarget;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+import static de.themoep.connectorplugin.connector.Connector.PROXY_ID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs fan-out, request/response, join/leave and bridge traffic through a {@link Simulation}
+ */
+public class SimulationTest {
+
+    private static final int SERVERS = 4;
+    private static final int PROXIES = 2;
+    private static final int MESSAGES = 1000;
+    private static final ConnectingPlugin TEST = () -> "Test";
+
+    private Simulation simulation;
+    private final List<SimulatedNode> servers = new ArrayList<>();
+    private final List<SimulatedNode> proxies = new ArrayList<>();
+
+    private void setUp(boolean compact) {
+        // Some latency and jitter so that messages overtake each other like on a real network
+        simulation = new Simulation(
+                new LoopbackNetwork("Test network", 50, 50, 0, 0),
+                () -> new FrameCodec(compact, 256)
+        );
+        for (int i = 0; i < PROXIES; i++) {
+            proxies.add(simulation.addProxy("proxy" + i));
+        }
+        for (int i = 0; i < SERVERS; i++) {
+            servers.add(simulation.addServer("server" + i));
+        }
+    }
+
+    private void announceDictionaries() throws InterruptedException {
+        for (SimulatedNode node : simulation.getNodes()) {
+            node.getConnector().announceDictionary();
+        }
+        awaitIdle();
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        assertTrue(simulation.awaitIdle(30, TimeUnit.SECONDS), "Network didn't become idle");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (simulation != null) {
+            simulation.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testFanOut(boolean compact) throws InterruptedException {
+        setUp(compact);
+        announceDictionaries();
+        Map<String, AtomicLong> received = new ConcurrentHashMap<>();
+        for (SimulatedNode node : simulation.getNodes()) {
+            AtomicLong count = received.computeIfAbsent(node.getServerName(), n -> new AtomicLong());
+            node.getConnector().registerMessageHandler(TEST, "fanout", (p, m) -> count.incrementAndGet());
+        }
+
+        for (int i = 0; i < MESSAGES; i++) {
+            servers.get(0).getConnector().sendData(TEST, "fanout", MessageTarget.ALL_QUEUE, new byte[64]);
+        }
+        awaitIdle();
+
+        for (SimulatedNode server : servers) {
+            assertEquals(MESSAGES, received.get(server.getServerName()).get(), server.getServerName());
+        }
+        for (SimulatedNode proxy : proxies) {
+            assertEquals(0, received.get(proxy.getServerName()).get(), proxy.getServerName());
+        }
+        assertEquals(0, simulation.getNetwork().getLost());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testRequestResponse(boolean compact) throws InterruptedException {
+        setUp(compact);
+        announceDictionaries();
+        // ID -> proxy which sent the request and server which should answer it
+        Map<Long, String[]> requests = new ConcurrentHashMap<>();
+        Map<Long, String> mismatches = new ConcurrentHashMap<>();
+        for (SimulatedNode node : simulation.getNodes()) {
+            // Servers answer requests of proxies with the same ID
+            node.getConnector().registerMessageHandler(TEST, "request", (p, m) ->
+                    node.getConnector().sendData(TEST, "response", MessageTarget.PROXY, m.getSendingServer(), m.getData()));
+            node.getConnector().registerMessageHandler(TEST, "response", (p, m) -> {
+                long id = ByteBuffer.wrap(m.getData()).getLong();
+                String[] request = requests.remove(id);
+                if (request == null || !request[0].equals(node.getServerName()) || !request[1].equals(m.getSendingServer())) {
+                    mismatches.put(id, node.getServerName() + " from " + m.getSendingServer());
+                }
+            });
+        }
+
+        for (int i = 0; i < MESSAGES; i++) {
+            long id = i;
+            SimulatedNode proxy = proxies.get(i % PROXIES);
+            SimulatedNode server = servers.get(i % SERVERS);
+            requests.put(id, new String[]{proxy.getServerName(), server.getServerName()});
+            proxy.getConnector().sendData(TEST, "request", MessageTarget.SERVER,
+                    server.getServerName(), ByteBuffer.allocate(8).putLong(id).array());
+        }
+        awaitIdle();
+
+        assertTrue(requests.isEmpty(), requests.size() + " requests were not answered");
+        assertTrue(mismatches.isEmpty(), "Responses were not correlated: " + mismatches);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testPlayerJoinLeave(boolean compact) throws InterruptedException {
+        setUp(compact);
+        List<SimulatedProxyBridge> proxyBridges = new ArrayList<>();
+        for (SimulatedNode proxy : proxies) {
+            proxyBridges.add(new SimulatedProxyBridge(proxy, simulation));
+        }
+        List<SimulatedServerBridge> serverBridges = new ArrayList<>();
+        for (SimulatedNode server : servers) {
+            serverBridges.add(new SimulatedServerBridge(server));
+        }
+        awaitIdle();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            proxyBridges.get(i % PROXIES).join("player" + i, servers.get(i % SERVERS).getServerName());
+        }
+        awaitIdle();
+        assertKnown(proxyBridges, serverBridges, i -> true);
+
+        // Every other player leaves again
+        for (int i = 1; i < MESSAGES; i += 2) {
+            proxyBridges.get(i % PROXIES).leave("player" + i);
+        }
+        awaitIdle();
+        assertKnown(proxyBridges, serverBridges, i -> i % 2 == 0);
+        assertEquals(MESSAGES / 2, proxies.get(0).getPlayers().size() + proxies.get(1).getPlayers().size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testBridgeRequests(boolean compact) throws InterruptedException, ExecutionException, TimeoutException {
+        setUp(compact);
+        SimulatedProxyBridge proxy0 = new SimulatedProxyBridge(proxies.get(0), simulation);
+        SimulatedProxyBridge proxy1 = new SimulatedProxyBridge(proxies.get(1), simulation);
+        List<SimulatedServerBridge> serverBridges = new ArrayList<>();
+        for (SimulatedNode server : servers) {
+            serverBridges.add(new SimulatedServerBridge(server));
+        }
+        awaitIdle();
+        for (SimulatedNode server : servers) {
+            assertTrue(proxy0.getStartedServers().contains(server.getServerName()), server.getServerName());
+            assertTrue(proxy1.getStartedServers().contains(server.getServerName()), server.getServerName());
+        }
+
+        proxy0.join("Alice", "server1");
+        // Bob's join isn't announced so servers have to ask the proxies about him
+        simulation.join("Bob", "proxy1", "server2");
+        awaitIdle();
+
+        // Server asks all proxies for a player's info
+        assertEquals("server2", get(serverBridges.get(0).getServer("Bob")));
+
+        // Proxy asks the server of a player for their location
+        LocationInfo location = get(proxy0.getLocation("Alice"));
+        assertNotNull(location);
+        assertEquals(serverBridges.get(1).getSpawn(), location);
+
+        // Console commands with their response messages
+        CompletableFuture<String> commandMessage = new CompletableFuture<>();
+        assertTrue(get(proxy0.runServerConsoleCommand("server2", "say hi", commandMessage::complete)));
+        assertEquals("Executed say hi", get(commandMessage));
+        assertEquals(1, serverBridges.get(2).getConsoleCommands().size());
+        assertEquals("say hi", serverBridges.get(2).getConsoleCommands().get(0));
+        for (SimulatedServerBridge serverBridge : serverBridges) {
+            if (serverBridge != serverBridges.get(2)) {
+                assertTrue(serverBridge.getConsoleCommands().isEmpty());
+            }
+        }
+
+        assertTrue(get(proxy0.runProxyConsoleCommand("reload")));
+        awaitIdle();
+        assertEquals(1, proxy1.getConsoleCommands().size());
+        assertEquals("reload", proxy1.getConsoleCommands().get(0));
+        assertTrue(proxy0.getConsoleCommands().isEmpty());
+
+        // Servers ask the proxy of a player to teleport them
+        CompletableFuture<String> teleportMessage = new CompletableFuture<>();
+        assertTrue(get(serverBridges.get(0).teleport("Alice", "server3", "world", teleportMessage::complete)));
+        assertEquals("Player teleported!", get(teleportMessage));
+        assertEquals("server3", simulation.getPlayer("Alice").getServer());
+
+        assertTrue(get(serverBridges.get(3).teleport("Alice", "Bob")));
+        assertEquals("server2", simulation.getPlayer("Alice").getServer());
+
+        assertTrue(get(serverBridges.get(2).teleport("Alice", serverBridges.get(0).getSpawn())));
+        assertEquals("server0", simulation.getPlayer("Alice").getServer());
+
+        assertFalse(get(serverBridges.get(0).teleport("Alice", "server" + SERVERS, "world")));
+        assertEquals("server0", simulation.getPlayer("Alice").getServer());
+        assertEquals(PROXY_ID_PREFIX + "proxy0", simulation.getPlayer("Alice").getProxy());
+    }
+
+    private void assertKnown(List<SimulatedProxyBridge> proxyBridges, List<SimulatedServerBridge> serverBridges, IntPredicate online) {
+        for (int i = 0; i < MESSAGES; i++) {
+            String playerName = "player" + i;
+            assertEquals(online.test(i), simulation.getPlayer(playerName) != null, playerName);
+            for (SimulatedProxyBridge proxyBridge : proxyBridges) {
+                assertEquals(online.test(i), proxyBridge.isKnown(playerName), playerName);
+            }
+            for (SimulatedServerBridge serverBridge : serverBridges) {
+                assertEquals(online.test(i), serverBridge.isKnown(playerName), playerName);
+            }
+        }
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+}
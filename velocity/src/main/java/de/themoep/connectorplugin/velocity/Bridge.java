@@ -22,7 +22,6 @@ import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import com.mojang.brigadier.tree.CommandNode;
 import com.velocitypowered.api.command.CommandMeta;
 import com.velocitypowered.api.command.CommandSource;
@@ -71,9 +70,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
         plugin.getProxy().getEventManager().register(plugin, this);
 
         registerMessageHandler(Action.SEND_TO_SERVER, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             String targetServer = in.readUTF();
 
@@ -105,9 +104,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
         });
 
         registerMessageHandler(Action.GET_LOCATION, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
 
             Optional<Player> player = plugin.getProxy().getPlayer(playerName);
@@ -119,9 +118,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
         });
 
         registerMessageHandler(Action.PLAYER_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String playerName = in.readUTF();
             UUID playerId = new UUID(in.readLong(), in.readLong());
             String command = in.readUTF();
@@ -141,9 +140,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
         });
 
         registerMessageHandler(Action.CONSOLE_COMMAND, (receiver, message) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message.getData());
+            ByteArrayDataInput in = message.getDataInput();
             String senderServer = message.getReceivedMessage().getSendingServer();
-            long id = in.readLong();
+            long id = readId(in);
             String command = in.readUTF();
 
             plugin.logDebug("Console command '" + command + "' triggered from " + senderServer);
@@ -151,8 +150,8 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
                     .thenAccept(success -> sendResponse(senderServer, id, success));
         });
 
-        registerHandler(Action.EXECUTE_COMMAND, (receiver, data) -> {
-            ByteArrayDataInput in = ByteStreams.newDataInput(data);
+        registerMessageHandler(Action.EXECUTE_COMMAND, (receiver, message) -> {
+            ByteArrayDataInput in = message.getDataInput();
             String serverName = in.readUTF();
             if (!serverName.equals(plugin.getServerName())) {
                 return;
@@ -240,9 +239,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
         markTeleporting(playerName);
         future.thenAccept(success -> unmarkTeleporting(playerName));
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player.getUsername());
         location.write(out);
         responses.put(id, new ResponseHandler.Boolean(future));
@@ -286,9 +285,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
         markTeleporting(playerName);
         future.thenAccept(success -> unmarkTeleporting(playerName));
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player.getUsername());
         out.writeUTF(serverName);
         out.writeUTF(worldName);
@@ -345,9 +344,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
             markTeleporting(playerName);
             future.thenAccept(success -> unmarkTeleporting(playerName));
 
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            long id = RANDOM.nextLong();
-            out.writeLong(id);
+            ByteArrayDataOutput out = newOutput();
+            long id = nextId();
+            writeId(out, id);
             out.writeUTF(player.getUsername());
             out.writeUTF(targetName);
             responses.put(id, new ResponseHandler.Boolean(future));
@@ -406,9 +405,9 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
      */
     public CompletableFuture<Boolean> runServerPlayerCommand(Player player, String command) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        long id = RANDOM.nextLong();
-        out.writeLong(id);
+        ByteArrayDataOutput out = newOutput();
+        long id = nextId();
+        writeId(out, id);
         out.writeUTF(player.getUsername());
         out.writeLong(player.getUniqueId().getMostSignificantBits());
         out.writeLong(player.getUniqueId().getLeastSignificantBits());
@@ -441,7 +440,7 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
      * @param command   The command to register
      */
     public void registerServerCommand(String server, BridgedCommand<?, CommandSource> command) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         write(out, command);
         sendData(Action.REGISTER_COMMAND, MessageTarget.SERVER, server, out.toByteArray());
     }
@@ -453,7 +452,7 @@ public class Bridge extends ProxyBridgeCommon<VelocityConnectorPlugin, Player> {
     public void registerServerCommand(BridgedCommand<?, CommandSource> command) {
         commands.put(command.getPlugin().getName().toLowerCase(Locale.ROOT), command.getName().toLowerCase(Locale.ROOT), command);
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        ByteArrayDataOutput out = newOutput();
         write(out, command);
         sendData(Action.REGISTER_COMMAND, MessageTarget.ALL_QUEUE, out.toByteArray());
 
@@ -29,6 +29,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class PluginConfig {
@@ -180,6 +182,15 @@ public class PluginConfig {
         return getRawConfig(path).getBoolean(def);
     }
 
+    public List<String> getStringList(String path) {
+        try {
+            return getRawConfig(path).getList(String.class, Collections.emptyList());
+        } catch (SerializationException e) {
+            plugin.logError("Unable to read string list at " + path + " of " + configFile.getName(), e);
+            return Collections.emptyList();
+        }
+    }
+
     private static Object[] splitPath(String key) {
         return PATH_PATTERN.split(key);
     }
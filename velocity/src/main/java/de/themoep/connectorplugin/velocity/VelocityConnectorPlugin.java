@@ -28,9 +28,13 @@ import com.velocitypowered.api.proxy.ProxyServer;
 import de.themoep.connectorplugin.ConnectorPlugin;
 import de.themoep.connectorplugin.velocity.commands.ConnectorCommand;
 import de.themoep.connectorplugin.velocity.connector.VelocityConnector;
+import de.themoep.connectorplugin.velocity.connector.FailoverConnector;
+import de.themoep.connectorplugin.velocity.connector.HybridConnector;
 import de.themoep.connectorplugin.velocity.connector.MqttConnector;
+import de.themoep.connectorplugin.velocity.connector.PeerConnector;
 import de.themoep.connectorplugin.velocity.connector.PluginMessageConnector;
 import de.themoep.connectorplugin.velocity.connector.RedisConnector;
+import de.themoep.connectorplugin.velocity.connector.RedisStreamsConnector;
 import de.themoep.connectorplugin.connector.MessageTarget;
 import org.slf4j.Logger;
 
@@ -92,9 +96,21 @@ public final class VelocityConnectorPlugin implements ConnectorPlugin<Player> {
             case "redis":
                 connector = new RedisConnector(this);
                 break;
+            case "redis_streams":
+                connector = new RedisStreamsConnector(this);
+                break;
             case "mqtt":
                 connector = new MqttConnector(this);
                 break;
+            case "p2p":
+                connector = new PeerConnector(this);
+                break;
+            case "hybrid":
+                connector = new HybridConnector(this);
+                break;
+            case "failover":
+                connector = new FailoverConnector(this);
+                break;
         }
 
         ConnectorCommand command = new ConnectorCommand(this);
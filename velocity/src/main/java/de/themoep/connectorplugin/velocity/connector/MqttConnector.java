@@ -19,32 +19,65 @@ package de.themoep.connectorplugin.velocity.connector;
  */
 
 import de.themoep.connectorplugin.velocity.VelocityConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
 import de.themoep.connectorplugin.connector.MqttConnection;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
 public class MqttConnector extends VelocityConnector {
     private final MqttConnection connection;
 
     public MqttConnector(VelocityConnectorPlugin plugin) {
         super(plugin, false);
-        connection = new MqttConnection(
+        connection = createConnection(plugin, codec, this::handle);
+    }
+
+    /**
+     * Create a connection to the MQTT broker with the settings from the config
+     * @param plugin    The plugin
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The connection
+     */
+    static MqttConnection createConnection(VelocityConnectorPlugin plugin, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        return new MqttConnection(
                 plugin,
+                codec,
                 plugin.getConfig().getString("mqtt.broker-uri"),
                 plugin.getConfig().getString("mqtt.client-id", null),
                 plugin.getConfig().getString("mqtt.username"),
                 plugin.getConfig().getString("mqtt.password"),
                 plugin.getConfig().getInt("mqtt.keep-alive"),
-                this::handle
+                plugin.getConfig().getInt("mqtt.max-inflight", 64),
+                getOutboxLimits(plugin, "mqtt.queue"),
+                plugin.getConfig().getInt("mqtt.qos.default", 1),
+                getActionQos(plugin),
+                plugin.getConfig().getBoolean("mqtt.hierarchical-topics", false),
+                onMessage
         );
     }
 
+    private static Map<String, Integer> getActionQos(VelocityConnectorPlugin plugin) {
+        Map<String, Integer> qos = new HashMap<>();
+        for (int level = 0; level <= 2; level++) {
+            for (String action : plugin.getConfig().getStringList("mqtt.qos.level-" + level)) {
+                qos.put(action, level);
+            }
+        }
+        return qos;
+    }
+
     @Override
     protected void sendDataImplementation(String targetData, Message message) {
-        connection.sendMessage(targetData, message);
+        connection.sendMessage(targetData, message, getDestination(targetData, message));
     }
 
     @Override
     public void close() {
+        super.close();
         connection.close();
     }
 }
@@ -0,0 +1,99 @@
+package de.themoep.connectorplugin.velocity.connector;
+
+/*
+ * ConnectorPlugin
+ * Copyright (C) 2022 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.themoep.connectorplugin.velocity.VelocityConnectorPlugin;
+import de.themoep.connectorplugin.connector.FrameCodec;
+import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.PeerConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+public class PeerConnector extends VelocityConnector {
+    private final PeerConnection connection;
+
+    public PeerConnector(VelocityConnectorPlugin plugin) {
+        super(plugin, false);
+        connection = createConnection(plugin, codec, this::handle);
+    }
+
+    /**
+     * Create a connection to the other servers and proxies with the settings from the config
+     * @param plugin    The plugin
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The connection
+     */
+    static PeerConnection createConnection(VelocityConnectorPlugin plugin, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        String socketDirectory = plugin.getConfig().getString("p2p.socket-directory", "");
+        return new PeerConnection(
+                plugin,
+                codec,
+                PeerConnection.parseAddress(plugin.getConfig().getString("p2p.bind-address", "0.0.0.0:25590")),
+                getPeers(plugin),
+                plugin.getConfig().getString("p2p.secret"),
+                plugin.getConfig().getInt("p2p.max-frame-size", 16 * 1024 * 1024),
+                plugin.getConfig().getLong("p2p.max-queued-bytes", 16 * 1024 * 1024),
+                plugin.getConfig().getLong("p2p.reconnect-delay", 1000),
+                socketDirectory != null && !socketDirectory.isEmpty() ? new File(socketDirectory) : null,
+                onMessage
+        );
+    }
+
+    private static Map<String, InetSocketAddress> getPeers(VelocityConnectorPlugin plugin) {
+        Map<String, InetSocketAddress> peers = PeerConnection.parsePeers(plugin.getConfig().getStringList("p2p.peers"));
+        String peersFile = plugin.getConfig().getString("p2p.peers-file", "");
+        if (peersFile != null && !peersFile.isEmpty()) {
+            try {
+                peers.putAll(PeerConnection.readPeers(new File(peersFile)));
+            } catch (IOException e) {
+                plugin.logError("Unable to read peers file " + peersFile + "!", e);
+            }
+        }
+        return peers;
+    }
+
+    @Override
+    protected int getDefaultMaxFrameSize() {
+        return connection.getMaxFrameSize();
+    }
+
+    @Override
+    protected void sendDataImplementation(String targetData, Message message) {
+        connection.sendMessage(targetData, message, getDestination(targetData, message));
+    }
+
+    /**
+     * Get the connection to the other servers and proxies, e.g. to check its metrics
+     * @return The connection
+     */
+    public PeerConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        connection.close();
+    }
+}
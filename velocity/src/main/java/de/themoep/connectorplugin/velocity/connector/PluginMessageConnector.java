@@ -18,11 +18,6 @@ package de.themoep.connectorplugin.velocity.connector;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.collect.Multimap;
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.PluginMessageEvent;
 import com.velocitypowered.api.event.player.ServerPostConnectEvent;
@@ -30,17 +25,41 @@ import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.messages.ChannelIdentifier;
 import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
+import de.themoep.connectorplugin.connector.FrameCodec;
 import de.themoep.connectorplugin.connector.Message;
 import de.themoep.connectorplugin.velocity.VelocityConnectorPlugin;
 import de.themoep.connectorplugin.connector.VersionMismatchException;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class PluginMessageConnector extends VelocityConnector {
 
+    /**
+     * Servers only accept plugin messages of up to 32767 bytes from the proxy, leave some room for the packet itself
+     */
+    private static final int MAX_FRAME_SIZE = 32000;
+
     private final ChannelIdentifier messageChannel;
-    private final Multimap<String, byte[]> messageQueue = MultimapBuilder.hashKeys().linkedListValues().build();
+    private final Map<String, ServerQueue> messageQueues = new ConcurrentHashMap<>();
+    private final int maxQueuedMessages;
+    private final long maxQueuedBytes;
+    private final long queueTtl;
+
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong expiredMessages = new AtomicLong();
+    private final AtomicLong coalescedMessages = new AtomicLong();
 
     public PluginMessageConnector(VelocityConnectorPlugin plugin) {
         super(plugin, true);
+        maxQueuedMessages = Math.max(plugin.getConfig().getInt("plugin-messages.queue.max-messages", 1000), 1);
+        maxQueuedBytes = plugin.getConfig().getLong("plugin-messages.queue.max-bytes", 1024 * 1024);
+        queueTtl = TimeUnit.SECONDS.toNanos(plugin.getConfig().getLong("plugin-messages.queue.ttl", 300));
         messageChannel = MinecraftChannelIdentifier.from(plugin.getMessageChannel());
         plugin.getProxy().getChannelRegistrar().register(messageChannel);
     }
@@ -56,22 +75,16 @@ public class PluginMessageConnector extends VelocityConnector {
             return;
         }
 
-        ByteArrayDataInput in = ByteStreams.newDataInput(event.getData());
-        String group = in.readUTF();
-
-        String target = in.readUTF();
-
-        int messageLength = in.readInt();
-        byte[] messageData = new byte[messageLength];
-        in.readFully(messageData);
         try {
-            Message message = Message.fromByteArray(group, messageData);
+            FrameCodec.Frame frame = codec.decode(event.getData());
+            String target = frame.getTarget();
+            Message message = frame.getMessage();
             switch (message.getTarget()) {
                 case ALL_WITH_PLAYERS:
                     sendToAllWithPlayers(event.getData(), null);
                     break;
                 case ALL_QUEUE:
-                    sendToAllAndQueue(event.getData(), null);
+                    sendToAllAndQueue(event.getData(), message, null);
                     break;
                 case OTHERS_WITH_PLAYERS:
                     if (((Player) event.getTarget()).getCurrentServer().isPresent()) {
@@ -82,17 +95,17 @@ public class PluginMessageConnector extends VelocityConnector {
                     break;
                 case OTHERS_QUEUE:
                     if (((Player) event.getTarget()).getCurrentServer().isPresent()) {
-                        sendToAllAndQueue(event.getData(), ((Player) event.getTarget()).getCurrentServer().get().getServer());
+                        sendToAllAndQueue(event.getData(), message, ((Player) event.getTarget()).getCurrentServer().get().getServer());
                     } else {
-                        sendToAllAndQueue(event.getData(), null);
+                        sendToAllAndQueue(event.getData(), message, null);
                     }
                     break;
                 case SERVER:
                     if (!target.isEmpty()) {
                         RegisteredServer server = getTargetServer(target);
                         if (server != null) {
-                            if (!server.sendPluginMessage(messageChannel, event.getData())) {
-                                messageQueue.put(server.getServerInfo().getName(), event.getData());
+                            if (!send(server, event.getData(), message, true)) {
+                                enqueue(server, event.getData(), message);
                             }
                         } else {
                             plugin.logDebug(target + " doesn't exist?");
@@ -116,42 +129,144 @@ public class PluginMessageConnector extends VelocityConnector {
     }
 
     private void sendToAllWithPlayers(byte[] data, RegisteredServer excludedServer) {
-        sendToAll(data, false, excludedServer);
+        sendToAll(data, null, excludedServer);
     }
 
-    private void sendToAllAndQueue(byte[] data, RegisteredServer excludedServer) {
-        sendToAll(data, true, excludedServer);
+    private void sendToAllAndQueue(byte[] data, Message message, RegisteredServer excludedServer) {
+        sendToAll(data, message, excludedServer);
     }
 
-    private void sendToAll(byte[] data, boolean queue, RegisteredServer excludedServer) {
+    /**
+     * Send data to all servers
+     * @param data              The data
+     * @param queuedMessage     The message to queue for servers without players or null if it shouldn't be queued
+     * @param excludedServer    The server to not send to
+     */
+    private void sendToAll(byte[] data, Message queuedMessage, RegisteredServer excludedServer) {
         for (RegisteredServer server : plugin.getProxy().getAllServers()) {
             if (excludedServer == null || excludedServer != server) {
-                if (!server.sendPluginMessage(messageChannel, data) && queue) {
-                    messageQueue.put(server.getServerInfo().getName(), data);
+                if (!send(server, data, queuedMessage, queuedMessage != null) && queuedMessage != null) {
+                    enqueue(server, data, queuedMessage);
                 }
             }
         }
     }
 
+    /**
+     * Send data to a server. While the server's queue is drained the data is added to the queue instead
+     * so that it can't overtake the older messages in it.
+     * @param server    The server
+     * @param data      The data
+     * @param message   The message of the data, null if it's unknown
+     * @param queued    Whether the message would be queued if the server had no players,
+     *                  these are added to a queue which still waits for a player too
+     * @return Whether the data was sent or added to the queue, false if the server has no player to send it through
+     */
+    private boolean send(RegisteredServer server, byte[] data, Message message, boolean queued) {
+        ServerQueue queue = messageQueues.get(server.getServerInfo().getName());
+        if (queue != null && queue.addIfBusy(data, getPresencePlayer(message), queued)) {
+            return true;
+        }
+        return server.sendPluginMessage(messageChannel, data);
+    }
+
+    private void enqueue(RegisteredServer server, byte[] data, Message message) {
+        messageQueues.computeIfAbsent(server.getServerInfo().getName(), s -> new ServerQueue()).add(data, getPresencePlayer(message));
+    }
+
+    private String getPresencePlayer(Message message) {
+        return message != null && plugin.getBridge() != null ? plugin.getBridge().getPresencePlayer(message) : null;
+    }
+
     @Subscribe
     public void onPlayerServerConnected(ServerPostConnectEvent event) {
         event.getPlayer().getCurrentServer().ifPresent(server -> {
-            for (byte[] data : messageQueue.removeAll(server.getServerInfo().getName())) {
-                server.sendPluginMessage(messageChannel, data);
+            ServerQueue queue = messageQueues.get(server.getServerInfo().getName());
+            if (queue != null && queue.startDraining()) {
+                // Send them from another thread so that a long queue doesn't block the event.
+                // Messages which are sent meanwhile get added to the queue and are sent by this too.
+                plugin.runAsync(() -> {
+                    List<byte[]> batch;
+                    while (!(batch = queue.drain()).isEmpty()) {
+                        for (byte[] data : batch) {
+                            server.sendPluginMessage(messageChannel, data);
+                        }
+                    }
+                });
             }
         });
     }
 
+    /**
+     * Get the amount of messages which are waiting for a player to connect to a server
+     * @param server    The name of the server
+     * @return The amount of queued messages
+     */
+    public int getQueuedMessages(String server) {
+        ServerQueue queue = messageQueues.get(server);
+        return queue != null ? queue.getSize() : 0;
+    }
+
+    /**
+     * Get the amount of bytes which are waiting for a player to connect to a server
+     * @param server    The name of the server
+     * @return The size of the queued messages in bytes
+     */
+    public long getQueuedBytes(String server) {
+        ServerQueue queue = messageQueues.get(server);
+        return queue != null ? queue.getBytes() : 0;
+    }
+
+    /**
+     * Get the amount of messages which were dropped because the queue of their server was full
+     * @return The amount of dropped messages
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Get the amount of queued messages which were discarded because no player connected to their server in time
+     * @return The amount of expired messages
+     */
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+
+    /**
+     * Get the amount of queued player joins and leaves which were replaced by a newer one of the same player
+     * @return The amount of coalesced messages
+     */
+    public long getCoalescedMessages() {
+        return coalescedMessages.get();
+    }
+
     @Override
-    public void sendDataImplementation(String targetData, Message message) {
-        byte[] messageData = message.writeToByteArray();
+    protected int getDefaultMaxFrameSize() {
+        return MAX_FRAME_SIZE;
+    }
+
+    @Override
+    protected void checkSupported(String targetData, Message message) {
+        switch (message.getTarget()) {
+            case ALL_WITH_PLAYERS:
+            case ALL_QUEUE:
+            case OTHERS_WITH_PLAYERS:
+            case OTHERS_QUEUE:
+                break;
+            case SERVER:
+                if (getTargetServer(targetData) == null) {
+                    throw new UnsupportedOperationException("Could not send data to " + message.getTarget() + " as target server wasn't found from " + targetData + "!");
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Sending to " + message.getTarget() + " is not supported!");
+        }
+    }
 
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message.getGroup());
-        out.writeUTF(targetData);
-        out.writeInt(messageData.length);
-        out.write(messageData);
-        byte[] dataToSend = out.toByteArray();
+    @Override
+    public void sendDataImplementation(String targetData, Message message) {
+        byte[] dataToSend = codec.encode(targetData, message);
 
         RegisteredServer server = getTargetServer(targetData);
 
@@ -160,17 +275,17 @@ public class PluginMessageConnector extends VelocityConnector {
                 sendToAllWithPlayers(dataToSend, null);
                 break;
             case ALL_QUEUE:
-                sendToAllAndQueue(dataToSend, null);
+                sendToAllAndQueue(dataToSend, message, null);
                 break;
             case OTHERS_WITH_PLAYERS:
                 sendToAllWithPlayers(dataToSend, server);
                 break;
             case OTHERS_QUEUE:
-                sendToAllAndQueue(dataToSend, server);
+                sendToAllAndQueue(dataToSend, message, server);
                 break;
             case SERVER:
                 if (server != null) {
-                    server.sendPluginMessage(messageChannel, dataToSend);
+                    send(server, dataToSend, message, true);
                 } else {
                     throw new UnsupportedOperationException("Could not send data to " + message.getTarget() + " as target server wasn't found from " + targetData + "!");
                 }
@@ -179,4 +294,140 @@ public class PluginMessageConnector extends VelocityConnector {
                 throw new UnsupportedOperationException("Sending to " + message.getTarget() + " is not supported!");
         }
     }
+    /**
+     * Ring buffer of the messages for one server, limited by amount and bytes.
+     * Messages which got replaced by a newer one stay in the buffer without data until they are reached.
+     */
+    private class ServerQueue {
+        private final QueuedMessage[] ring = new QueuedMessage[maxQueuedMessages];
+        private final Map<String, QueuedMessage> presences = new HashMap<>();
+        private int head = 0;
+        private int size = 0;
+        private long bytes = 0;
+        private boolean draining = false;
+
+        /**
+         * Add a message if it has to wait behind the queued ones
+         * @param data              The data of the message
+         * @param presencePlayer    The player whose join or leave the message is, null if it's none
+         * @param queued            Whether the message may wait for a player, otherwise it's only added while draining
+         * @return Whether it was added
+         */
+        private synchronized boolean addIfBusy(byte[] data, String presencePlayer, boolean queued) {
+            if (!draining && (!queued || size == 0)) {
+                return false;
+            }
+            add(data, presencePlayer);
+            return true;
+        }
+
+        /**
+         * Mark the queue as being drained
+         * @return Whether there is something to drain and it wasn't being drained already
+         */
+        private synchronized boolean startDraining() {
+            if (draining || size == 0) {
+                return false;
+            }
+            draining = true;
+            return true;
+        }
+
+        private synchronized void add(byte[] data, String presencePlayer) {
+            if (data.length > maxQueuedBytes) {
+                droppedMessages.incrementAndGet();
+                return;
+            }
+            long now = System.nanoTime();
+            while (size > 0 && isExpired(ring[head], now)) {
+                if (removeHead()) {
+                    expiredMessages.incrementAndGet();
+                }
+            }
+
+            QueuedMessage queued = new QueuedMessage(data, now + queueTtl, presencePlayer);
+            if (presencePlayer != null) {
+                QueuedMessage superseded = presences.put(presencePlayer, queued);
+                if (superseded != null && superseded.data != null) {
+                    bytes -= superseded.data.length;
+                    superseded.data = null;
+                    coalescedMessages.incrementAndGet();
+                }
+            }
+            while (size > 0 && (size == ring.length || bytes + data.length > maxQueuedBytes)) {
+                if (removeHead()) {
+                    droppedMessages.incrementAndGet();
+                }
+            }
+            ring[(head + size) % ring.length] = queued;
+            size++;
+            bytes += data.length;
+        }
+
+        /**
+         * Remove the oldest message
+         * @return Whether it still had data, false if it was replaced by a newer one already
+         */
+        private boolean removeHead() {
+            QueuedMessage queued = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            if (queued.presencePlayer != null) {
+                presences.remove(queued.presencePlayer, queued);
+            }
+            if (queued.data == null) {
+                return false;
+            }
+            bytes -= queued.data.length;
+            return true;
+        }
+
+        private boolean isExpired(QueuedMessage queued, long now) {
+            return queueTtl > 0 && now - queued.expires >= 0;
+        }
+
+        /**
+         * Remove all messages which didn't expire yet. Once there are none left the queue isn't marked as draining anymore.
+         * @return The data of the messages in the order they were queued
+         */
+        private synchronized List<byte[]> drain() {
+            long now = System.nanoTime();
+            List<byte[]> data = new ArrayList<>(size);
+            while (size > 0) {
+                QueuedMessage queued = ring[head];
+                if (removeHead()) {
+                    if (isExpired(queued, now)) {
+                        expiredMessages.incrementAndGet();
+                    } else {
+                        data.add(queued.data);
+                    }
+                }
+            }
+            if (data.isEmpty()) {
+                draining = false;
+            }
+            return data;
+        }
+
+        private synchronized int getSize() {
+            return size;
+        }
+
+        private synchronized long getBytes() {
+            return bytes;
+        }
+    }
+
+    private static class QueuedMessage {
+        private byte[] data;
+        private final long expires;
+        private final String presencePlayer;
+
+        private QueuedMessage(byte[] data, long expires, String presencePlayer) {
+            this.data = data;
+            this.expires = expires;
+            this.presencePlayer = presencePlayer;
+        }
+    }
 }
@@ -21,13 +21,152 @@ package de.themoep.connectorplugin.velocity.connector;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 import de.themoep.connectorplugin.connector.Message;
+import de.themoep.connectorplugin.connector.MessageDispatcher;
+import de.themoep.connectorplugin.connector.MessageFragmenter;
+import de.themoep.connectorplugin.connector.MessagePriority;
+import de.themoep.connectorplugin.connector.MessageTarget;
+import de.themoep.connectorplugin.connector.MessageTransport;
+import de.themoep.connectorplugin.connector.Outbox;
+import de.themoep.connectorplugin.connector.PayloadCompression;
+import de.themoep.connectorplugin.connector.PriorityLanes;
+import de.themoep.connectorplugin.connector.ReliableDelivery;
 import de.themoep.connectorplugin.velocity.VelocityConnectorPlugin;
 import de.themoep.connectorplugin.connector.Connector;
+import de.themoep.connectorplugin.connector.DispatchPolicy;
+import de.themoep.connectorplugin.connector.FrameCodec;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 public abstract class VelocityConnector extends Connector<VelocityConnectorPlugin, Player> {
 
     public VelocityConnector(VelocityConnectorPlugin plugin, boolean requiresPlayer) {
-        super(plugin, requiresPlayer);
+        super(plugin, requiresPlayer, createCodec(plugin), createFragmenter(plugin), createReliableDelivery(plugin), createPriorityLanes(plugin), createDispatcher(plugin));
+    }
+
+    private static FrameCodec createCodec(VelocityConnectorPlugin plugin) {
+        PayloadCompression.Codec codec;
+        String codecName = plugin.getConfig().getString("frames.compression.codec", "deflate");
+        try {
+            codec = PayloadCompression.Codec.valueOf(codecName.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            plugin.logWarning("Unknown compression codec " + codecName + ", using deflate");
+            codec = PayloadCompression.Codec.DEFLATE;
+        }
+        return new FrameCodec(
+                plugin.getConfig().getBoolean("frames.compact", false),
+                plugin.getConfig().getInt("frames.dictionary-size", 256),
+                new PayloadCompression(
+                        plugin.getConfig().getBoolean("frames.compression.enabled", false),
+                        codec,
+                        plugin.getConfig().getInt("frames.compression.min-size", 1024),
+                        plugin.getConfig().getStringList("frames.compression.excluded"),
+                        // Decompressed data can't be bigger than what the fragmenter would reassemble
+                        (int) Math.min(plugin.getConfig().getLong("frames.fragments.max-memory", 16 * 1024 * 1024), Integer.MAX_VALUE)
+                ),
+                plugin.getConfig().getBoolean("frames.quantize-locations", false)
+        );
+    }
+
+    /**
+     * Read the limits of an outbox from the config
+     * @param plugin    The plugin
+     * @param path      The path of the outbox's config section
+     * @return The limits per priority
+     */
+    protected static Map<MessagePriority, Outbox.Limit> getOutboxLimits(VelocityConnectorPlugin plugin, String path) {
+        Map<MessagePriority, Outbox.Limit> limits = new EnumMap<>(MessagePriority.class);
+        for (MessagePriority priority : MessagePriority.values()) {
+            String priorityPath = path + "." + priority.name().toLowerCase(Locale.ROOT);
+            Outbox.Limit def = priority == MessagePriority.BULK ? new Outbox.Limit(1024, Outbox.OverflowPolicy.REJECT) : Outbox.Limit.DEFAULT;
+            Outbox.OverflowPolicy policy;
+            String policyName = plugin.getConfig().getString(priorityPath + ".policy", def.getPolicy().name());
+            try {
+                policy = Outbox.OverflowPolicy.fromConfig(policyName);
+            } catch (IllegalArgumentException e) {
+                plugin.logWarning("Unknown outbox policy " + policyName + " for " + priorityPath + ", using " + def.getPolicy());
+                policy = def.getPolicy();
+            }
+            limits.put(priority, new Outbox.Limit(plugin.getConfig().getInt(priorityPath + ".max-size", def.getMaxSize()), policy));
+        }
+        return limits;
+    }
+
+    /**
+     * Create the transport of a broker messenger type with the settings from the config
+     * @param plugin    The plugin
+     * @param type      The messenger type of the broker, either redis, redis_streams, mqtt or p2p
+     * @param codec     The codec of the frames
+     * @param onMessage Handler for received messages which takes the receiver data and the message
+     * @return The transport
+     * @throws IllegalArgumentException if the type isn't a broker messenger type
+     */
+    protected static MessageTransport createTransport(VelocityConnectorPlugin plugin, String type, FrameCodec codec, BiConsumer<String, Message> onMessage) {
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "redis":
+                return RedisConnector.createConnection(plugin, codec, onMessage);
+            case "redis_streams":
+                return RedisStreamsConnector.createConnection(plugin, codec, onMessage);
+            case "mqtt":
+                return MqttConnector.createConnection(plugin, codec, onMessage);
+            case "p2p":
+                return PeerConnector.createConnection(plugin, codec, onMessage);
+        }
+        throw new IllegalArgumentException("Messenger type '" + type + "' can't be used as a broker!");
+    }
+
+    private static MessageFragmenter createFragmenter(VelocityConnectorPlugin plugin) {
+        return new MessageFragmenter(
+                plugin.getConfig().getInt("frames.fragments.max-size", 0),
+                plugin.getConfig().getInt("frames.fragments.timeout", 30),
+                plugin.getConfig().getInt("frames.fragments.max-reassemblies", 64),
+                plugin.getConfig().getLong("frames.fragments.max-memory", 16 * 1024 * 1024)
+        );
+    }
+
+    private static ReliableDelivery createReliableDelivery(VelocityConnectorPlugin plugin) {
+        if (!plugin.getConfig().getBoolean("reliable-delivery.enabled", false)) {
+            return new ReliableDelivery();
+        }
+        return new ReliableDelivery(
+                plugin.getName() + " reliable delivery",
+                plugin.getConfig().getLong("reliable-delivery.retry-delay", 500),
+                plugin.getConfig().getLong("reliable-delivery.max-retry-delay", 5000),
+                plugin.getConfig().getInt("reliable-delivery.max-retries", 5),
+                plugin.getConfig().getInt("reliable-delivery.dedupe-window", 60),
+                plugin.getConfig().getInt("reliable-delivery.dedupe-size", 4096)
+        );
+    }
+
+    private static PriorityLanes createPriorityLanes(VelocityConnectorPlugin plugin) {
+        if (!plugin.getConfig().getBoolean("priority-lanes.enabled", false)) {
+            return null;
+        }
+        Map<MessagePriority, Integer> weights = PriorityLanes.defaultWeights();
+        for (MessagePriority priority : MessagePriority.values()) {
+            String path = "priority-lanes.weights." + priority.name().toLowerCase(Locale.ROOT);
+            weights.put(priority, plugin.getConfig().getInt(path, weights.get(priority)));
+        }
+        return new PriorityLanes(plugin, weights, getOutboxLimits(plugin, "priority-lanes.queues"));
+    }
+
+    private static MessageDispatcher createDispatcher(VelocityConnectorPlugin plugin) {
+        DispatchPolicy policy;
+        String policyName = plugin.getConfig().getString("dispatch.default-policy", "inline");
+        try {
+            policy = DispatchPolicy.fromConfig(policyName);
+        } catch (IllegalArgumentException e) {
+            plugin.logWarning("Unknown dispatch policy " + policyName + ", using inline");
+            policy = DispatchPolicy.INLINE;
+        }
+        return new MessageDispatcher(
+                plugin,
+                policy,
+                plugin.getConfig().getInt("dispatch.ordered-threads", 4),
+                0
+        );
     }
 
     protected Player getReceiverImplementation(String name) {
@@ -46,16 +185,52 @@ public abstract class VelocityConnector extends Connector<VelocityConnectorPlugi
         return null;
     }
 
+    @Override
+    protected String getDestination(String targetData, Message message) {
+        String destination = super.getDestination(targetData, message);
+        if (destination == null && targetData.startsWith(PLAYER_PREFIX)) {
+            // We know the server of our players and whether they are on this proxy
+            if (message.getTarget() == MessageTarget.SERVER) {
+                RegisteredServer server = getTargetServer(targetData);
+                if (server != null) {
+                    return server.getServerInfo().getName();
+                }
+            } else if (message.getTarget() == MessageTarget.PROXY && getReceiver(targetData) != null) {
+                return plugin.getServerName();
+            }
+        }
+        return destination;
+    }
+
     @Override
     protected void sendDataImplementation(Object targetData, Message message) {
-        sendDataImplementation(targetData instanceof String
+        sendDataImplementation(getTargetData(targetData), message);
+    }
+
+    protected abstract void sendDataImplementation(String targetData, Message message);
+
+    @Override
+    protected void checkSupported(Object targetData, Message message) {
+        checkSupported(getTargetData(targetData), message);
+    }
+
+    /**
+     * Check whether a message can be sent to its target, see {@link #checkSupported(Object, Message)}
+     * @param targetData    The prefixed target data
+     * @param message       The message to send
+     * @throws UnsupportedOperationException if this connector can't send the message to its target
+     */
+    protected void checkSupported(String targetData, Message message) {
+        // All targets are supported by default
+    }
+
+    private String getTargetData(Object targetData) {
+        return targetData instanceof String
                 ? (hasPrefix((String) targetData)
                         ? (String) targetData
                         : SERVER_PREFIX + targetData)
                 : (targetData instanceof Player
                         ? PLAYER_PREFIX + ((Player) targetData).getUsername()
-                        : ""), message);
+                        : "");
     }
-
-    protected abstract void sendDataImplementation(String targetData, Message message);
 }